@@ -0,0 +1,335 @@
+package com.ra4king.circuitsim.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ra4king.circuitsim.gui.GuiUtils;
+import com.ra4king.circuitsim.gui.file.CircuitLoader;
+import com.ra4king.circuitsim.gui.file.FileFormat;
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitFile;
+import com.ra4king.circuitsim.simulator.Circuit;
+import com.ra4king.circuitsim.simulator.CircuitState;
+import com.ra4king.circuitsim.simulator.SimulationException;
+import com.ra4king.circuitsim.simulator.Simulator;
+import com.ra4king.circuitsim.simulator.WireValue;
+import com.ra4king.circuitsim.simulator.components.wiring.Clock;
+import com.ra4king.circuitsim.simulator.components.wiring.Pin;
+import com.ra4king.circuitsim.simulator.netlist.Netlist;
+import com.ra4king.circuitsim.simulator.netlist.NetlistCompiler;
+
+/**
+ * Runs a circuit from a .sim file for a number of clock cycles without any GUI, printing its output pins as CSV.
+ * <p>
+ * The stimulus file is CSV too: its header names input pins, and the n-th row holds the values applied at the start
+ * of cycle n. Values are decimal, 0x hex or 0b binary, an empty value keeps the previous one. Each cycle the inputs
+ * are applied, the clock goes high, the outputs are recorded and the clock goes low, settling after every change.
+ * <p>
+ * The cycles are simulated by a compiled Netlist unless the event engine is requested, falling back to the Simulator
+ * when the circuit cannot be compiled.
+ *
+ * @author Roi Atalla
+ */
+public class BatchRunner {
+	private static final String USAGE =
+		"Usage: BatchRunner <file.sim> <circuit> [options]\n" +
+		"  --stimulus <file.csv>  input pin values per cycle\n" +
+		"  --cycles <n>           cycles to run, defaults to the stimulus rows or 1\n" +
+		"  --outputs <a,b,...>    output pins to record, defaults to all uniquely labeled ones\n" +
+		"  --out <file.csv>       write to a file instead of stdout\n" +
+		"  --radix <2|10|16>      radix of the recorded values, defaults to 2\n" +
+		"  --engine <name>        compiled or event, defaults to compiled";
+	
+	private final Simulator simulator;
+	private final Circuit circuit;
+	private final CircuitState state;
+	// Labeled pins only, a label may be shared by several of them
+	private final Map<String, List<Pin>> pins = new HashMap<>();
+	
+	private boolean compiled = true;
+	private Netlist netlist;
+	
+	public BatchRunner(Simulator simulator, Circuit circuit) {
+		this.simulator = simulator;
+		this.circuit = circuit;
+		this.state = circuit.getTopLevelState();
+		
+		circuit.getComponents().forEach(component -> {
+			String name = component.getName();
+			if(component instanceof Pin && name != null && !name.isEmpty()) {
+				pins.computeIfAbsent(name, n -> new ArrayList<>()).add((Pin)component);
+			}
+		});
+	}
+	
+	/**
+	 * An IllegalArgumentException is thrown if there is no such pin, or if the name is shared by several of them.
+	 */
+	public Pin getPin(String name, boolean isInput) {
+		List<Pin> matching = new ArrayList<>();
+		pins.getOrDefault(name, new ArrayList<>()).forEach(pin -> {
+			if(pin.isInput() == isInput) {
+				matching.add(pin);
+			}
+		});
+		
+		String type = isInput ? "input" : "output";
+		if(matching.isEmpty()) {
+			throw new IllegalArgumentException("No " + type + " pin named " + name);
+		}
+		if(matching.size() > 1) {
+			throw new IllegalArgumentException(matching.size() + " " + type + " pins are named " + name);
+		}
+		return matching.get(0);
+	}
+	
+	/**
+	 * @param compiled Whether to run the cycles with a compiled Netlist, the default, or with the Simulator.
+	 */
+	public void setCompiled(boolean compiled) {
+		this.compiled = compiled;
+	}
+	
+	/**
+	 * @return The sorted names of the output pins that are labeled and the only output pin with their label.
+	 */
+	public List<String> getOutputNames() {
+		List<String> names = new ArrayList<>();
+		pins.forEach((name, labeled) -> {
+			if(labeled.stream().filter(pin -> !pin.isInput()).count() == 1) {
+				names.add(name);
+			}
+		});
+		names.sort(String::compareTo);
+		return names;
+	}
+	
+	/**
+	 * Runs the cycles, applying the stimulus rows and writing a row of the output values for each cycle.
+	 *
+	 * @param inputs  The input pins named by the stimulus header.
+	 * @param rows    The stimulus rows, there may be fewer than cycles.
+	 * @param outputs The output pins to record.
+	 */
+	public void run(int cycles, List<String> inputs, List<String[]> rows, List<String> outputs, int radix,
+	                PrintWriter writer) {
+		Pin[] inputPins = inputs.stream().map(name -> getPin(name, true)).toArray(Pin[]::new);
+		Pin[] outputPins = outputs.stream().map(name -> getPin(name, false)).toArray(Pin[]::new);
+		
+		writer.print("cycle");
+		outputs.forEach(name -> writer.print("," + name));
+		writer.println();
+		
+		settle(-1);
+		
+		// The Netlist starts from the values the Simulator settled to
+		netlist = null;
+		if(compiled) {
+			try {
+				netlist = NetlistCompiler.compile(circuit, Netlist.Mode.CYCLE);
+			} catch(SimulationException exc) {
+				System.err.println("Warning: using the event engine, " + exc.getMessage());
+			}
+		}
+		
+		for(int cycle = 0; cycle < cycles; cycle++) {
+			if(cycle < rows.size()) {
+				String[] row = rows.get(cycle);
+				for(int i = 0; i < inputPins.length && i < row.length; i++) {
+					if(!row[i].isEmpty()) {
+						setValue(inputPins[i], parseValue(row[i], inputPins[i].getBitSize()));
+					}
+				}
+				settle(cycle);
+			}
+			
+			tick();
+			settle(cycle);
+			
+			writer.print(cycle);
+			for(Pin pin : outputPins) {
+				writer.print("," + formatValue(getValue(pin), radix));
+			}
+			writer.println();
+			
+			tick();
+			settle(cycle);
+		}
+		
+		writer.flush();
+	}
+	
+	private void setValue(Pin pin, WireValue value) {
+		if(netlist != null) {
+			netlist.setValue(pin, value);
+		} else {
+			pin.setValue(state, value);
+		}
+	}
+	
+	private void tick() {
+		if(netlist != null) {
+			netlist.tick();
+		} else {
+			Clock.tick(simulator);
+		}
+	}
+	
+	private WireValue getValue(Pin pin) {
+		if(netlist != null) {
+			return netlist.getValue(pin.getPort(Pin.PORT));
+		}
+		return state.getLastReceived(pin.getPort(Pin.PORT));
+	}
+	
+	private void settle(int cycle) {
+		try {
+			if(netlist != null) {
+				netlist.settle();
+			} else {
+				simulator.stepAll();
+			}
+		} catch(SimulationException exc) {
+			System.err.println("Cycle " + cycle + ": " + exc.getMessage());
+		}
+	}
+	
+	static WireValue parseValue(String value, int bitSize) {
+		value = value.trim().toLowerCase();
+		
+		long parsed;
+		if(value.startsWith("0x")) {
+			parsed = Long.parseUnsignedLong(value.substring(2), 16);
+		} else if(value.startsWith("0b")) {
+			parsed = Long.parseUnsignedLong(value.substring(2), 2);
+		} else {
+			parsed = Long.parseLong(value);
+		}
+		
+		return WireValue.of(parsed, bitSize);
+	}
+	
+	static String formatValue(WireValue value, int radix) {
+		if(radix == 2 || !value.isValidValue()) {
+			return value.toString();
+		}
+		
+		return radix == 16 ? value.toHexString() : Long.toString(value.getValue() & 0xFFFFFFFFL);
+	}
+	
+	private static List<String[]> readCsv(File file) throws IOException {
+		List<String[]> rows = new ArrayList<>();
+		try(BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(!line.trim().isEmpty()) {
+					rows.add(Arrays.stream(line.split(",", -1)).map(String::trim).toArray(String[]::new));
+				}
+			}
+		}
+		return rows;
+	}
+	
+	public static void main(String[] args) {
+		if(args.length < 2) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		File stimulus = null;
+		int cycles = -1;
+		List<String> outputs = null;
+		File out = null;
+		int radix = 2;
+		boolean compiled = true;
+		
+		try {
+			for(int i = 2; i < args.length; i++) {
+				String option = args[i];
+				if(i + 1 == args.length) {
+					throw new IllegalArgumentException("Missing value for " + option);
+				}
+				
+				String value = args[++i];
+				switch(option) {
+					case "--stimulus":
+						stimulus = new File(value);
+						break;
+					case "--cycles":
+						cycles = Integer.parseInt(value);
+						break;
+					case "--outputs":
+						outputs = Arrays.asList(value.split(","));
+						break;
+					case "--out":
+						out = new File(value);
+						break;
+					case "--radix":
+						radix = Integer.parseInt(value);
+						if(radix != 2 && radix != 10 && radix != 16) {
+							throw new IllegalArgumentException("Radix must be 2, 10 or 16");
+						}
+						break;
+					case "--engine":
+						if(!value.equals("compiled") && !value.equals("event")) {
+							throw new IllegalArgumentException("Engine must be compiled or event");
+						}
+						compiled = value.equals("compiled");
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + option);
+				}
+			}
+			
+			GuiUtils.setHeadless(true);
+			
+			CircuitFile circuitFile = FileFormat.load(new File(args[0]));
+			
+			Simulator simulator = new Simulator();
+			CircuitLoader loader = new CircuitLoader(simulator, CircuitLoader.getLibraryClassLoader(circuitFile));
+			Circuit circuit = loader.load(circuitFile).get(args[1]);
+			if(circuit == null) {
+				throw new IllegalArgumentException("No circuit named " + args[1]);
+			}
+			
+			loader.getInvalidPorts().forEach(
+				port -> System.err.println("Warning: unconnected port of different bit size " + port.getPort()));
+			
+			List<String> inputs = new ArrayList<>();
+			List<String[]> rows = new ArrayList<>();
+			if(stimulus != null) {
+				rows = readCsv(stimulus);
+				if(!rows.isEmpty()) {
+					inputs = Arrays.asList(rows.remove(0));
+				}
+			}
+			
+			if(cycles < 0) {
+				cycles = stimulus == null ? 1 : rows.size();
+			}
+			
+			BatchRunner runner = new BatchRunner(simulator, circuit);
+			runner.setCompiled(compiled);
+			if(outputs == null) {
+				outputs = runner.getOutputNames();
+			}
+			
+			try(PrintWriter writer = new PrintWriter(out == null ? new OutputStreamWriter(System.out)
+			                                                     : new FileWriter(out))) {
+				runner.run(cycles, inputs, rows, outputs, radix, writer);
+			}
+		} catch(Exception exc) {
+			System.err.println("Error: " + exc);
+			System.exit(1);
+		}
+	}
+}
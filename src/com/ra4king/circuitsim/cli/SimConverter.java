@@ -0,0 +1,75 @@
+package com.ra4king.circuitsim.cli;
+
+import java.io.File;
+
+import com.ra4king.circuitsim.gui.file.FileFormat;
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitFile;
+
+/**
+ * Converts .sim files between the JSON and the binary format. The format of each input file is detected, so a whole
+ * directory of mixed files can be converted at once.
+ *
+ * @author Roi Atalla
+ */
+public class SimConverter {
+	private static final String USAGE =
+		"Usage: SimConverter <json|binary|binary-uncompressed> <in.sim> <out.sim>\n" +
+		"       SimConverter <json|binary|binary-uncompressed> <in directory> <out directory>";
+	
+	public static void convert(File in, File out, String format) throws Exception {
+		CircuitFile circuitFile = FileFormat.load(in);
+		
+		switch(format) {
+			case "json":
+				FileFormat.save(out, circuitFile);
+				break;
+			case "binary":
+				FileFormat.saveBinary(out, circuitFile, true);
+				break;
+			case "binary-uncompressed":
+				FileFormat.saveBinary(out, circuitFile, false);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+	
+	public static void main(String[] args) {
+		if(args.length != 3) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		String format = args[0];
+		File in = new File(args[1]);
+		File out = new File(args[2]);
+		
+		if(!in.isDirectory()) {
+			try {
+				convert(in, out, format);
+			} catch(Exception exc) {
+				System.err.println("Error: " + exc);
+				System.exit(1);
+			}
+			return;
+		}
+		
+		File[] files = in.listFiles((dir, name) -> name.endsWith(".sim"));
+		if(files == null || (!out.isDirectory() && !out.mkdirs())) {
+			System.err.println("Error: cannot convert " + in + " to " + out);
+			System.exit(1);
+		}
+		
+		int failed = 0;
+		for(File file : files) {
+			try {
+				convert(file, new File(out, file.getName()), format);
+			} catch(Exception exc) {
+				System.err.println(file + ": " + exc);
+				failed++;
+			}
+		}
+		
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
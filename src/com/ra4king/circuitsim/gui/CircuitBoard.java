@@ -1,6 +1,7 @@
 package com.ra4king.circuitsim.gui;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,9 +23,12 @@ import com.ra4king.circuitsim.gui.PathFinding.LocationPreference;
 import com.ra4king.circuitsim.gui.PathFinding.Point;
 import com.ra4king.circuitsim.simulator.Circuit;
 import com.ra4king.circuitsim.simulator.CircuitState;
+import com.ra4king.circuitsim.simulator.Port.Link;
 import com.ra4king.circuitsim.simulator.SimulationException;
 import com.ra4king.circuitsim.simulator.Simulator;
 
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
 import javafx.util.Pair;
@@ -33,14 +37,25 @@ import javafx.util.Pair;
  * @author Roi Atalla
  */
 public class CircuitBoard {
+	// How far past its bounds an element may paint, such as port and junction dots and highlighted wires
+	private static final int PAINT_MARGIN = GuiUtils.BLOCK_SIZE;
+	
 	private CircuitManager circuitManager;
 	private Circuit circuit;
 	private CircuitState currentState;
 	
+	// The snapshot of the CircuitState last painted from, to find what changed since
+	private CircuitState lastPaintedState;
+	private CircuitState lastPaintedSource;
+	
 	private Set<ComponentPeer<?>> components;
 	private Set<LinkWires> links;
 	private Set<LinkWires> badLinks;
 	
+	// Where the components and wires paint, kept up to date as they are added, moved and removed
+	private final SpatialGrid<ComponentPeer<?>> componentGrid = new SpatialGrid<>();
+	private final SpatialGrid<Wire> wireGrid = new SpatialGrid<>();
+	
 	private Set<GuiElement> moveElements;
 	private Set<Connection> connectedPorts = new HashSet<>();
 	
@@ -174,11 +189,13 @@ public class CircuitBoard {
 		circuit.getSimulator().runSync(() -> {
 			// Component must be added here before the circuit as listeners will be triggered to recreate Subcircuits
 			components.add(component);
+			componentGrid.add(component);
 			
 			try {
 				circuit.addComponent(component.getComponent());
 			} catch(Exception exc) {
 				components.remove(component);
+				componentGrid.remove(component);
 				throw exc;
 			}
 			
@@ -225,6 +242,150 @@ public class CircuitBoard {
 		editHistory.addAction(EditAction.ADD_COMPONENT, circuitManager, component);
 	}
 	
+	/**
+	 * Adds all the components and wires at once, as one edit. On an empty board the wires are split and linked in a
+	 * single pass over the grid, instead of each addition looking up and splitting what it touches.
+	 * <p>
+	 * A component or wire that cannot be added is skipped and the first such exception is thrown after everything else
+	 * has been added.
+	 */
+	public synchronized void addElements(Collection<? extends ComponentPeer<?>> newComponents,
+	                                     Collection<Wire> newWires) {
+		circuit.getSimulator().runSync(() -> {
+			RuntimeException thrown;
+			
+			try {
+				editHistory.beginGroup();
+				
+				if(components.isEmpty() && links.isEmpty()) {
+					thrown = addElementsToEmptyBoard(newComponents, newWires);
+				} else {
+					thrown = null;
+					for(ComponentPeer<?> component : newComponents) {
+						try {
+							addComponent(component);
+						} catch(RuntimeException exc) {
+							thrown = thrown == null ? exc : thrown;
+						}
+					}
+					
+					for(Wire wire : newWires) {
+						try {
+							addWire(wire.getX(), wire.getY(), wire.getLength(), wire.isHorizontal());
+						} catch(RuntimeException exc) {
+							thrown = thrown == null ? exc : thrown;
+						}
+					}
+				}
+			} finally {
+				editHistory.endGroup();
+			}
+			
+			if(thrown != null) {
+				throw thrown;
+			}
+		});
+	}
+	
+	private RuntimeException addElementsToEmptyBoard(Collection<? extends ComponentPeer<?>> newComponents,
+	                                                 Collection<Wire> newWires) {
+		RuntimeException thrown = null;
+		
+		GridConnectivity grid = new GridConnectivity();
+		List<PortConnection> ports = new ArrayList<>();
+		
+		Set<Pair<Integer, Integer>> locations = new HashSet<>();
+		for(ComponentPeer<?> component : newComponents) {
+			if(component.getX() < 0 || component.getY() < 0
+				   || !locations.add(new Pair<>(component.getX(), component.getY()))) {
+				thrown = thrown == null ? new SimulationException("Cannot place component here.") : thrown;
+				continue;
+			}
+			
+			components.add(component);
+			componentGrid.add(component);
+			
+			try {
+				circuit.addComponent(component.getComponent());
+			} catch(RuntimeException exc) {
+				components.remove(component);
+				componentGrid.remove(component);
+				thrown = thrown == null ? exc : thrown;
+				continue;
+			}
+			
+			for(PortConnection connection : component.getConnections()) {
+				addConnection(connection);
+				ports.add(connection);
+				grid.addPort(connection.getX(), connection.getY());
+			}
+			
+			editHistory.addAction(EditAction.ADD_COMPONENT, circuitManager, component);
+		}
+		
+		List<Wire> wires = new ArrayList<>();
+		for(Wire wire : newWires) {
+			if(wire.getX() < 0 || wire.getY() < 0) {
+				thrown = thrown == null ? new SimulationException("Wire cannot go into negative space.") : thrown;
+				continue;
+			}
+			
+			wires.add(wire);
+			grid.addWire(wire.getX(), wire.getY(), wire.getLength(), wire.isHorizontal());
+		}
+		
+		grid.compute();
+		
+		Map<Integer, Integer> groupSizes = new HashMap<>();
+		for(int i = 0; i < ports.size() + wires.size(); i++) {
+			groupSizes.merge(grid.getGroup(i), i < ports.size() ? 1 : 2, Integer::sum);
+		}
+		
+		// A port touching nothing keeps its own LinkWires, like one added by addComponent
+		Map<Integer, LinkWires> groups = new HashMap<>();
+		for(int i = 0; i < ports.size(); i++) {
+			int group = grid.getGroup(i);
+			if(groupSizes.get(group) > 1) {
+				LinkWires linkWires = groups.computeIfAbsent(group, g -> new LinkWires());
+				linkWires.addPort(ports.get(i));
+				links.add(linkWires);
+			}
+		}
+		
+		Set<Wire> added = new HashSet<>();
+		for(int i = 0; i < wires.size(); i++) {
+			int node = ports.size() + i;
+			LinkWires linkWires = groups.computeIfAbsent(grid.getGroup(node), g -> new LinkWires());
+			
+			Wire wire = wires.get(i);
+			int start = 0;
+			for(int split : grid.getSplits(node)) {
+				addSegment(added, linkWires, wire, start, split);
+				start = split;
+			}
+			addSegment(added, linkWires, wire, start, wire.getLength());
+		}
+		
+		rejoinWires();
+		
+		updateBadLinks();
+		
+		return thrown;
+	}
+	
+	private void addSegment(Set<Wire> added, LinkWires linkWires, Wire wire, int start, int end) {
+		Wire segment = new Wire(linkWires,
+		                        wire.isHorizontal() ? wire.getX() + start : wire.getX(),
+		                        wire.isHorizontal() ? wire.getY() : wire.getY() + start,
+		                        end - start,
+		                        wire.isHorizontal());
+		
+		// Overlapping wires are split at each others' ends, so they overlap as identical segments
+		if(added.add(segment)) {
+			addWire(linkWires, segment);
+		}
+	}
+	
 	public void updateComponent(ComponentPeer<?> oldComponent, ComponentPeer<?> newComponent) {
 		circuit.getSimulator().runSync(() -> {
 			try {
@@ -653,6 +814,13 @@ public class CircuitBoard {
 		// Closes the beginGroup in initMove or in the beginning of this function
 		editHistory.endGroup();
 		
+		// Moved components stayed on the board while moving, so their place in the grid is stale unless re-added
+		for(GuiElement element : moveElements) {
+			if(element instanceof ComponentPeer<?> && components.contains(element)) {
+				componentGrid.add((ComponentPeer<?>)element);
+			}
+		}
+		
 		moveElements = null;
 		wiresToAdd.clear();
 		connectedPorts.clear();
@@ -743,6 +911,7 @@ public class CircuitBoard {
 						
 						toRemove.forEach(w -> {
 							w.getConnections().forEach(this::removeConnection);
+							wireGrid.remove(w);
 							
 							LinkWires linkWires = w.getLinkWires();
 							Set<Wire> set = wiresToRemove.containsKey(linkWires)
@@ -1013,12 +1182,14 @@ public class CircuitBoard {
 		linkWires.addWire(wire);
 		links.add(linkWires);
 		wire.getConnections().forEach(this::addConnection);
+		wireGrid.add(wire);
 		
 		editHistory.addAction(EditAction.ADD_WIRE, circuitManager, wire);
 	}
 	
 	private void removeWire(Wire wire) {
 		wire.getConnections().forEach(this::removeConnection);
+		wireGrid.remove(wire);
 		
 		LinkWires linkWires = wire.getLinkWires();
 		if(linkWires == null) {
@@ -1142,6 +1313,7 @@ public class CircuitBoard {
 		
 		if(removeFromComponentsList) {
 			components.remove(component);
+			componentGrid.remove(component);
 		}
 		
 		editHistory.addAction(EditAction.REMOVE_COMPONENT, circuitManager, component);
@@ -1174,17 +1346,38 @@ public class CircuitBoard {
 	}
 	
 	public void paint(GraphicsContext graphics, LinkWires highlightLinkWires) {
-		CircuitState currentState = new CircuitState(this.currentState);
+		paint(graphics, highlightLinkWires, null, this.currentState.getSnapshot());
+	}
+	
+	/**
+	 * Paints the components and wires that may paint inside the region, found through the SpatialGrids, components
+	 * first so they overlap the same way as in a full paint. The overlays are always painted whole, the caller is
+	 * expected to clip to the region.
+	 *
+	 * @param region       The region to paint, or null to paint everything.
+	 * @param currentState A snapshot of the current CircuitState.
+	 */
+	public void paint(GraphicsContext graphics, LinkWires highlightLinkWires, Bounds region,
+	                  CircuitState currentState) {
+		lastPaintedState = currentState;
+		lastPaintedSource = this.currentState;
 		
-		components.forEach(component -> {
+		Collection<ComponentPeer<?>> componentsToPaint = region == null ? components : componentGrid.query(region);
+		componentsToPaint.forEach(component -> {
 			if(moveElements == null || !moveElements.contains(component)) {
 				paintComponent(graphics, currentState, component);
 			}
 		});
 		
-		for(LinkWires linkWires : links) {
-			for(Wire wire : linkWires.getWires()) {
-				paintWire(graphics, currentState, wire, linkWires == highlightLinkWires);
+		if(region == null) {
+			for(LinkWires linkWires : links) {
+				for(Wire wire : linkWires.getWires()) {
+					paintWire(graphics, currentState, wire, linkWires == highlightLinkWires);
+				}
+			}
+		} else {
+			for(Wire wire : wireGrid.query(region)) {
+				paintWire(graphics, currentState, wire, wire.getLinkWires() == highlightLinkWires);
 			}
 		}
 		
@@ -1232,6 +1425,67 @@ public class CircuitBoard {
 		}
 	}
 	
+	/**
+	 * Finds the regions to repaint to go from the last painted snapshot to this one, those of the components and
+	 * wires whose Links changed. Only what paints inside the visible region is looked at, the rest is repainted once
+	 * it is scrolled into view.
+	 *
+	 * @param snapshot A snapshot of the current CircuitState.
+	 * @param visible  The region that is visible.
+	 * @return The regions to repaint, or null if everything must be repainted.
+	 */
+	public List<Bounds> getChangedRegions(CircuitState snapshot, Bounds visible) {
+		if(lastPaintedState == null || lastPaintedSource != currentState || moveElements != null) {
+			return null;
+		}
+		
+		if(snapshot == lastPaintedState) {
+			return Collections.emptyList();
+		}
+		
+		List<Bounds> regions = new ArrayList<>();
+		
+		for(ComponentPeer<?> component : componentGrid.query(visible)) {
+			for(PortConnection connection : component.getConnections()) {
+				Link link = connection.getPort().getLink();
+				if(link != null && snapshot.isChangedSince(lastPaintedState, link)) {
+					regions.add(getPaintedBounds(component));
+					break;
+				}
+			}
+		}
+		
+		for(Wire wire : wireGrid.query(visible)) {
+			Link link = wire.getLinkWires().getLink();
+			if(link != null && snapshot.isChangedSince(lastPaintedState, link)) {
+				regions.add(getPaintedBounds(wire));
+			}
+		}
+		
+		return regions;
+	}
+	
+	/**
+	 * @return The bounds of the element grown to include everything it may paint outside of them, like its name.
+	 */
+	public static Bounds getPaintedBounds(GuiElement element) {
+		double margin = PAINT_MARGIN;
+		if(element instanceof ComponentPeer<?>) {
+			String name = ((ComponentPeer<?>)element).getComponent().getName();
+			if(!name.isEmpty()) {
+				// The name may be drawn on any side, in the largest font peers use, which needs JavaFX to measure
+				Bounds bounds = GuiUtils.isHeadless() ? GuiUtils.getBounds(16, name, true)
+				                                      : GuiUtils.getBounds(GuiUtils.getFont(16, true), name);
+				margin += Math.max(bounds.getWidth(), bounds.getHeight());
+			}
+		}
+		
+		return new BoundingBox(element.getScreenX() - margin,
+		                       element.getScreenY() - margin,
+		                       element.getScreenWidth() + 2 * margin,
+		                       element.getScreenHeight() + 2 * margin);
+	}
+	
 	private void paintComponent(GraphicsContext graphics, CircuitState state, ComponentPeer<?> component) {
 		graphics.save();
 		component.paint(graphics, state);
@@ -2,6 +2,7 @@ package com.ra4king.circuitsim.gui;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -19,7 +20,9 @@ import com.ra4king.circuitsim.simulator.Port;
 import com.ra4king.circuitsim.simulator.Port.Link;
 import com.ra4king.circuitsim.simulator.SimulationException;
 import com.ra4king.circuitsim.simulator.Simulator;
+import com.ra4king.circuitsim.simulator.Utils.Pair;
 
+import javafx.geometry.BoundingBox;
 import javafx.geometry.Bounds;
 import javafx.geometry.Point2D;
 import javafx.scene.canvas.Canvas;
@@ -35,7 +38,6 @@ import javafx.scene.input.ScrollEvent;
 import javafx.scene.paint.Color;
 import javafx.scene.text.FontSmoothingType;
 import javafx.scene.text.Text;
-import javafx.util.Pair;
 
 /**
  * @author Roi Atalla
@@ -51,6 +53,9 @@ public class CircuitManager {
 		PLACING_COMPONENT,
 	}
 	
+	// Past this many changed regions, a single region around all of them is repainted instead
+	private static final int MAX_PAINT_REGIONS = 16;
+	
 	private SelectingState currentState = SelectingState.IDLE;
 	
 	private final CircuitSim simulatorWindow;
@@ -346,29 +351,134 @@ public class CircuitManager {
 	
 	public void paint() {
 		needsRepaint = false;
+		paint(null, circuitBoard.getCurrentState().getSnapshot());
+	}
+	
+	/**
+	 * Repaints only the regions where the simulation changed what is painted since the last paint. It falls back to
+	 * a full paint when the changes cover most of the canvas or cannot be told apart.
+	 */
+	public void paintSimulationChanges() {
+		if(inspectLinkWires != null || !simulatorWindow.isSimulationEnabled()) {
+			paint();
+			return;
+		}
+		
+		CircuitState snapshot = circuitBoard.getCurrentState().getSnapshot();
+		Bounds visible = getVisibleBounds();
+		List<Bounds> regions = circuitBoard.getChangedRegions(snapshot, visible);
+		if(regions == null) {
+			paint(null, snapshot);
+			return;
+		}
+		
+		if(regions.isEmpty()) {
+			return;
+		}
+		
+		if(regions.size() > MAX_PAINT_REGIONS) {
+			double minX = regions.stream().mapToDouble(Bounds::getMinX).min().getAsDouble();
+			double minY = regions.stream().mapToDouble(Bounds::getMinY).min().getAsDouble();
+			double maxX = regions.stream().mapToDouble(Bounds::getMaxX).max().getAsDouble();
+			double maxY = regions.stream().mapToDouble(Bounds::getMaxY).max().getAsDouble();
+			regions = Collections.singletonList(new BoundingBox(minX, minY, maxX - minX, maxY - minY));
+		}
+		
+		double area = regions.stream().mapToDouble(region -> region.getWidth() * region.getHeight()).sum();
+		if(area > visible.getWidth() * visible.getHeight() / 2) {
+			paint(null, snapshot);
+			return;
+		}
+		
+		for(Bounds region : regions) {
+			paint(region, snapshot);
+		}
+	}
+	
+	/**
+	 * @return The part of the canvas scrolled into view, in the coordinates the circuit is painted in.
+	 */
+	public Bounds getVisibleBounds() {
+		Canvas canvas = getCanvas();
+		Bounds viewport = canvasScrollPane.getViewportBounds();
 		
+		double width = Math.min(viewport.getWidth(), canvas.getWidth());
+		double height = Math.min(viewport.getHeight(), canvas.getHeight());
+		double x = 0, y = 0;
+		if(width <= 0 || height <= 0) {
+			// Not laid out yet
+			width = canvas.getWidth();
+			height = canvas.getHeight();
+		} else {
+			x = getScrollFraction(canvasScrollPane.getHvalue(), canvasScrollPane.getHmin(), canvasScrollPane.getHmax())
+			    * (canvas.getWidth() - width);
+			y = getScrollFraction(canvasScrollPane.getVvalue(), canvasScrollPane.getVmin(), canvasScrollPane.getVmax())
+			    * (canvas.getHeight() - height);
+		}
+		
+		double scaleInverted = simulatorWindow.getScaleFactorInverted();
+		return new BoundingBox(x * scaleInverted, y * scaleInverted, width * scaleInverted, height * scaleInverted);
+	}
+	
+	private static double getScrollFraction(double value, double min, double max) {
+		return max > min ? (value - min) / (max - min) : 0;
+	}
+	
+	/**
+	 * Paints everything that overlaps the region, or the whole visible part of the canvas if the region is null.
+	 * Nothing outside the visible part is painted, so it must be repainted whenever it is scrolled.
+	 */
+	private void paint(Bounds region, CircuitState snapshot) {
 		GraphicsContext graphics = getCanvas().getGraphicsContext2D();
 		
 		graphics.save();
 		
+		double scale = simulatorWindow.getScaleFactor();
+		double scaleInverted = simulatorWindow.getScaleFactorInverted();
+		
+		Bounds visible = getVisibleBounds();
+		if(region == null) {
+			region = visible;
+		}
+		
+		// Whole canvas pixels, so there are no anti-aliased seams left around the region
+		double minX = Math.floor(Math.max(region.getMinX(), visible.getMinX()) * scale);
+		double minY = Math.floor(Math.max(region.getMinY(), visible.getMinY()) * scale);
+		double maxX = Math.ceil(Math.min(region.getMaxX(), visible.getMaxX()) * scale);
+		double maxY = Math.ceil(Math.min(region.getMaxY(), visible.getMaxY()) * scale);
+		if(minX >= maxX || minY >= maxY) {
+			graphics.restore();
+			return;
+		}
+		
+		graphics.beginPath();
+		graphics.rect(minX, minY, maxX - minX, maxY - minY);
+		graphics.clip();
+		
+		region = new BoundingBox(minX * scaleInverted,
+		                         minY * scaleInverted,
+		                         (maxX - minX) * scaleInverted,
+		                         (maxY - minY) * scaleInverted);
+		
 		graphics.setFont(GuiUtils.getFont(13));
 		graphics.setFontSmoothingType(FontSmoothingType.LCD);
 		
 		graphics.setFill(Color.LIGHTGRAY);
-		graphics.fillRect(0, 0, getCanvas().getWidth(), getCanvas().getHeight());
+		graphics.fillRect(minX, minY, maxX - minX, maxY - minY);
 		
-		graphics.scale(simulatorWindow.getScaleFactor(), simulatorWindow.getScaleFactor());
+		graphics.scale(scale, scale);
 		
 		graphics.setFill(Color.BLACK);
-		double scaleInverted = simulatorWindow.getScaleFactorInverted();
-		for(int i = 0; i < getCanvas().getWidth() * scaleInverted; i += GuiUtils.BLOCK_SIZE) {
-			for(int j = 0; j < getCanvas().getHeight() * scaleInverted; j += GuiUtils.BLOCK_SIZE) {
+		int gridX = (int)(minX * scaleInverted) / GuiUtils.BLOCK_SIZE * GuiUtils.BLOCK_SIZE;
+		int gridY = (int)(minY * scaleInverted) / GuiUtils.BLOCK_SIZE * GuiUtils.BLOCK_SIZE;
+		for(int i = gridX; i < maxX * scaleInverted; i += GuiUtils.BLOCK_SIZE) {
+			for(int j = gridY; j < maxY * scaleInverted; j += GuiUtils.BLOCK_SIZE) {
 				graphics.fillRect(i, j, 1, 1);
 			}
 		}
 		
 		try {
-			circuitBoard.paint(graphics, inspectLinkWires);
+			circuitBoard.paint(graphics, inspectLinkWires, region, snapshot);
 		} catch(Exception exc) {
 			getSimulatorWindow().getDebugUtil().logException(exc);
 		}
@@ -413,7 +523,7 @@ public class CircuitManager {
 		if(inspectLinkWires != null && inspectLinkWires.getLink() != null && inspectLinkWires.isLinkValid()) {
 			String value;
 			try {
-				value = circuitBoard.getCurrentState().getMergedValue(inspectLinkWires.getLink()).toString();
+				value = snapshot.getMergedValue(inspectLinkWires.getLink()).toString();
 			} catch(Exception exc) {
 				value = "Error";
 			}
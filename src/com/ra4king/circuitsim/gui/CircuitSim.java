@@ -6,12 +6,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -22,14 +22,20 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalInt;
-import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
@@ -42,20 +48,27 @@ import com.ra4king.circuitsim.gui.EditHistory.EditAction;
 import com.ra4king.circuitsim.gui.LinkWires.Wire;
 import com.ra4king.circuitsim.gui.Properties.Property;
 import com.ra4king.circuitsim.gui.Properties.PropertyCircuitValidator;
+import com.ra4king.circuitsim.gui.file.CircuitLoader;
 import com.ra4king.circuitsim.gui.file.FileFormat;
 import com.ra4king.circuitsim.gui.file.FileFormat.CircuitFile;
 import com.ra4king.circuitsim.gui.file.FileFormat.CircuitInfo;
 import com.ra4king.circuitsim.gui.file.FileFormat.ComponentInfo;
 import com.ra4king.circuitsim.gui.file.FileFormat.WireInfo;
+import com.ra4king.circuitsim.gui.file.SaveService;
 import com.ra4king.circuitsim.gui.peers.SubcircuitPeer;
 import com.ra4king.circuitsim.simulator.Circuit;
 import com.ra4king.circuitsim.simulator.CircuitState;
 import com.ra4king.circuitsim.simulator.Component;
+import com.ra4king.circuitsim.simulator.Port.Link;
 import com.ra4king.circuitsim.simulator.ShortCircuitException;
 import com.ra4king.circuitsim.simulator.SimulationException;
 import com.ra4king.circuitsim.simulator.Simulator;
+import com.ra4king.circuitsim.simulator.Simulator.SettleStatus;
+import com.ra4king.circuitsim.simulator.WireValue;
 import com.ra4king.circuitsim.simulator.components.Subcircuit;
+import com.ra4king.circuitsim.simulator.components.memory.Register;
 import com.ra4king.circuitsim.simulator.components.wiring.Clock;
+import com.ra4king.circuitsim.simulator.components.wiring.Clock.RunResult;
 import com.ra4king.circuitsim.simulator.components.wiring.Pin;
 
 import javafx.animation.AnimationTimer;
@@ -92,6 +105,7 @@ import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.control.TabPane.TabClosingPolicy;
 import javafx.scene.control.TextArea;
+import javafx.scene.control.TextField;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.control.ToggleGroup;
@@ -148,6 +162,8 @@ public class CircuitSim extends Application {
 	private MenuItem undo, redo;
 	private CheckMenuItem clockEnabled;
 	private Menu frequenciesMenu;
+	private long lastRunCycles = 1000000;
+	private static final String RUN_WITHOUT_CONDITION = "(run all cycles)";
 	private MenuItem help;
 	
 	private ToggleButton clickMode;
@@ -183,11 +199,21 @@ public class CircuitSim extends Application {
 	private EditHistory editHistory;
 	private int savedEditStackSize;
 	
-	private Exception lastException;
+	private SaveService saveService;
+	// The saved form of each circuit, reused until the circuit is edited
+	private Map<CircuitManager, CircuitInfo> circuitInfos;
+	
+	private volatile Exception lastException;
 	private long lastExceptionTime;
 	private static final long SHOW_ERROR_DURATION = 3000;
 	
 	private volatile boolean needsRepaint = true;
+	// Only the simulation changed since the last paint, so only the parts of the circuit it changed are repainted
+	private volatile boolean simulationChanged;
+	
+	private volatile Thread simulationThread;
+	// How long the simulation thread settles at once, about a quarter of a frame at 60 FPS
+	private static final long SIMULATION_SLICE_NANOS = 4000000;
 	
 	/**
 	 * Throws an exception if instantiated directly
@@ -274,6 +300,21 @@ public class CircuitSim extends Application {
 			circuitManagers.values().stream().map(Pair::getValue).forEach(this::updateCanvasSize);
 		});
 		
+		circuitInfos = new HashMap<>();
+		saveService = new SaveService(this::createAutosave, Platform::runLater);
+		editHistory.addListener((action, manager, params) -> {
+			// Renaming or deleting a circuit also changes the subcircuits in other circuits
+			if(action == EditAction.RENAME_CIRCUIT || action == EditAction.DELETE_CIRCUIT) {
+				circuitInfos.clear();
+			} else {
+				circuitInfos.remove(manager);
+			}
+			
+			if(saveFile != null && !loadingFile) {
+				saveService.scheduleAutosave(saveFile);
+			}
+		});
+		
 		componentManager = new ComponentManager();
 	}
 	
@@ -401,11 +442,29 @@ public class CircuitSim extends Application {
 		return simulationEnabled.isSelected();
 	}
 	
+	/**
+	 * Settles the circuits on the current thread, stopping early if the thread is interrupted.
+	 */
 	private void runSim() {
+		runSim(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Settles the circuits on the current thread for at most the given time.
+	 *
+	 * @return How the settle ended, or null if the simulation failed, leaving links to update.
+	 */
+	private SettleStatus runSim(long maxNanos) {
 		try {
-			if(isSimulationEnabled() && simulator.hasLinksToUpdate()) {
-				needsRepaint = true;
-				simulator.stepAll();
+			if(!isSimulationEnabled() || !simulator.hasLinksToUpdate()) {
+				return SettleStatus.SETTLED;
+			}
+			
+			try {
+				return simulator.stepAll(Long.MAX_VALUE, maxNanos, null);
+			} finally {
+				// Only once stepAll is done, so the next frame paints the snapshot it published
+				simulationChanged = true;
 			}
 		} catch(SimulationException exc) {
 			setLastException(exc);
@@ -413,6 +472,54 @@ public class CircuitSim extends Application {
 			setLastException(exc);
 			getDebugUtil().logException(exc);
 		}
+		
+		return null;
+	}
+	
+	/**
+	 * Settles the circuits on the simulation thread, or on the current thread if there is no window.
+	 */
+	private void wakeSimulation() {
+		Thread thread = simulationThread;
+		if(thread == null) {
+			runSim();
+		} else {
+			LockSupport.unpark(thread);
+		}
+	}
+	
+	/**
+	 * Starts the thread that settles the circuits whenever it is woken up, so neither throughput nor a long settle
+	 * is tied to the frames of the FX thread, which only paints snapshots of the circuits and pushes user input.
+	 * A long settle is done in slices, so the FX thread never waits on the Simulator lock for more than a slice.
+	 */
+	private void startSimulationThread() {
+		Thread thread = new Thread(() -> {
+			while(!Thread.currentThread().isInterrupted()) {
+				SettleStatus status = runSim(SIMULATION_SLICE_NANOS);
+				
+				if(status == SettleStatus.BUDGET_EXHAUSTED) {
+					// Let the FX thread take the lock between slices of a long settle
+					LockSupport.parkNanos(SIMULATION_SLICE_NANOS / 40);
+				} else if(status == null || !isSimulationEnabled() || !simulator.hasLinksToUpdate()) {
+					// A failed simulation leaves links to update, it is only retried when woken up again
+					LockSupport.park(this);
+				}
+			}
+		});
+		thread.setName("Simulation thread");
+		thread.setDaemon(true);
+		
+		simulationThread = thread;
+		thread.start();
+	}
+	
+	private void stopSimulationThread() {
+		Thread thread = simulationThread;
+		if(thread != null) {
+			simulationThread = null;
+			thread.interrupt();
+		}
 	}
 	
 	private String getCurrentError() {
@@ -430,27 +537,144 @@ public class CircuitSim extends Application {
 	}
 	
 	private void setLastException(Exception lastException) {
-		this.lastException = lastException;
+		// Set by the simulation and clock threads, the volatile write of the exception publishes its time
 		this.lastExceptionTime = System.currentTimeMillis();
+		this.lastException = lastException;
 	}
 	
 	private int getCurrentClockSpeed() {
 		for(MenuItem menuItem : frequenciesMenu.getItems()) {
 			RadioMenuItem clockItem = (RadioMenuItem)menuItem;
 			if(clockItem.isSelected()) {
-				String text = clockItem.getText();
-				int space = text.indexOf(' ');
-				if(space == -1) {
-					throw new IllegalStateException("What did you do...");
-				}
-				
-				return Integer.parseInt(text.substring(0, space));
+				return (Integer)clockItem.getUserData();
 			}
 		}
 		
 		throw new IllegalStateException("This can't happen lol");
 	}
 	
+	/**
+	 * Asks for a number of cycles and optionally a value of a pin or register of the current circuit to stop at, then
+	 * runs the cycles as fast as possible on a separate thread and reports how many ran per second.
+	 */
+	private void runCycles() {
+		CircuitManager manager = getCurrentCircuit();
+		if(manager == null) {
+			return;
+		}
+		
+		clockEnabled.setSelected(false);
+		
+		Map<String, Link> nets = new TreeMap<>();
+		for(Component component : manager.getCircuit().getComponents()) {
+			if(component.getName().isEmpty()) {
+				continue;
+			}
+			
+			if(component instanceof Pin) {
+				nets.put(component.getName(), component.getPort(Pin.PORT).getLink());
+			} else if(component instanceof Register) {
+				nets.put(component.getName(), component.getPort(Register.PORT_OUT).getLink());
+			}
+		}
+		
+		TextField cyclesField = new TextField(String.valueOf(lastRunCycles));
+		ComboBox<String> netSelect = new ComboBox<>();
+		netSelect.getItems().add(RUN_WITHOUT_CONDITION);
+		netSelect.getItems().addAll(nets.keySet());
+		netSelect.getSelectionModel().select(0);
+		TextField valueField = new TextField("1");
+		valueField.disableProperty().bind(netSelect.getSelectionModel().selectedIndexProperty().isEqualTo(0));
+		
+		GridPane grid = new GridPane();
+		grid.setHgap(10);
+		grid.setVgap(10);
+		grid.addRow(0, new Label("Cycles:"), cyclesField);
+		grid.addRow(1, new Label("Stop when:"), netSelect);
+		grid.addRow(2, new Label("equals:"), valueField);
+		
+		Dialog<ButtonType> dialog = new Dialog<>();
+		dialog.initOwner(stage);
+		dialog.initModality(Modality.WINDOW_MODAL);
+		dialog.setTitle("Run Cycles");
+		dialog.setHeaderText("Run clock cycles as fast as possible");
+		dialog.getDialogPane().setContent(grid);
+		dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+		
+		Optional<ButtonType> result = dialog.showAndWait();
+		if(!result.isPresent() || result.get() != ButtonType.OK) {
+			return;
+		}
+		
+		long cycles;
+		BooleanSupplier condition = null;
+		try {
+			cycles = Long.parseLong(cyclesField.getText().trim());
+			
+			Link link = nets.get(netSelect.getValue());
+			if(link != null) {
+				CircuitState state = manager.getCircuitBoard().getCurrentState();
+				WireValue value = WireValue.of(Long.decode(valueField.getText().trim()), link.getBitSize());
+				condition = () -> state.getMergedValue(link).equals(value);
+			}
+		} catch(NumberFormatException exc) {
+			Alert alert = new Alert(AlertType.ERROR);
+			alert.initOwner(stage);
+			alert.initModality(Modality.WINDOW_MODAL);
+			alert.setTitle("Invalid number");
+			alert.setHeaderText("Invalid number");
+			alert.setContentText(exc.getMessage());
+			alert.showAndWait();
+			return;
+		}
+		
+		lastRunCycles = cycles;
+		
+		Dialog<ButtonType> running = new Dialog<>();
+		running.initOwner(stage);
+		running.initModality(Modality.WINDOW_MODAL);
+		running.setTitle("Running...");
+		running.setHeaderText("Running " + cycles + " cycles...");
+		running.setGraphic(new ProgressBar());
+		running.getDialogPane().getButtonTypes().add(new ButtonType("Stop", ButtonData.CANCEL_CLOSE));
+		
+		final BooleanSupplier runCondition = condition;
+		Thread runThread = new Thread(() -> {
+			try {
+				RunResult runResult = Clock.run(simulator, cycles, runCondition);
+				
+				Platform.runLater(() -> {
+					running.close();
+					
+					Alert alert = new Alert(AlertType.INFORMATION);
+					alert.initOwner(stage);
+					alert.initModality(Modality.WINDOW_MODAL);
+					alert.setTitle("Run Cycles");
+					alert.setHeaderText(runResult.conditionMet ? netSelect.getValue() + " is " + valueField.getText()
+					                                           : "Ran " + runResult.cycles + " cycles");
+					alert.setContentText(runResult.toString());
+					alert.show();
+				});
+			} catch(Exception exc) {
+				setLastException(exc);
+				if(!(exc instanceof SimulationException)) {
+					getDebugUtil().logException(exc);
+				}
+				
+				Platform.runLater(running::close);
+			} finally {
+				simulationChanged = true;
+			}
+		});
+		runThread.setName("Run cycles");
+		runThread.setDaemon(true);
+		runThread.start();
+		
+		// Returns when the run is done or stopped
+		running.showAndWait();
+		runThread.interrupt();
+	}
+	
 	private CircuitManager getCurrentCircuit() {
 		Tab tab = canvasTabPane.getSelectionModel().getSelectedItem();
 		
@@ -920,6 +1144,8 @@ public class CircuitSim extends Application {
 	 * if Component == null, the circuit was deleted
 	 */
 	void circuitModified(Circuit circuit, Component component, boolean added) {
+		circuitInfos.remove(getCircuitManager(circuit));
+		
 		if(component == null || component instanceof Pin) {
 			refreshCircuitsTab();
 			
@@ -1042,6 +1268,11 @@ public class CircuitSim extends Application {
 				if(result.get() == ButtonType.OK) {
 					saveCircuitsInternal();
 					return saveFile == null;
+				} else if(result.get() == discard) {
+					if(saveFile != null) {
+						saveService.discardAutosave(saveFile);
+					}
+					return false;
 				} else {
 					return result.get() == ButtonType.CANCEL;
 				}
@@ -1067,6 +1298,9 @@ public class CircuitSim extends Application {
 			canvasTabPane.getTabs().clear();
 			simulator.clear();
 			
+			circuitInfos.clear();
+			saveService.cancelAutosave();
+			
 			editHistory.clear();
 			savedEditStackSize = 0;
 			
@@ -1513,13 +1747,18 @@ public class CircuitSim extends Application {
 				
 				lastSaveFile = f;
 				
+				// An autosave newer than the file has the edits of a session that ended without saving
+				File autosave = SaveService.getAutosaveFile(f);
+				boolean restoreAutosave = openWindow && autosave.isFile() && autosave.lastModified() > f.lastModified()
+					                          && askRestoreAutosave(f);
+				
 				Thread loadThread = new Thread(() -> {
 					try {
 						loadingFile = true;
 						
 						editHistory.disable();
 						
-						CircuitFile circuitFile = FileFormat.load(lastSaveFile);
+						CircuitFile circuitFile = FileFormat.load(restoreAutosave ? autosave : lastSaveFile);
 						
 						if(circuitFile.circuits == null) {
 							throw new NullPointerException("File missing circuits");
@@ -1543,8 +1782,6 @@ public class CircuitSim extends Application {
 							dialog.setContentText("Creating circuits...");
 						});
 						
-						int totalComponents = 0;
-						
 						for(CircuitInfo circuit : circuitFile.circuits) {
 							if(circuitManagers.containsKey(circuit.name)) {
 								throw new IllegalStateException("Duplicate circuit names not allowed.");
@@ -1559,107 +1796,80 @@ public class CircuitSim extends Application {
 							if(circuit.wires == null) {
 								throw new NullPointerException("Circuit " + circuit.name + " missing wires");
 							}
-							
-							totalComponents += circuit.components.size() + circuit.wires.size();
 						}
 						
 						Platform.runLater(() -> dialog.setContentText("Creating components..."));
 						
-						Queue<Runnable> runnables = new ArrayDeque<>();
-						
-						final CountDownLatch latch = new CountDownLatch(totalComponents + 1);
+						double increment = (1.0 - bar.getProgress()) / circuitFile.circuits.size();
 						
-						double increment = (1.0 - bar.getProgress()) / totalComponents;
-						
-						for(CircuitInfo circuit : circuitFile.circuits) {
+						// The peers of all circuits are created in parallel, then each circuit is attached to its
+						// board on the FX thread once all circuits it uses as subcircuits are attached, since a
+						// subcircuit peer gets its pins from them. A subcircuit loop is only followed once.
+						Map<String, CompletableFuture<Void>> attached = new HashMap<>();
+						for(CircuitInfo circuit : CircuitLoader.sortBySubcircuits(circuitFile.circuits)) {
 							CircuitManager manager = getCircuitManager(circuit.name);
 							
-							for(ComponentInfo component : circuit.components) {
-								@SuppressWarnings("unchecked")
-								Class<? extends ComponentPeer<?>> clazz =
-									(Class<? extends ComponentPeer<?>>)Class.forName(component.name);
-								
-								Properties properties = new Properties();
-								if(component.properties != null) {
-									component.properties.forEach(
-										(key, value) -> properties.setProperty(new Property<>(key, null, value)));
-								}
-								
-								ComponentCreator<?> creator;
-								if(clazz == SubcircuitPeer.class) {
-									creator = getSubcircuitPeerCreator(
-										properties.getValueOrDefault(SubcircuitPeer.SUBCIRCUIT, ""));
-								} else {
-									creator = componentManager.get(clazz, properties).creator;
-								}
-								
-								runnables.add(() -> {
-									manager.mayThrow(
-										() -> manager.getCircuitBoard().addComponent(
-											creator.createComponent(properties, component.x, component.y)));
-									bar.setProgress(bar.getProgress() + increment);
-									latch.countDown();
-								});
-							}
+							CompletableFuture<CreatedElements> elements =
+								CompletableFuture.supplyAsync(() -> createElements(circuit));
 							
-							for(WireInfo wire : circuit.wires) {
-								runnables.add(() -> {
+							CompletableFuture<?>[] subcircuits =
+								circuit.components.stream()
+								                  .filter(component -> component.name.equals(
+									                  SubcircuitPeer.class.getName()) && component.properties != null)
+								                  .map(component -> attached.get(
+									                  component.properties.get(SubcircuitPeer.SUBCIRCUIT)))
+								                  .filter(Objects::nonNull)
+								                  .toArray(CompletableFuture<?>[]::new);
+							
+							attached.put(circuit.name, elements.thenAcceptBothAsync(
+								CompletableFuture.allOf(subcircuits),
+								(created, ignored) -> {
+									// Reported here as the CircuitManager may only be used from the FX thread
+									created.exceptions.forEach(exc -> manager.mayThrow(() -> {
+										throw exc;
+									}));
+									
+									List<ComponentPeer<?>> peers = new ArrayList<>();
+									created.peers.forEach(create -> manager.mayThrow(() -> peers.add(create.get())));
+									peers.removeIf(Objects::isNull);
+									
+									// The whole circuit is linked in one pass instead of a wire at a time
 									manager.mayThrow(
-										() -> manager.getCircuitBoard()
-										             .addWire(wire.x, wire.y, wire.length, wire.isHorizontal));
+										() -> manager.getCircuitBoard().addElements(peers, created.wires));
 									bar.setProgress(bar.getProgress() + increment);
-									latch.countDown();
-								});
+								},
+								Platform::runLater));
+						}
+						
+						try {
+							CompletableFuture.allOf(attached.values().toArray(new CompletableFuture<?>[0])).join();
+						} catch(CompletionException exc) {
+							if(exc.getCause() instanceof Exception) {
+								throw (Exception)exc.getCause();
 							}
+							throw exc;
 						}
 						
-						int comps = totalComponents;
-						Thread tasksThread = new Thread(() -> {
-							final int maxRunLater = Math.max(comps / 20, 50);
+						runFxSync(() -> {
+							circuitManagers.values().stream().map(Pair::getValue).forEach(this::updateCanvasSize);
 							
-							while(!runnables.isEmpty()) {
-								int left = Math.min(runnables.size(), maxRunLater);
-								
-								CountDownLatch l = new CountDownLatch(left);
-								
-								for(int i = 0; i < left; i++) {
-									Runnable r = runnables.poll();
-									Platform.runLater(() -> {
-										r.run();
-										l.countDown();
-									});
-								}
-								
-								try {
-									l.await();
-								} catch(Exception exc) {
-									// ignore
+							for(MenuItem freq : frequenciesMenu.getItems()) {
+								if(freq.getUserData().equals(circuitFile.clockSpeed)) {
+									((RadioMenuItem)freq).setSelected(true);
+									break;
 								}
 							}
 							
-							Platform.runLater(() -> {
-								circuitManagers.values().stream().map(Pair::getValue).forEach(this::updateCanvasSize);
-								
-								for(MenuItem freq : frequenciesMenu.getItems()) {
-									if(freq.getText().startsWith(String.valueOf(circuitFile.clockSpeed))) {
-										((RadioMenuItem)freq).setSelected(true);
-										break;
-									}
-								}
-								
-								if(circuitFile.globalBitSize >= 1 && circuitFile.globalBitSize <= 32) {
-									bitSizeSelect.getSelectionModel().select((Integer)circuitFile.globalBitSize);
-								}
-								
-								latch.countDown();
-							});
+							if(circuitFile.globalBitSize >= 1 && circuitFile.globalBitSize <= 32) {
+								bitSizeSelect.getSelectionModel().select((Integer)circuitFile.globalBitSize);
+							}
 						});
-						tasksThread.setName("LoadCircuits Tasks Thread");
-						tasksThread.start();
-						
-						latch.await();
 						
 						saveFile = lastSaveFile;
+						if(restoreAutosave) {
+							// The restored edits are not in the file yet
+							savedEditStackSize = -1;
+						}
 					} catch(Exception exc) {
 						clearCircuits();
 						excThrown = exc;
@@ -1707,6 +1917,95 @@ public class CircuitSim extends Application {
 		}
 	}
 	
+	private static class CreatedElements {
+		// A supplier for each component, in order, returning the peer or null if it could not be created
+		private final List<Supplier<ComponentPeer<?>>> peers = new ArrayList<>();
+		private final List<Wire> wires = new ArrayList<>();
+		private final List<Exception> exceptions = new ArrayList<>();
+	}
+	
+	/**
+	 * Creates the wires of the circuit and the peers of all its components except subcircuits, which need the
+	 * circuits they use to be loaded first. This runs off the FX thread, in parallel with other circuits.
+	 *
+	 * @return The created elements and the exceptions thrown while creating them, which are left for the FX thread
+	 * to report.
+	 */
+	private CreatedElements createElements(CircuitInfo circuit) {
+		CreatedElements created = new CreatedElements();
+		
+		for(ComponentInfo component : circuit.components) {
+			Class<? extends ComponentPeer<?>> clazz;
+			try {
+				@SuppressWarnings("unchecked")
+				Class<? extends ComponentPeer<?>> loaded =
+					(Class<? extends ComponentPeer<?>>)Class.forName(component.name);
+				clazz = loaded;
+			} catch(ClassNotFoundException exc) {
+				throw new CompletionException(exc);
+			}
+			
+			Properties properties = new Properties();
+			if(component.properties != null) {
+				component.properties.forEach((key, value) -> properties.setProperty(new Property<>(key, null, value)));
+			}
+			
+			if(clazz == SubcircuitPeer.class) {
+				ComponentCreator<?> creator =
+					getSubcircuitPeerCreator(properties.getValueOrDefault(SubcircuitPeer.SUBCIRCUIT, ""));
+				created.peers.add(() -> creator.createComponent(properties, component.x, component.y));
+			} else {
+				ComponentCreator<?> creator = componentManager.get(clazz, properties).creator;
+				
+				ComponentPeer<?> peer;
+				try {
+					peer = creator.createComponent(properties, component.x, component.y);
+				} catch(Exception exc) {
+					created.exceptions.add(exc);
+					peer = null;
+				}
+				
+				ComponentPeer<?> createdPeer = peer;
+				created.peers.add(() -> createdPeer);
+			}
+		}
+		
+		for(WireInfo wire : circuit.wires) {
+			try {
+				created.wires.add(new Wire(null, wire.x, wire.y, wire.length, wire.isHorizontal));
+			} catch(Exception exc) {
+				created.exceptions.add(exc);
+			}
+		}
+		
+		return created;
+	}
+	
+	/**
+	 * Asks whether to restore the autosave of the file, deleting it if not.
+	 */
+	private boolean askRestoreAutosave(File file) {
+		Alert alert = new Alert(AlertType.CONFIRMATION);
+		alert.initOwner(stage);
+		alert.initModality(Modality.WINDOW_MODAL);
+		alert.setTitle("Unsaved changes found");
+		alert.setHeaderText("Unsaved changes found");
+		alert.setContentText("There are unsaved changes to " + file.getName() + " from an earlier session, do you " +
+			                     "want to restore them?");
+		
+		ButtonType restore = new ButtonType("Restore", ButtonData.YES);
+		ButtonType discard = new ButtonType("Discard", ButtonData.NO);
+		alert.getButtonTypes().setAll(restore, discard);
+		
+		Optional<ButtonType> result = alert.showAndWait();
+		if(result.isPresent() && result.get() == restore) {
+			return true;
+		}
+		
+		saveService.discardAutosave(file);
+		return false;
+	}
+	
 	private void loadLibrary(File file) {
 		try(JarFile jarFile = new JarFile(file)) {
 			Enumeration<JarEntry> e = jarFile.entries();
@@ -1786,16 +2085,114 @@ public class CircuitSim extends Application {
 		try {
 			saveCircuits();
 		} catch(Exception exc) {
-			exc.printStackTrace();
+			showSaveError(exc);
+		}
+	}
+	
+	private void showSaveError(Throwable exc) {
+		exc.printStackTrace();
+		
+		Alert alert = new Alert(AlertType.ERROR);
+		alert.initOwner(stage);
+		alert.initModality(Modality.WINDOW_MODAL);
+		alert.setTitle("Error");
+		alert.setHeaderText("Error saving circuit.");
+		alert.setContentText("Error when saving the circuit: " + exc.getMessage());
+		alert.showAndWait();
+	}
+	
+	/**
+	 * Saves to the saved file like saveCircuits(), but the file is written in the background so the editor does not
+	 * freeze. Errors are shown once the write fails. If there is no saved file yet, one is chosen and saved to first.
+	 */
+	private void saveCircuitsInBackground() {
+		if(saveFile == null) {
+			saveCircuitsInternal();
+			return;
+		}
+		
+		File file = saveFile;
+		int editStackSize = editHistory.editStackSize();
+		
+		saveService.save(file, createCircuitFile()).whenComplete((result, exc) -> Platform.runLater(() -> {
+			if(exc != null) {
+				showSaveError(getSaveException(exc));
+			} else if(file.equals(saveFile)) {
+				savedEditStackSize = editStackSize;
+				updateTitle();
+			}
+		}));
+	}
+	
+	private static Exception getSaveException(Throwable exc) {
+		while((exc instanceof CompletionException || exc instanceof UncheckedIOException) && exc.getCause() != null) {
+			exc = exc.getCause();
+		}
+		
+		return exc instanceof Exception ? (Exception)exc : new RuntimeException(exc);
+	}
+	
+	/**
+	 * Creates the saved form of all circuits. Only the circuits edited since they were last saved are collected from
+	 * their boards again.
+	 */
+	private CircuitFile createCircuitFile() {
+		List<CircuitInfo> circuits = new ArrayList<>();
+		
+		canvasTabPane.getTabs().forEach(tab -> {
+			String name = tab.getText();
 			
-			Alert alert = new Alert(AlertType.ERROR);
-			alert.initOwner(stage);
-			alert.initModality(Modality.WINDOW_MODAL);
-			alert.setTitle("Error");
-			alert.setHeaderText("Error saving circuit.");
-			alert.setContentText("Error when saving the circuit: " + exc.getMessage());
-			alert.showAndWait();
+			CircuitManager manager = circuitManagers.get(name).getValue();
+			
+			CircuitInfo circuit = circuitInfos.get(manager);
+			if(circuit == null || !circuit.name.equals(name)) {
+				circuit = createCircuitInfo(name, manager);
+				circuitInfos.put(manager, circuit);
+			}
+			
+			circuits.add(circuit);
+		});
+		
+		return new CircuitFile(bitSizeSelect.getSelectionModel().getSelectedItem(),
+		                       getCurrentClockSpeed(),
+		                       libraryPaths == null ? null : new ArrayList<>(libraryPaths),
+		                       circuits);
+	}
+	
+	private static CircuitInfo createCircuitInfo(String name, CircuitManager manager) {
+		List<ComponentInfo> components =
+			manager.getCircuitBoard()
+			       .getComponents().stream()
+			       .map(component -> new ComponentInfo(component.getClass().getName(),
+			                                           component.getX(),
+			                                           component.getY(),
+			                                           component.getProperties()))
+			       .sorted(Comparator.comparingInt(Object::hashCode))
+			       .collect(Collectors.toList());
+		List<WireInfo> wires = manager.getCircuitBoard()
+		                              .getLinks().stream()
+		                              .flatMap(linkWires -> linkWires.getWires().stream())
+		                              .map(wire -> new WireInfo(wire.getX(),
+		                                                        wire.getY(),
+		                                                        wire.getLength(),
+		                                                        wire.isHorizontal()))
+		                              .sorted(Comparator.comparingInt(Object::hashCode))
+		                              .collect(Collectors.toList());
+		
+		return new CircuitInfo(name, components, wires);
+	}
+	
+	/**
+	 * Called on the FX thread by the SaveService for an autosave.
+	 *
+	 * @return The CircuitFile to autosave, or null if the file is no longer the saved file or has no unsaved edits.
+	 */
+	private CircuitFile createAutosave(File file) {
+		if(loadingFile || !file.equals(saveFile) || editHistory.editStackSize() == savedEditStackSize) {
+			return null;
 		}
+		
+		return createCircuitFile();
 	}
 	
 	/**
@@ -1828,47 +2225,17 @@ public class CircuitSim extends Application {
 			if(f != null) {
 				lastSaveFile = f;
 				
-				List<CircuitInfo> circuits = new ArrayList<>();
-				
-				canvasTabPane.getTabs().forEach(tab -> {
-					String name = tab.getText();
-					
-					CircuitManager manager = circuitManagers.get(name).getValue();
-					
-					List<ComponentInfo> components =
-						manager.getCircuitBoard()
-						       .getComponents().stream()
-						       .map(component -> new ComponentInfo(component.getClass().getName(),
-						                                           component.getX(),
-						                                           component.getY(),
-						                                           component.getProperties()))
-						       .sorted(Comparator.comparingInt(Object::hashCode))
-						       .collect(Collectors.toList());
-					List<WireInfo> wires = manager.getCircuitBoard()
-					                              .getLinks().stream()
-					                              .flatMap(linkWires -> linkWires.getWires().stream())
-					                              .map(wire -> new WireInfo(wire.getX(),
-					                                                        wire.getY(),
-					                                                        wire.getLength(),
-					                                                        wire.isHorizontal()))
-					                              .sorted(Comparator.comparingInt(Object::hashCode))
-					                              .collect(Collectors.toList());
-					
-					circuits.add(new CircuitInfo(name, components, wires));
-				});
-				
 				try {
-					FileFormat.save(f, new CircuitFile(bitSizeSelect.getSelectionModel().getSelectedItem(),
-					                                   getCurrentClockSpeed(),
-					                                   libraryPaths,
-					                                   circuits));
+					// Written by the SaveService after any save still in progress, overwriting a file in the binary
+					// format keeps it binary
+					saveService.save(f, createCircuitFile()).join();
 					savedEditStackSize = editHistory.editStackSize();
 					saveFile = f;
 					
 					updateTitle();
 				} catch(Exception exc) {
-					exc.printStackTrace();
-					excThrown = exc;
+					excThrown = getSaveException(exc);
+					excThrown.printStackTrace();
 				}
 			}
 		});
@@ -1933,6 +2300,11 @@ public class CircuitSim extends Application {
 				(observable, oldValue, newValue) -> this.updateCanvasSize(circuitManager));
 			canvasScrollPane.heightProperty().addListener(
 				(observable, oldValue, newValue) -> this.updateCanvasSize(circuitManager));
+			// Only the visible part of the canvas is painted
+			canvasScrollPane.hvalueProperty().addListener((observable, oldValue, newValue) -> needsRepaint = true);
+			canvasScrollPane.vvalueProperty().addListener((observable, oldValue, newValue) -> needsRepaint = true);
+			canvasScrollPane.viewportBoundsProperty().addListener(
+				(observable, oldValue, newValue) -> needsRepaint = true);
 			
 			String originalName = n;
 			for(int count = 0; getCircuitManager(originalName) != null; count++) {
@@ -2168,7 +2540,7 @@ public class CircuitSim extends Application {
 		
 		MenuItem save = new MenuItem("Save");
 		save.setAccelerator(new KeyCodeCombination(KeyCode.S, KeyCombination.SHORTCUT_DOWN));
-		save.setOnAction(event -> saveCircuitsInternal());
+		save.setOnAction(event -> saveCircuitsInBackground());
 		
 		MenuItem saveAs = new MenuItem("Save as");
 		saveAs.setAccelerator(
@@ -2304,17 +2676,21 @@ public class CircuitSim extends Application {
 			} catch(Exception exc) {
 				setLastException(exc);
 			} finally {
-				needsRepaint = true;
+				simulationChanged = true;
 			}
 		});
 		
+		MenuItem runCycles = new MenuItem("Run cycles...");
+		runCycles.setOnAction(event -> runCycles());
+		
 		simulationEnabled = new CheckMenuItem("Simulation Enabled");
 		simulationEnabled.setSelected(true);
 		simulationEnabled.setAccelerator(new KeyCodeCombination(KeyCode.E, KeyCombination.SHORTCUT_DOWN));
 		simulationEnabled.selectedProperty().addListener((observable, oldValue, newValue) -> {
-			runSim();
+			wakeSimulation();
 			
 			stepSimulation.setDisable(newValue);
+			runCycles.setDisable(!newValue);
 			clockEnabled.setDisable(!newValue);
 			clockEnabled.setSelected(false);
 		});
@@ -2330,7 +2706,13 @@ public class CircuitSim extends Application {
 				pair.getValue().getCircuitBoard().setCurrentState(pair.getValue().getCircuit().getTopLevelState());
 			}
 			
-			runSim();
+			wakeSimulation();
+		});
+		
+		CheckMenuItem propagationDelays = new CheckMenuItem("Propagation Delays");
+		propagationDelays.selectedProperty().addListener((observable, oldValue, newValue) -> {
+			simulator.setTimed(newValue);
+			wakeSimulation();
 		});
 		
 		MenuItem tickClock = new MenuItem("Tick clock");
@@ -2351,22 +2733,24 @@ public class CircuitSim extends Application {
 		
 		frequenciesMenu = new Menu("Frequency");
 		ToggleGroup freqToggleGroup = new ToggleGroup();
-		for(int i = 0; i <= 14; i++) {
-			RadioMenuItem freq = new RadioMenuItem((1 << i) + " Hz");
+		for(int i = 0; i <= 15; i++) {
+			int hertz = i <= 14 ? 1 << i : Clock.UNLIMITED;
+			RadioMenuItem freq = new RadioMenuItem(hertz == Clock.UNLIMITED ? "Maximum" : hertz + " Hz");
+			freq.setUserData(hertz);
 			freq.setToggleGroup(freqToggleGroup);
 			freq.setSelected(i == 0);
-			final int j = i;
 			freq.setOnAction(event -> {
 				if(Clock.isRunning(simulator)) {
-					Clock.startClock(simulator, 1 << j);
+					Clock.startClock(simulator, hertz);
 				}
 			});
 			frequenciesMenu.getItems().add(freq);
 		}
 		
 		Menu simulationMenu = new Menu("Simulation");
-		simulationMenu.getItems().addAll(simulationEnabled, stepSimulation, reset, new SeparatorMenuItem(),
-		                                 clockEnabled, tickClock, frequenciesMenu);
+		simulationMenu.getItems().addAll(simulationEnabled, stepSimulation, reset, propagationDelays,
+		                                 new SeparatorMenuItem(), clockEnabled, tickClock, frequenciesMenu,
+		                                 runCycles);
 		
 		// HELP Menu
 		Menu helpMenu = new Menu("Help");
@@ -2546,9 +2930,13 @@ public class CircuitSim extends Application {
 					event.consume();
 				} else {
 					saveConfFile();
+					saveService.shutdown();
+					stopSimulationThread();
 				}
 			});
 			
+			startSimulationThread();
+			
 			(currentTimer = new AnimationTimer() {
 				private long lastRepaint;
 				private int lastFrameCount;
@@ -2569,13 +2957,19 @@ public class CircuitSim extends Application {
 					
 					frameCount++;
 					
-					runSim();
+					if(simulator.hasLinksToUpdate()) {
+						wakeSimulation();
+					}
 					
 					CircuitManager manager = getCurrentCircuit();
 					if(manager != null) {
 						if((needsRepaint || manager.needsRepaint())) {
 							needsRepaint = false;
+							simulationChanged = false;
 							manager.paint();
+						} else if(simulationChanged) {
+							simulationChanged = false;
+							manager.paintSimulationChanges();
 						}
 						
 						if(!loadingFile) {
@@ -2599,6 +2993,8 @@ public class CircuitSim extends Application {
 	
 	public void closeWindow() {
 		runFxSync(() -> {
+			saveService.shutdown();
+			stopSimulationThread();
 			stage.close();
 			if(currentTimer != null) {
 				currentTimer.stop();
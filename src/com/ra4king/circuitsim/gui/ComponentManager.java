@@ -98,7 +98,7 @@ public class ComponentManager {
 		void addComponent(Pair<String, String> name, Image image, Properties defaultProperties);
 	}
 	
-	static <T extends ComponentPeer<?>> ComponentCreator<T> forClass(Class<T> clazz) {
+	public static <T extends ComponentPeer<?>> ComponentCreator<T> forClass(Class<T> clazz) {
 		return (properties, x, y) -> {
 			try {
 				return clazz.getConstructor(Properties.class, Integer.TYPE, Integer.TYPE)
@@ -0,0 +1,113 @@
+package com.ra4king.circuitsim.gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds which ports and wires touch each other on the grid, in one pass over all of them instead of one wire at a
+ * time. Every port and wire end is an anchor at its grid point, everything anchored at the same point is connected,
+ * and a wire is also connected to any anchor lying along it. Wires crossing each other away from their ends are not
+ * connected, just like on a CircuitBoard.
+ * <p>
+ * Ports and wires are nodes numbered in the order they are added. Call {@link #compute()} after adding all of them.
+ *
+ * @author Roi Atalla
+ */
+public class GridConnectivity {
+	// x, y, length, horizontal of each node, length is 0 for ports
+	private final List<int[]> nodes = new ArrayList<>();
+	private final Map<Integer, int[]> splits = new HashMap<>();
+	private int[] parent;
+	
+	public int addPort(int x, int y) {
+		nodes.add(new int[] { x, y, 0, 0 });
+		return nodes.size() - 1;
+	}
+	
+	public int addWire(int x, int y, int length, boolean horizontal) {
+		if(length < 0) {
+			if(horizontal) {
+				x += length;
+			} else {
+				y += length;
+			}
+			length = -length;
+		}
+		
+		nodes.add(new int[] { x, y, length, horizontal ? 1 : 0 });
+		return nodes.size() - 1;
+	}
+	
+	public void compute() {
+		parent = new int[nodes.size()];
+		for(int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+		
+		Map<Long, Integer> anchors = new HashMap<>();
+		for(int i = 0; i < nodes.size(); i++) {
+			int[] node = nodes.get(i);
+			anchor(anchors, point(node[0], node[1]), i);
+			if(node[2] != 0) {
+				anchor(anchors, node[3] == 1 ? point(node[0] + node[2], node[1])
+				                             : point(node[0], node[1] + node[2]), i);
+			}
+		}
+		
+		for(int i = 0; i < nodes.size(); i++) {
+			int[] node = nodes.get(i);
+			
+			List<Integer> wireSplits = null;
+			for(int j = 1; j < node[2]; j++) {
+				Integer anchor = anchors.get(node[3] == 1 ? point(node[0] + j, node[1]) : point(node[0], node[1] + j));
+				if(anchor != null) {
+					union(i, anchor);
+					
+					if(wireSplits == null) {
+						wireSplits = new ArrayList<>();
+					}
+					wireSplits.add(j);
+				}
+			}
+			
+			if(wireSplits != null) {
+				splits.put(i, wireSplits.stream().mapToInt(Integer::intValue).toArray());
+			}
+		}
+	}
+	
+	/**
+	 * @return The same number for all nodes connected to each other.
+	 */
+	public int getGroup(int node) {
+		while(parent[node] != node) {
+			node = parent[node] = parent[parent[node]];
+		}
+		return node;
+	}
+	
+	/**
+	 * @return The ascending offsets from the start of the wire at which another node is anchored, where a CircuitBoard
+	 * would split the wire. The start is the end with the lowest coordinate.
+	 */
+	public int[] getSplits(int wire) {
+		return splits.getOrDefault(wire, new int[0]);
+	}
+	
+	private static long point(int x, int y) {
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+	
+	private void anchor(Map<Long, Integer> anchors, long point, int node) {
+		Integer anchor = anchors.putIfAbsent(point, node);
+		if(anchor != null) {
+			union(anchor, node);
+		}
+	}
+	
+	private void union(int a, int b) {
+		parent[getGroup(a)] = getGroup(b);
+	}
+}
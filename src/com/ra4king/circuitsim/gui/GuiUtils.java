@@ -2,10 +2,12 @@ package com.ra4king.circuitsim.gui;
 
 import static com.ra4king.circuitsim.gui.Properties.Direction.*;
 
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -16,6 +18,7 @@ import com.ra4king.circuitsim.simulator.Port.Link;
 import com.ra4king.circuitsim.simulator.WireValue;
 import com.ra4king.circuitsim.simulator.WireValue.State;
 
+import javafx.geometry.BoundingBox;
 import javafx.geometry.Bounds;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
@@ -58,7 +61,8 @@ public class GuiUtils {
 		}
 	}
 	
-	private static Map<FontInfo, Font> fonts = new HashMap<>();
+	// Peers measure text while files load in parallel, so these caches may be used from several threads
+	private static Map<FontInfo, Font> fonts = new ConcurrentHashMap<>();
 	
 	public static Font getFont(int size) {
 		return getFont(size, false, false);
@@ -69,26 +73,70 @@ public class GuiUtils {
 	}
 	
 	public static Font getFont(int size, boolean bold, boolean oblique) {
-		FontInfo info = new FontInfo(size, bold, oblique);
-		
-		if(fonts.containsKey(info)) {
-			return fonts.get(info);
+		return fonts.computeIfAbsent(
+			new FontInfo(size, bold, oblique),
+			info -> Font.loadFont(GuiUtils.class.getResourceAsStream(getFontFile(bold, oblique)), size));
+	}
+	
+	private static String getFontFile(boolean bold, boolean oblique) {
+		if(bold && oblique) {
+			return "/resources/DejaVuSansMono-BoldOblique.ttf";
+		} else if(bold) {
+			return "/resources/DejaVuSansMono-Bold.ttf";
+		} else if(oblique) {
+			return "/resources/DejaVuSansMono-Oblique.ttf";
 		} else {
-			String fontFile;
-			if(bold && oblique) {
-				fontFile = "/resources/DejaVuSansMono-BoldOblique.ttf";
-			} else if(bold) {
-				fontFile = "/resources/DejaVuSansMono-Bold.ttf";
-			} else if(oblique) {
-				fontFile = "/resources/DejaVuSansMono-Oblique.ttf";
-			} else {
-				fontFile = "/resources/DejaVuSansMono.ttf";
+			return "/resources/DejaVuSansMono.ttf";
+		}
+	}
+	
+	private static boolean headless;
+	private static java.awt.Font awtFont;
+	
+	/**
+	 * Without the JavaFX toolkit no Font can be loaded, so when headless the text measured by peers while they are
+	 * created is measured through AWT instead. It uses the same font file and fractional advances, giving the same
+	 * sizes and Port locations as JavaFX.
+	 */
+	public static void setHeadless(boolean headless) {
+		GuiUtils.headless = headless;
+	}
+	
+	public static boolean isHeadless() {
+		return headless;
+	}
+	
+	/**
+	 * Measures the string in the regular font of the given size. Unlike the other getBounds, this also works when
+	 * headless.
+	 */
+	public static Bounds getBounds(int fontSize, String string, boolean save) {
+		if(!headless) {
+			return getBounds(getFont(fontSize), string, save);
+		}
+		
+		synchronized(GuiUtils.class) {
+			if(awtFont == null) {
+				try {
+					awtFont = java.awt.Font.createFont(java.awt.Font.TRUETYPE_FONT,
+					                                   GuiUtils.class.getResourceAsStream(getFontFile(false, false)));
+				} catch(Exception exc) {
+					throw new RuntimeException("Could not load font", exc);
+				}
 			}
-			
-			Font font = Font.loadFont(GuiUtils.class.getResourceAsStream(fontFile), size);
-			fonts.put(info, font);
-			return font;
 		}
+		
+		java.awt.Font font = awtFont.deriveFont((float)fontSize);
+		FontRenderContext context = new FontRenderContext(null, true, true);
+		
+		String[] lines = string.split("\n", -1);
+		double width = 0;
+		for(String line : lines) {
+			width = Math.max(width, font.getStringBounds(line, context).getWidth());
+		}
+		
+		LineMetrics metrics = font.getLineMetrics(string, context);
+		return new BoundingBox(0, -metrics.getAscent(), width, lines.length * metrics.getHeight());
 	}
 	
 	public static int getCircuitCoord(double a) {
@@ -99,7 +147,7 @@ public class GuiUtils {
 		return getCircuitCoord(a) * BLOCK_SIZE;
 	}
 	
-	private static Map<Font, Map<String, Bounds>> boundsSeen = new HashMap<>();
+	private static Map<Font, Map<String, Bounds>> boundsSeen = new ConcurrentHashMap<>();
 	
 	public static Bounds getBounds(Font font, String string) {
 		return getBounds(font, string, true);
@@ -107,7 +155,7 @@ public class GuiUtils {
 	
 	public static Bounds getBounds(Font font, String string, boolean save) {
 		if(save) {
-			Map<String, Bounds> strings = boundsSeen.computeIfAbsent(font, f -> new HashMap<>());
+			Map<String, Bounds> strings = boundsSeen.computeIfAbsent(font, f -> new ConcurrentHashMap<>());
 			return strings.computeIfAbsent(string, s -> {
 				Text text = new Text(string);
 				text.setFont(font);
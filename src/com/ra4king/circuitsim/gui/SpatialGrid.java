@@ -0,0 +1,95 @@
+package com.ra4king.circuitsim.gui;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javafx.geometry.Bounds;
+
+/**
+ * A uniform grid over the painted bounds of GuiElements, to find the ones that may paint inside a region without going
+ * through all of them. Each element is in every cell its bounds overlap, and its bounds are remembered when it is
+ * added so it can still be removed after it moved.
+ *
+ * @author Roi Atalla
+ */
+public class SpatialGrid<T extends GuiElement> {
+	// In screen coordinates, so a window of the circuit at the default scale spans a handful of cells
+	public static final int CELL_SIZE = 32 * GuiUtils.BLOCK_SIZE;
+	
+	private final Map<Long, Set<T>> cells = new HashMap<>();
+	private final Map<T, Bounds> elementBounds = new HashMap<>();
+	
+	/**
+	 * Adds the element at its current bounds, or moves it there if it was already added.
+	 */
+	public void add(T element) {
+		remove(element);
+		
+		Bounds bounds = CircuitBoard.getPaintedBounds(element);
+		elementBounds.put(element, bounds);
+		forEachCell(bounds, cell -> cells.computeIfAbsent(cell, c -> new HashSet<>()).add(element));
+	}
+	
+	public void remove(T element) {
+		Bounds bounds = elementBounds.remove(element);
+		if(bounds == null) {
+			return;
+		}
+		
+		forEachCell(bounds, cell -> {
+			Set<T> elements = cells.get(cell);
+			if(elements != null) {
+				elements.remove(element);
+				if(elements.isEmpty()) {
+					cells.remove(cell);
+				}
+			}
+		});
+	}
+	
+	public void clear() {
+		cells.clear();
+		elementBounds.clear();
+	}
+	
+	public int size() {
+		return elementBounds.size();
+	}
+	
+	/**
+	 * @return The elements whose painted bounds intersect the region.
+	 */
+	public Set<T> query(Bounds region) {
+		Set<T> result = new HashSet<>();
+		forEachCell(region, cell -> {
+			Set<T> elements = cells.get(cell);
+			if(elements != null) {
+				for(T element : elements) {
+					if(region.intersects(elementBounds.get(element))) {
+						result.add(element);
+					}
+				}
+			}
+		});
+		return result;
+	}
+	
+	private interface CellConsumer {
+		void accept(long cell);
+	}
+	
+	private static void forEachCell(Bounds bounds, CellConsumer consumer) {
+		int minX = Math.floorDiv((int)Math.floor(bounds.getMinX()), CELL_SIZE);
+		int minY = Math.floorDiv((int)Math.floor(bounds.getMinY()), CELL_SIZE);
+		int maxX = Math.floorDiv((int)Math.ceil(bounds.getMaxX()), CELL_SIZE);
+		int maxY = Math.floorDiv((int)Math.ceil(bounds.getMaxY()), CELL_SIZE);
+		
+		for(int x = minX; x <= maxX; x++) {
+			for(int y = minY; y <= maxY; y++) {
+				consumer.accept(((long)x << 32) | (y & 0xFFFFFFFFL));
+			}
+		}
+	}
+}
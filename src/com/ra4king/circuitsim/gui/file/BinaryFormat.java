@@ -0,0 +1,416 @@
+package com.ra4king.circuitsim.gui.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.ra4king.circuitsim.gui.CircuitSim;
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitFile;
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitInfo;
+import com.ra4king.circuitsim.gui.file.FileFormat.ComponentInfo;
+import com.ra4king.circuitsim.gui.file.FileFormat.WireInfo;
+
+/**
+ * A compact binary encoding of a CircuitFile, an alternative to the JSON one.
+ * <p>
+ * After the magic bytes come a version byte and a flags byte, then the body, deflated if the compressed flag is set.
+ * The body starts with a table of all distinct strings and a table of all distinct property maps, so a class name,
+ * property key or label is stored once and a component is its class, coordinates and map. Each count, index and
+ * coordinate is a varint, signed values are zigzag encoded. Counts of lists that may be null and indices of strings
+ * that may be null are stored plus one, with zero meaning null.
+ *
+ * @author Roi Atalla
+ */
+class BinaryFormat {
+	private static final byte[] MAGIC = { (byte)0x89, 'C', 'S', 'M' };
+	private static final int VERSION = 1;
+	private static final int FLAG_COMPRESSED = 1;
+	
+	// Counts come from the file, so a corrupted one must not allocate more than this before running out of data
+	private static final int MAX_INITIAL_CAPACITY = 1024;
+	
+	/**
+	 * Checks for the magic bytes at the start of the stream, leaving the stream where it was.
+	 *
+	 * @param in A stream that supports mark and reset.
+	 */
+	static boolean isBinary(InputStream in) throws IOException {
+		in.mark(MAGIC.length);
+		try {
+			for(byte b : MAGIC) {
+				if(in.read() != (b & 0xFF)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			in.reset();
+		}
+	}
+	
+	static void write(CircuitFile circuitFile, OutputStream out, boolean compress) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.write(compress ? FLAG_COMPRESSED : 0);
+		
+		Deflater deflater = null;
+		if(compress) {
+			deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			out = new DeflaterOutputStream(out, deflater, 8192);
+		}
+		
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			new Writer(data).write(circuitFile);
+			data.flush();
+			
+			if(compress) {
+				((DeflaterOutputStream)out).finish();
+			}
+		} finally {
+			if(deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+	
+	static CircuitFile read(InputStream in) throws IOException {
+		byte[] header = new byte[MAGIC.length + 2];
+		new DataInputStream(in).readFully(header);
+		
+		int version = header[MAGIC.length] & 0xFF;
+		if(version != VERSION) {
+			throw new IOException("Unsupported binary file version " + version);
+		}
+		
+		boolean compressed = (header[MAGIC.length + 1] & FLAG_COMPRESSED) != 0;
+		Inflater inflater = compressed ? new Inflater() : null;
+		try {
+			DataInputStream data = new DataInputStream(
+				new BufferedInputStream(compressed ? new InflaterInputStream(in, inflater) : in));
+			CircuitFile circuitFile = new Reader(data).read();
+			
+			// Also makes the inflater reach the end of the deflated data, where it verifies the checksum
+			if(data.read() != -1 || (compressed && (inflater.getRemaining() > 0 || in.read() != -1))) {
+				throw new IOException("Unexpected data after the end of the file");
+			}
+			
+			return circuitFile;
+		} finally {
+			if(inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+	
+	private static <T> List<T> newList(int count) {
+		return new ArrayList<>(Math.min(count, MAX_INITIAL_CAPACITY));
+	}
+	
+	private static class Writer {
+		private final DataOutputStream out;
+		private final Map<String, Integer> strings = new LinkedHashMap<>();
+		private final Map<Map<String, String>, Integer> propertyMaps = new LinkedHashMap<>();
+		
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+		
+		private void addString(String string) {
+			if(string != null) {
+				strings.putIfAbsent(string, strings.size());
+			}
+		}
+		
+		void write(CircuitFile circuitFile) throws IOException {
+			addString(CircuitSim.VERSION);
+			if(circuitFile.libraryPaths != null) {
+				circuitFile.libraryPaths.forEach(this::addString);
+			}
+			
+			if(circuitFile.circuits != null) {
+				for(CircuitInfo circuit : circuitFile.circuits) {
+					checkNotNull(circuit);
+					addString(circuit.name);
+					
+					if(circuit.components != null) {
+						for(ComponentInfo component : circuit.components) {
+							checkNotNull(component);
+							addString(component.name);
+							
+							if(component.properties != null) {
+								component.properties.forEach((key, value) -> {
+									addString(key);
+									addString(value);
+								});
+							}
+							
+							propertyMaps.putIfAbsent(component.properties, propertyMaps.size());
+						}
+					}
+					
+					if(circuit.wires != null) {
+						circuit.wires.forEach(BinaryFormat::checkNotNull);
+					}
+				}
+			}
+			
+			writeVarInt(strings.size());
+			for(String string : strings.keySet()) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				writeVarInt(bytes.length);
+				out.write(bytes);
+			}
+			
+			writeVarInt(propertyMaps.size());
+			for(Map<String, String> properties : propertyMaps.keySet()) {
+				writeVarInt(properties == null ? 0 : properties.size() + 1);
+				if(properties != null) {
+					for(Entry<String, String> property : properties.entrySet()) {
+						writeString(property.getKey());
+						writeString(property.getValue());
+					}
+				}
+			}
+			
+			writeString(CircuitSim.VERSION);
+			writeVarInt(zigzag(circuitFile.globalBitSize));
+			writeVarInt(zigzag(circuitFile.clockSpeed));
+			
+			writeVarInt(circuitFile.libraryPaths == null ? 0 : circuitFile.libraryPaths.size() + 1);
+			if(circuitFile.libraryPaths != null) {
+				for(String libraryPath : circuitFile.libraryPaths) {
+					writeString(libraryPath);
+				}
+			}
+			
+			writeVarInt(circuitFile.circuits == null ? 0 : circuitFile.circuits.size() + 1);
+			if(circuitFile.circuits != null) {
+				for(CircuitInfo circuit : circuitFile.circuits) {
+					writeCircuit(circuit);
+				}
+			}
+		}
+		
+		private void writeCircuit(CircuitInfo circuit) throws IOException {
+			writeString(circuit.name);
+			
+			writeVarInt(circuit.components == null ? 0 : circuit.components.size() + 1);
+			if(circuit.components != null) {
+				for(ComponentInfo component : circuit.components) {
+					writeString(component.name);
+					writeVarInt(zigzag(component.x));
+					writeVarInt(zigzag(component.y));
+					writeVarInt(propertyMaps.get(component.properties));
+				}
+			}
+			
+			writeVarInt(circuit.wires == null ? 0 : circuit.wires.size() + 1);
+			if(circuit.wires != null) {
+				for(WireInfo wire : circuit.wires) {
+					writeVarInt(zigzag(wire.x));
+					writeVarInt(zigzag(wire.y));
+					writeVarInt(zigzag(wire.length) << 1 | (wire.isHorizontal ? 1 : 0));
+				}
+			}
+		}
+		
+		private void writeString(String string) throws IOException {
+			writeVarInt(string == null ? 0 : strings.get(string) + 1);
+		}
+		
+		private void writeVarInt(int value) throws IOException {
+			while((value & ~0x7F) != 0) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+	}
+	
+	private static class Reader {
+		private final DataInputStream in;
+		private String[] strings;
+		// The key and value pairs of each property map in their saved order, null for a null map
+		private List<String[]> propertyMaps;
+		
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+		
+		CircuitFile read() throws IOException {
+			int stringCount = readCount();
+			List<String> stringList = newList(stringCount);
+			for(int i = 0; i < stringCount; i++) {
+				stringList.add(new String(readBytes(readCount()), StandardCharsets.UTF_8));
+			}
+			strings = stringList.toArray(new String[0]);
+			
+			int mapCount = readCount();
+			propertyMaps = newList(mapCount);
+			for(int i = 0; i < mapCount; i++) {
+				int size = readCount() - 1;
+				if(size < 0) {
+					propertyMaps.add(null);
+				} else {
+					List<String> properties = newList(size);
+					for(int j = 0; j < size; j++) {
+						properties.add(readString());
+						properties.add(readString());
+					}
+					propertyMaps.add(properties.toArray(new String[0]));
+				}
+			}
+			
+			readString(); // version, always rewritten on save
+			int globalBitSize = unzigzag(readVarInt());
+			int clockSpeed = unzigzag(readVarInt());
+			
+			List<String> libraryPaths = null;
+			int libraryCount = readCount() - 1;
+			if(libraryCount >= 0) {
+				libraryPaths = newList(libraryCount);
+				for(int i = 0; i < libraryCount; i++) {
+					libraryPaths.add(readString());
+				}
+			}
+			
+			List<CircuitInfo> circuits = null;
+			int circuitCount = readCount() - 1;
+			if(circuitCount >= 0) {
+				circuits = newList(circuitCount);
+				for(int i = 0; i < circuitCount; i++) {
+					circuits.add(readCircuit());
+				}
+			}
+			
+			return new CircuitFile(globalBitSize, clockSpeed, libraryPaths, circuits);
+		}
+		
+		private CircuitInfo readCircuit() throws IOException {
+			String name = readString();
+			
+			List<ComponentInfo> components = null;
+			int componentCount = readCount() - 1;
+			if(componentCount >= 0) {
+				components = newList(componentCount);
+				for(int i = 0; i < componentCount; i++) {
+					String className = readString();
+					int x = unzigzag(readVarInt());
+					int y = unzigzag(readVarInt());
+					
+					int mapIndex = readCount();
+					if(mapIndex >= propertyMaps.size()) {
+						throw new IOException("Invalid property map index " + mapIndex);
+					}
+					
+					// Each component gets its own map, filled in the saved order so it iterates like the original
+					Map<String, String> properties = null;
+					String[] pairs = propertyMaps.get(mapIndex);
+					if(pairs != null) {
+						properties = new HashMap<>();
+						for(int j = 0; j < pairs.length; j += 2) {
+							properties.put(pairs[j], pairs[j + 1]);
+						}
+					}
+					
+					components.add(new ComponentInfo(className, x, y, properties));
+				}
+			}
+			
+			List<WireInfo> wires = null;
+			int wireCount = readCount() - 1;
+			if(wireCount >= 0) {
+				wires = newList(wireCount);
+				for(int i = 0; i < wireCount; i++) {
+					int x = unzigzag(readVarInt());
+					int y = unzigzag(readVarInt());
+					int length = readVarInt();
+					wires.add(new WireInfo(x, y, unzigzag(length >>> 1), (length & 1) != 0));
+				}
+			}
+			
+			return new CircuitInfo(name, components, wires);
+		}
+		
+		// Grows the array as the bytes arrive instead of trusting the length up front
+		private byte[] readBytes(int length) throws IOException {
+			byte[] bytes = new byte[Math.min(length, MAX_INITIAL_CAPACITY)];
+			int read = 0;
+			while(read < length) {
+				if(read == bytes.length) {
+					bytes = Arrays.copyOf(bytes, (int)Math.min(length, 2L * bytes.length));
+				}
+				
+				in.readFully(bytes, read, bytes.length - read);
+				read = bytes.length;
+			}
+			return bytes;
+		}
+		
+		private String readString() throws IOException {
+			int index = readCount() - 1;
+			if(index >= strings.length) {
+				throw new IOException("Invalid string index " + index);
+			}
+			return index < 0 ? null : strings[index];
+		}
+		
+		// A varint that is used as a size or index, so it cannot be negative
+		private int readCount() throws IOException {
+			int count = readVarInt();
+			if(count < 0) {
+				throw new IOException("Invalid count " + count);
+			}
+			return count;
+		}
+		
+		private int readVarInt() throws IOException {
+			int value = 0;
+			for(int shift = 0; shift < 35; shift += 7) {
+				int b = in.read();
+				if(b < 0) {
+					throw new EOFException();
+				}
+				
+				value |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			
+			throw new IOException("Malformed varint");
+		}
+	}
+	
+	private static void checkNotNull(Object entry) {
+		if(entry == null) {
+			throw new NullPointerException("Binary files cannot hold null circuits, components or wires");
+		}
+	}
+	
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,243 @@
+package com.ra4king.circuitsim.gui.file;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ra4king.circuitsim.gui.ComponentManager;
+import com.ra4king.circuitsim.gui.ComponentPeer;
+import com.ra4king.circuitsim.gui.Connection.PortConnection;
+import com.ra4king.circuitsim.gui.GridConnectivity;
+import com.ra4king.circuitsim.gui.Properties;
+import com.ra4king.circuitsim.gui.Properties.Property;
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitFile;
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitInfo;
+import com.ra4king.circuitsim.gui.file.FileFormat.ComponentInfo;
+import com.ra4king.circuitsim.gui.file.FileFormat.WireInfo;
+import com.ra4king.circuitsim.gui.peers.SubcircuitPeer;
+import com.ra4king.circuitsim.simulator.Circuit;
+import com.ra4king.circuitsim.simulator.SimulationException;
+import com.ra4king.circuitsim.simulator.Simulator;
+
+/**
+ * Builds the Circuits of a CircuitFile straight into a Simulator, without a CircuitSim, CircuitBoard or the JavaFX
+ * toolkit. Peers are still created since they decide where each Port is, but they are never shown.
+ * <p>
+ * The ports of a circuit are linked in one pass over the grid by {@link GridConnectivity}.
+ *
+ * @author Roi Atalla
+ */
+public class CircuitLoader {
+	private final Simulator simulator;
+	private final ClassLoader classLoader;
+	
+	private Map<String, CircuitInfo> circuitInfos;
+	private final Map<String, Circuit> circuits = new LinkedHashMap<>();
+	private final Map<String, List<ComponentPeer<?>>> components = new HashMap<>();
+	private final Set<String> loading = new HashSet<>();
+	private final List<PortConnection> invalidPorts = new ArrayList<>();
+	
+	public CircuitLoader(Simulator simulator) {
+		this(simulator, CircuitLoader.class.getClassLoader());
+	}
+	
+	/**
+	 * @param classLoader The ClassLoader used to find the peer classes named in the file.
+	 */
+	public CircuitLoader(Simulator simulator, ClassLoader classLoader) {
+		this.simulator = simulator;
+		this.classLoader = classLoader;
+	}
+	
+	/**
+	 * Creates a ClassLoader that also finds the peers in the library jars of the CircuitFile that exist.
+	 */
+	public static ClassLoader getLibraryClassLoader(CircuitFile circuitFile) throws MalformedURLException {
+		List<URL> urls = new ArrayList<>();
+		if(circuitFile.libraryPaths != null) {
+			for(String libraryPath : circuitFile.libraryPaths) {
+				File libraryFile = new File(libraryPath);
+				if(libraryFile.isFile()) {
+					urls.add(libraryFile.toURI().toURL());
+				}
+			}
+		}
+		
+		ClassLoader parent = CircuitLoader.class.getClassLoader();
+		return urls.isEmpty() ? parent : URLClassLoader.newInstance(urls.toArray(new URL[urls.size()]), parent);
+	}
+	
+	/**
+	 * Orders the circuits so each one comes after the circuits it uses as subcircuits, keeping the file order
+	 * otherwise. Subcircuits that do not exist or contain themselves are ignored here.
+	 */
+	public static List<CircuitInfo> sortBySubcircuits(List<CircuitInfo> circuits) {
+		Map<String, CircuitInfo> byName = new HashMap<>();
+		circuits.forEach(circuit -> byName.putIfAbsent(circuit.name, circuit));
+		
+		List<CircuitInfo> sorted = new ArrayList<>();
+		Set<CircuitInfo> visited = new HashSet<>();
+		circuits.forEach(circuit -> sortBySubcircuits(circuit, byName, visited, sorted));
+		return sorted;
+	}
+	
+	private static void sortBySubcircuits(CircuitInfo circuit, Map<String, CircuitInfo> byName,
+	                                      Set<CircuitInfo> visited, List<CircuitInfo> sorted) {
+		if(!visited.add(circuit)) {
+			return;
+		}
+		
+		if(circuit.components != null) {
+			for(ComponentInfo component : circuit.components) {
+				if(component.name.equals(SubcircuitPeer.class.getName()) && component.properties != null) {
+					CircuitInfo subcircuit = byName.get(component.properties.get(SubcircuitPeer.SUBCIRCUIT));
+					if(subcircuit != null) {
+						sortBySubcircuits(subcircuit, byName, visited, sorted);
+					}
+				}
+			}
+		}
+		
+		sorted.add(circuit);
+	}
+	
+	/**
+	 * Creates all circuits of the CircuitFile, each one after the circuits it uses as subcircuits.
+	 *
+	 * @return The created Circuits by name, in the order of the file.
+	 */
+	public Map<String, Circuit> load(CircuitFile circuitFile) throws ClassNotFoundException {
+		if(circuitFile.circuits == null) {
+			throw new NullPointerException("File missing circuits");
+		}
+		
+		circuitInfos = new LinkedHashMap<>();
+		for(CircuitInfo circuit : circuitFile.circuits) {
+			if(circuitInfos.put(circuit.name, circuit) != null) {
+				throw new IllegalStateException("Duplicate circuit names not allowed.");
+			}
+			
+			if(circuit.components == null) {
+				throw new NullPointerException("Circuit " + circuit.name + " missing components");
+			}
+			
+			if(circuit.wires == null) {
+				throw new NullPointerException("Circuit " + circuit.name + " missing wires");
+			}
+		}
+		
+		for(String name : circuitInfos.keySet()) {
+			load(name);
+		}
+		
+		Map<String, Circuit> loaded = new LinkedHashMap<>();
+		circuitInfos.keySet().forEach(name -> loaded.put(name, circuits.get(name)));
+		return loaded;
+	}
+	
+	/**
+	 * @return The peers created for the Components of the circuit.
+	 */
+	public List<ComponentPeer<?>> getComponents(String circuit) {
+		return components.get(circuit);
+	}
+	
+	/**
+	 * @return The ports that could not be linked to the ports they touch, because their bit sizes differ.
+	 */
+	public List<PortConnection> getInvalidPorts() {
+		return invalidPorts;
+	}
+	
+	private Circuit load(String name) throws ClassNotFoundException {
+		Circuit circuit = circuits.get(name);
+		if(circuit != null) {
+			return circuit;
+		}
+		
+		CircuitInfo circuitInfo = circuitInfos.get(name);
+		if(circuitInfo == null) {
+			throw new SimulationException("Circuit does not exist: " + name);
+		}
+		
+		if(!loading.add(name)) {
+			throw new SimulationException("Circuit " + name + " contains itself as a subcircuit");
+		}
+		
+		circuit = new Circuit(name, simulator);
+		
+		List<ComponentPeer<?>> peers = new ArrayList<>();
+		for(ComponentInfo component : circuitInfo.components) {
+			ComponentPeer<?> peer = createPeer(component);
+			circuit.addComponent(peer.getComponent());
+			peers.add(peer);
+		}
+		
+		connect(peers, circuitInfo.wires);
+		
+		loading.remove(name);
+		circuits.put(name, circuit);
+		components.put(name, peers);
+		return circuit;
+	}
+	
+	private ComponentPeer<?> createPeer(ComponentInfo component) throws ClassNotFoundException {
+		@SuppressWarnings("unchecked")
+		Class<? extends ComponentPeer<?>> clazz =
+			(Class<? extends ComponentPeer<?>>)Class.forName(component.name, true, classLoader);
+		
+		Properties properties = new Properties();
+		if(component.properties != null) {
+			component.properties.forEach((key, value) -> properties.setProperty(new Property<>(key, null, value)));
+		}
+		
+		if(clazz == SubcircuitPeer.class) {
+			String subcircuitName = properties.getValueOrDefault(SubcircuitPeer.SUBCIRCUIT, "");
+			properties.clearProperty(SubcircuitPeer.SUBCIRCUIT);
+			
+			Circuit subcircuit = load(subcircuitName);
+			return new SubcircuitPeer(properties, component.x, component.y, subcircuit,
+			                          components.get(subcircuitName));
+		}
+		
+		return ComponentManager.forClass(clazz).createComponent(properties, component.x, component.y);
+	}
+	
+	/**
+	 * Links the ports of the peers connected through the wires.
+	 */
+	private void connect(List<ComponentPeer<?>> peers, List<WireInfo> wires) {
+		GridConnectivity grid = new GridConnectivity();
+		
+		List<PortConnection> ports = new ArrayList<>();
+		peers.forEach(peer -> peer.getConnections().forEach(port -> {
+			ports.add(port);
+			grid.addPort(port.getX(), port.getY());
+		}));
+		
+		wires.forEach(wire -> grid.addWire(wire.x, wire.y, wire.length, wire.isHorizontal));
+		
+		grid.compute();
+		
+		Map<Integer, PortConnection> linked = new HashMap<>();
+		for(int i = 0; i < ports.size(); i++) {
+			PortConnection port = ports.get(i);
+			PortConnection first = linked.putIfAbsent(grid.getGroup(i), port);
+			if(first != null) {
+				try {
+					first.getPort().linkPort(port.getPort());
+				} catch(Exception exc) {
+					invalidPorts.add(port);
+				}
+			}
+		}
+	}
+}
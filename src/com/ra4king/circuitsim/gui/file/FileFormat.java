@@ -1,18 +1,40 @@
 package com.ra4king.circuitsim.gui.file;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.ra4king.circuitsim.gui.CircuitSim;
 import com.ra4king.circuitsim.gui.Properties;
 
@@ -20,12 +42,6 @@ import com.ra4king.circuitsim.gui.Properties;
  * @author Roi Atalla
  */
 public class FileFormat {
-	private static final Gson GSON;
-	
-	static {
-		GSON = new GsonBuilder().setPrettyPrinting().create();
-	}
-	
 	public static String readFile(Reader reader) throws IOException {
 		StringBuilder string = new StringBuilder();
 		try(BufferedReader bufReader = new BufferedReader(reader)) {
@@ -146,18 +162,452 @@ public class FileFormat {
 	}
 	
 	public static void save(File file, CircuitFile circuitFile) throws IOException {
-		writeFile(file, stringify(circuitFile));
+		writeAtomically(file, out -> {
+			Writer writer = new OutputStreamWriter(out);
+			write(circuitFile, writer);
+			writer.write('\n');
+			writer.flush();
+		});
 	}
 	
 	public static String stringify(CircuitFile circuitFile) {
-		return GSON.toJson(circuitFile);
+		StringWriter writer = new StringWriter();
+		try {
+			write(circuitFile, writer);
+		} catch(IOException exc) {
+			throw new JsonIOException(exc);
+		}
+		return writer.toString();
+	}
+	
+	/**
+	 * Saves the CircuitFile in the compact binary format, which {@link #load(File)} also reads.
+	 *
+	 * @param compress Whether to deflate the contents, which makes the file several times smaller again.
+	 */
+	public static void saveBinary(File file, CircuitFile circuitFile, boolean compress) throws IOException {
+		writeAtomically(file, out -> BinaryFormat.write(circuitFile, out, compress));
+	}
+	
+	private interface StreamWriter {
+		void write(OutputStream out) throws IOException;
+	}
+	
+	/**
+	 * Writes a temporary file next to the file, syncs it to disk and renames it over the file, so a crash or a failed
+	 * write leaves either the old or the new contents behind, never a partial file. A symbolic link is kept and the
+	 * file it points to is replaced.
+	 */
+	private static void writeAtomically(File file, StreamWriter writer) throws IOException {
+		Path target = file.toPath();
+		if(Files.isSymbolicLink(target)) {
+			target = target.toRealPath();
+		}
+		target = target.toAbsolutePath();
+		
+		Path temp = File.createTempFile("." + target.getFileName() + ".", ".tmp",
+		                                target.getParent().toFile()).toPath();
+		try {
+			try(FileOutputStream out = new FileOutputStream(temp.toFile())) {
+				OutputStream buffered = new BufferedOutputStream(out);
+				writer.write(buffered);
+				buffered.flush();
+				out.getFD().sync();
+			}
+			
+			if(Files.exists(target)) {
+				try {
+					Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+				} catch(UnsupportedOperationException exc) {
+					// not a POSIX file system
+				}
+			}
+			
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException exc) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
 	}
 	
+	/**
+	 * @return True if the file exists and is in the binary format.
+	 */
+	public static boolean isBinary(File file) throws IOException {
+		if(!file.isFile()) {
+			return false;
+		}
+		
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			return BinaryFormat.isBinary(in);
+		}
+	}
+	
+	/**
+	 * Loads a file in either format, telling them apart by the magic bytes at the start of binary files.
+	 */
 	public static CircuitFile load(File file) throws IOException {
-		return parse(readFile(file));
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			if(BinaryFormat.isBinary(in)) {
+				return BinaryFormat.read(in);
+			}
+			
+			return read(new InputStreamReader(in));
+		}
 	}
 	
 	public static CircuitFile parse(String contents) {
-		return GSON.fromJson(contents, CircuitFile.class);
+		try {
+			return read(new StringReader(contents));
+		} catch(JsonSyntaxException exc) {
+			throw exc;
+		} catch(IOException exc) {
+			throw new JsonIOException(exc);
+		}
+	}
+	
+	/**
+	 * Writes the CircuitFile as pretty printed JSON, one token at a time, in the same layout Gson would use.
+	 */
+	public static void write(CircuitFile circuitFile, Writer out) throws IOException {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setIndent("  ");
+		writer.setHtmlSafe(true);
+		writer.setSerializeNulls(false);
+		
+		if(circuitFile == null) {
+			writer.nullValue();
+			writer.flush();
+			return;
+		}
+		
+		writer.beginObject();
+		writer.name("version").value(circuitFile.version);
+		writer.name("globalBitSize").value(circuitFile.globalBitSize);
+		writer.name("clockSpeed").value(circuitFile.clockSpeed);
+		
+		writer.name("libraryPaths");
+		if(circuitFile.libraryPaths == null) {
+			writer.nullValue();
+		} else {
+			writer.beginArray();
+			for(String libraryPath : circuitFile.libraryPaths) {
+				writer.value(libraryPath);
+			}
+			writer.endArray();
+		}
+		
+		writer.name("circuits");
+		if(circuitFile.circuits == null) {
+			writer.nullValue();
+		} else {
+			writer.beginArray();
+			for(CircuitInfo circuit : circuitFile.circuits) {
+				writeCircuit(writer, circuit);
+			}
+			writer.endArray();
+		}
+		
+		writer.endObject();
+		writer.flush();
+	}
+	
+	private static void writeCircuit(JsonWriter writer, CircuitInfo circuit) throws IOException {
+		if(circuit == null) {
+			writer.nullValue();
+			return;
+		}
+		
+		writer.beginObject();
+		writer.name("name").value(circuit.name);
+		
+		writer.name("components");
+		if(circuit.components == null) {
+			writer.nullValue();
+		} else {
+			writer.beginArray();
+			for(ComponentInfo component : circuit.components) {
+				if(component == null) {
+					writer.nullValue();
+					continue;
+				}
+				
+				writer.beginObject();
+				writer.name("name").value(component.name);
+				writer.name("x").value(component.x);
+				writer.name("y").value(component.y);
+				
+				writer.name("properties");
+				if(component.properties == null) {
+					writer.nullValue();
+				} else {
+					writer.beginObject();
+					for(Entry<String, String> property : component.properties.entrySet()) {
+						writer.name(String.valueOf(property.getKey())).value(property.getValue());
+					}
+					writer.endObject();
+				}
+				
+				writer.endObject();
+			}
+			writer.endArray();
+		}
+		
+		writer.name("wires");
+		if(circuit.wires == null) {
+			writer.nullValue();
+		} else {
+			writer.beginArray();
+			for(WireInfo wire : circuit.wires) {
+				if(wire == null) {
+					writer.nullValue();
+					continue;
+				}
+				
+				writer.beginObject();
+				writer.name("x").value(wire.x);
+				writer.name("y").value(wire.y);
+				writer.name("length").value(wire.length);
+				writer.name("isHorizontal").value(wire.isHorizontal);
+				writer.endObject();
+			}
+			writer.endArray();
+		}
+		
+		writer.endObject();
+	}
+	
+	/**
+	 * Reads a CircuitFile one token at a time, without holding the whole document in memory. Repeated strings, like
+	 * the component class names and property keys and values, share a single instance.
+	 *
+	 * @throws JsonSyntaxException If the document is not valid JSON or does not have the expected structure.
+	 */
+	public static CircuitFile read(Reader in) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		reader.setLenient(true);
+		
+		try {
+			CircuitFile circuitFile = new CircuitFileReader(reader).readCircuitFile();
+			if(reader.peek() != JsonToken.END_DOCUMENT) {
+				throw new MalformedJsonException("JSON document was not fully consumed.");
+			}
+			return circuitFile;
+		} catch(MalformedJsonException | EOFException | IllegalStateException | NumberFormatException exc) {
+			throw new JsonSyntaxException(exc);
+		}
+	}
+	
+	private static class CircuitFileReader {
+		private final JsonReader reader;
+		private final Map<String, String> strings = new HashMap<>();
+		
+		CircuitFileReader(JsonReader reader) {
+			this.reader = reader;
+		}
+		
+		private boolean isNull() throws IOException {
+			if(reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return true;
+			}
+			
+			return false;
+		}
+		
+		private String readString() throws IOException {
+			if(isNull()) {
+				return null;
+			}
+			
+			String string = reader.peek() == JsonToken.BOOLEAN ? String.valueOf(reader.nextBoolean())
+			                                                    : reader.nextString();
+			String existing = strings.putIfAbsent(string, string);
+			return existing == null ? string : existing;
+		}
+		
+		private int readInt() throws IOException {
+			return isNull() ? 0 : reader.nextInt();
+		}
+		
+		private boolean readBoolean() throws IOException {
+			if(isNull()) {
+				return false;
+			}
+			
+			return reader.peek() == JsonToken.STRING ? Boolean.parseBoolean(reader.nextString()) : reader.nextBoolean();
+		}
+		
+		CircuitFile readCircuitFile() throws IOException {
+			if(isNull()) {
+				return null;
+			}
+			
+			int globalBitSize = 0;
+			int clockSpeed = 0;
+			List<String> libraryPaths = null;
+			List<CircuitInfo> circuits = null;
+			
+			reader.beginObject();
+			while(reader.hasNext()) {
+				switch(reader.nextName()) {
+					case "globalBitSize":
+						globalBitSize = readInt();
+						break;
+					case "clockSpeed":
+						clockSpeed = readInt();
+						break;
+					case "libraryPaths":
+						if(!isNull()) {
+							libraryPaths = new ArrayList<>();
+							reader.beginArray();
+							while(reader.hasNext()) {
+								libraryPaths.add(readString());
+							}
+							reader.endArray();
+						}
+						break;
+					case "circuits":
+						if(!isNull()) {
+							circuits = new ArrayList<>();
+							reader.beginArray();
+							while(reader.hasNext()) {
+								circuits.add(readCircuit());
+							}
+							reader.endArray();
+						}
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			
+			return new CircuitFile(globalBitSize, clockSpeed, libraryPaths, circuits);
+		}
+		
+		private CircuitInfo readCircuit() throws IOException {
+			if(isNull()) {
+				return null;
+			}
+			
+			String name = null;
+			List<ComponentInfo> components = null;
+			List<WireInfo> wires = null;
+			
+			reader.beginObject();
+			while(reader.hasNext()) {
+				switch(reader.nextName()) {
+					case "name":
+						name = readString();
+						break;
+					case "components":
+						if(!isNull()) {
+							components = new ArrayList<>();
+							reader.beginArray();
+							while(reader.hasNext()) {
+								components.add(readComponent());
+							}
+							reader.endArray();
+						}
+						break;
+					case "wires":
+						if(!isNull()) {
+							wires = new ArrayList<>();
+							reader.beginArray();
+							while(reader.hasNext()) {
+								wires.add(readWire());
+							}
+							reader.endArray();
+						}
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			
+			return new CircuitInfo(name, components, wires);
+		}
+		
+		private ComponentInfo readComponent() throws IOException {
+			if(isNull()) {
+				return null;
+			}
+			
+			String name = null;
+			int x = 0;
+			int y = 0;
+			Map<String, String> properties = null;
+			
+			reader.beginObject();
+			while(reader.hasNext()) {
+				switch(reader.nextName()) {
+					case "name":
+						name = readString();
+						break;
+					case "x":
+						x = readInt();
+						break;
+					case "y":
+						y = readInt();
+						break;
+					case "properties":
+						if(!isNull()) {
+							properties = new HashMap<>();
+							reader.beginObject();
+							while(reader.hasNext()) {
+								String key = reader.nextName();
+								String existing = strings.putIfAbsent(key, key);
+								properties.put(existing == null ? key : existing, readString());
+							}
+							reader.endObject();
+						}
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			
+			return new ComponentInfo(name, x, y, properties);
+		}
+		
+		private WireInfo readWire() throws IOException {
+			if(isNull()) {
+				return null;
+			}
+			
+			int x = 0;
+			int y = 0;
+			int length = 0;
+			boolean isHorizontal = false;
+			
+			reader.beginObject();
+			while(reader.hasNext()) {
+				switch(reader.nextName()) {
+					case "x":
+						x = readInt();
+						break;
+					case "y":
+						y = readInt();
+						break;
+					case "length":
+						length = readInt();
+						break;
+					case "isHorizontal":
+						isHorizontal = readBoolean();
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			
+			return new WireInfo(x, y, length, isHorizontal);
+		}
 	}
 }
@@ -0,0 +1,170 @@
+package com.ra4king.circuitsim.gui.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitFile;
+
+/**
+ * Writes CircuitFiles on a background thread so saving never blocks the caller, one file at a time in the order
+ * they were requested.
+ * <p>
+ * It also autosaves next to the saved file. Each edit pushes the pending autosave back until the edits pause for
+ * {@link #AUTOSAVE_DELAY} ms, but never past {@link #AUTOSAVE_MAX_DELAY} ms after the first unsaved edit. The
+ * autosave is deleted when the file is saved.
+ *
+ * @author Roi Atalla
+ */
+public class SaveService {
+	public static final long AUTOSAVE_DELAY = 2000;
+	public static final long AUTOSAVE_MAX_DELAY = 30000;
+	
+	private final ScheduledExecutorService executor;
+	private final Function<File, CircuitFile> snapshot;
+	private final Executor snapshotExecutor;
+	
+	private ScheduledFuture<?> pendingAutosave;
+	private long firstEditTime;
+	
+	/**
+	 * @param snapshot         Creates the CircuitFile to autosave for the file, or returns null to skip this autosave.
+	 * @param snapshotExecutor Runs the snapshot, such as Platform::runLater when it reads the scene graph.
+	 */
+	public SaveService(Function<File, CircuitFile> snapshot, Executor snapshotExecutor) {
+		this.snapshot = snapshot;
+		this.snapshotExecutor = snapshotExecutor;
+		
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "SaveService");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.executor = executor;
+	}
+	
+	/**
+	 * @return The file autosaves of the file are written to.
+	 */
+	public static File getAutosaveFile(File file) {
+		return new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".autosave");
+	}
+	
+	/**
+	 * Saves the CircuitFile in the background, keeping the format of the file if it exists, then deletes its
+	 * autosave. A pending autosave is cancelled since this save already has its edits.
+	 *
+	 * @return Completes when the file is written, or exceptionally if it could not be.
+	 */
+	public CompletableFuture<Void> save(File file, CircuitFile circuitFile) {
+		cancelAutosave();
+		
+		return CompletableFuture.runAsync(() -> {
+			try {
+				write(file, file, circuitFile);
+				
+				File autosave = getAutosaveFile(file);
+				if(autosave.exists() && !autosave.delete()) {
+					System.err.println("Could not delete autosave " + autosave);
+				}
+			} catch(IOException exc) {
+				throw new UncheckedIOException(exc);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Schedules an autosave of the file, or delays the one already pending.
+	 */
+	public synchronized void scheduleAutosave(File file) {
+		long now = System.currentTimeMillis();
+		
+		if(pendingAutosave == null || !pendingAutosave.cancel(false)) {
+			firstEditTime = now;
+		}
+		
+		long delay = Math.min(AUTOSAVE_DELAY, firstEditTime + AUTOSAVE_MAX_DELAY - now);
+		pendingAutosave = executor.schedule(() -> autosave(file), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void cancelAutosave() {
+		if(pendingAutosave != null) {
+			pendingAutosave.cancel(false);
+			pendingAutosave = null;
+		}
+	}
+	
+	/**
+	 * Cancels the pending autosave and deletes the autosave of the file, for when its edits are thrown away.
+	 */
+	public void discardAutosave(File file) {
+		cancelAutosave();
+		
+		executor.execute(() -> {
+			File autosave = getAutosaveFile(file);
+			if(autosave.exists() && !autosave.delete()) {
+				System.err.println("Could not delete autosave " + autosave);
+			}
+		});
+	}
+	
+	/**
+	 * Cancels the pending autosave and waits a while for the saves already requested to be written.
+	 */
+	public void shutdown() {
+		cancelAutosave();
+		executor.shutdown();
+		
+		try {
+			if(!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				System.err.println("Timed out waiting for saves to finish");
+			}
+		} catch(InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void autosave(File file) {
+		// The snapshot queues the write itself, so this thread never waits on the snapshot executor
+		snapshotExecutor.execute(() -> {
+			CircuitFile circuitFile = snapshot.apply(file);
+			if(circuitFile == null) {
+				return;
+			}
+			
+			try {
+				executor.execute(() -> {
+					try {
+						write(getAutosaveFile(file), file, circuitFile);
+					} catch(Exception exc) {
+						System.err.println("Error autosaving " + file);
+						exc.printStackTrace();
+					}
+				});
+			} catch(RejectedExecutionException exc) {
+				// shut down
+			}
+		});
+	}
+	
+	/**
+	 * Writes the file in the format of the given file, JSON if it does not exist yet.
+	 */
+	private static void write(File file, File formatOf, CircuitFile circuitFile) throws IOException {
+		if(FileFormat.isBinary(formatOf)) {
+			FileFormat.saveBinary(file, circuitFile, true);
+		} else {
+			FileFormat.save(file, circuitFile);
+		}
+	}
+}
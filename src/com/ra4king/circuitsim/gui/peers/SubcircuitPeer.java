@@ -1,6 +1,7 @@
 package com.ra4king.circuitsim.gui.peers;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -13,6 +14,7 @@ import com.ra4king.circuitsim.gui.Properties;
 import com.ra4king.circuitsim.gui.Properties.Direction;
 import com.ra4king.circuitsim.gui.Properties.Property;
 import com.ra4king.circuitsim.gui.peers.wiring.PinPeer;
+import com.ra4king.circuitsim.simulator.Circuit;
 import com.ra4king.circuitsim.simulator.CircuitState;
 import com.ra4king.circuitsim.simulator.SimulationException;
 import com.ra4king.circuitsim.simulator.components.Subcircuit;
@@ -28,6 +30,23 @@ public class SubcircuitPeer extends ComponentPeer<Subcircuit> {
 	public static final String SUBCIRCUIT = "Subcircuit";
 	
 	public SubcircuitPeer(Properties props, int x, int y) {
+		this(props, x, y, getSubcircuitManager(props));
+	}
+	
+	private SubcircuitPeer(Properties props, int x, int y, CircuitManager subcircuitManager) {
+		this(props, x, y, subcircuitManager.getCircuit(), subcircuitManager.getCircuitBoard().getComponents());
+		getProperties().setProperty(props.getProperty(SUBCIRCUIT));
+	}
+	
+	/**
+	 * Creates a peer for the Circuit without its CircuitManager, which is left out of the properties. This is used
+	 * when loading circuits without a CircuitSim.
+	 *
+	 * @param subcircuit The Circuit to instantiate.
+	 * @param components The peers of the Circuit's Components, its PinPeers decide where the connections are.
+	 */
+	public SubcircuitPeer(Properties props, int x, int y, Circuit subcircuit,
+	                      Collection<? extends ComponentPeer<?>> components) {
 		super(x, y, 0, 0);
 		
 		Properties properties = new Properties();
@@ -35,22 +54,26 @@ public class SubcircuitPeer extends ComponentPeer<Subcircuit> {
 		properties.ensureProperty(Properties.LABEL_LOCATION);
 		properties.mergeIfExists(props);
 		
+		initConnections(new Subcircuit(properties.getValue(Properties.LABEL), subcircuit), properties, components);
+	}
+	
+	private static CircuitManager getSubcircuitManager(Properties props) {
 		Property<CircuitManager> subcircuitProperty = props.getProperty(SUBCIRCUIT);
-		properties.setProperty(subcircuitProperty);
-		
-		CircuitManager subcircuitManager = subcircuitProperty.value;
-		if (subcircuitManager == null) {
+		if(subcircuitProperty == null || subcircuitProperty.value == null) {
 			throw new SimulationException("Circuit does not exist");
 		}
-		Subcircuit subcircuit = new Subcircuit(properties.getValue(Properties.LABEL), subcircuitManager.getCircuit());
 		
+		return subcircuitProperty.value;
+	}
+	
+	private void initConnections(Subcircuit subcircuit, Properties properties,
+	                             Collection<? extends ComponentPeer<?>> components) {
 		List<PortConnection> connections = new ArrayList<>();
 		List<PinPeer> pins =
-				subcircuitManager.getCircuitBoard()
-				                 .getComponents().stream()
-				                 .filter(componentPeer -> componentPeer instanceof PinPeer)
-				                 .map(componentPeer -> (PinPeer)componentPeer)
-				                 .collect(Collectors.toList());
+				components.stream()
+				          .filter(componentPeer -> componentPeer instanceof PinPeer)
+				          .map(componentPeer -> (PinPeer)componentPeer)
+				          .collect(Collectors.toList());
 		
 		List<PinPeer> eastPins =
 			pins.stream()
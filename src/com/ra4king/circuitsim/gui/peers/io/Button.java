@@ -47,6 +47,11 @@ public class Button extends ComponentPeer<Component> {
 				state.pushValue(getPort(0), WireValue.of(0, 1));
 			}
 			
+			@Override
+			public boolean isPassive() {
+				return true;
+			}
+			
 			@Override
 			public void valueChanged(CircuitState state, WireValue value, int portIndex) {}
 		};
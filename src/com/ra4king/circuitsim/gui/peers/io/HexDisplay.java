@@ -39,6 +39,11 @@ public class HexDisplay extends ComponentPeer<Component> {
 		properties.mergeIfExists(props);
 		
 		Component component = new Component(properties.getValue(Properties.LABEL), new int[] { 4 }) {
+			@Override
+			public boolean isPassive() {
+				return true;
+			}
+			
 			@Override
 			public void valueChanged(CircuitState state, WireValue value, int portIndex) {}
 		};
@@ -56,6 +56,11 @@ public class LED extends ComponentPeer<Component> {
 		onColor = properties.getValue(ON_COLOR_PROPERTY);
 		
 		Component component = new Component(properties.getValue(Properties.LABEL), new int[] { 1 }) {
+			@Override
+			public boolean isPassive() {
+				return true;
+			}
+			
 			@Override
 			public void valueChanged(CircuitState state, WireValue value, int portIndex) {}
 		};
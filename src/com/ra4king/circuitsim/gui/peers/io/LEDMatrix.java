@@ -56,6 +56,11 @@ public class LEDMatrix extends ComponentPeer<Component> {
 		Arrays.fill(bitsizes, cols);
 		
 		Component component = new Component(properties.getValue(Properties.LABEL), bitsizes) {
+			@Override
+			public boolean isPassive() {
+				return true;
+			}
+			
 			@Override
 			public void valueChanged(CircuitState state, WireValue value, int portIndex) {}
 		};
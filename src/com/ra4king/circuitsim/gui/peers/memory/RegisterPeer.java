@@ -95,7 +95,7 @@ public class RegisterPeer extends ComponentPeer<Register> {
 					value = Character.toUpperCase(c) - 'A' + 10;
 				}
 				
-				WireValue currentValue = state.getLastPushed(getComponent().getPort(Register.PORT_OUT));
+				WireValue currentValue = new WireValue(state.getLastPushed(getComponent().getPort(Register.PORT_OUT)));
 				WireValue typedValue = WireValue.of(value, Math.min(4, currentValue.getBitSize()));
 				if(typedValue.getValue() != value) {
 					typedValue.setAllBits(State.ZERO); // to prevent typing '9' on a 3-bit value, producing 1
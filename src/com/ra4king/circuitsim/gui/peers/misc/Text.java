@@ -61,7 +61,7 @@ public class Text extends ComponentPeer<Component> {
 		this.text = text;
 		this.lines = Arrays.asList(text.split("\n", -1));
 		
-		Bounds bounds = GuiUtils.getBounds(GuiUtils.getFont(13), text, false);
+		Bounds bounds = GuiUtils.getBounds(13, text, false);
 		setWidth(Math.max(2, (int)Math.ceil(bounds.getWidth() / GuiUtils.BLOCK_SIZE)));
 		setHeight(Math.max(2, (int)Math.ceil(bounds.getHeight() / GuiUtils.BLOCK_SIZE)));
 	}
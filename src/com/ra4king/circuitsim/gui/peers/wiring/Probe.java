@@ -44,6 +44,11 @@ public class Probe extends ComponentPeer<Component> {
 		
 		Component probe = new Component(properties.getValue(Properties.LABEL),
 		                                new int[] { bitSize }) {
+			@Override
+			public boolean isPassive() {
+				return true;
+			}
+			
 			@Override
 			public void valueChanged(CircuitState state, WireValue value, int portIndex) {}
 		};
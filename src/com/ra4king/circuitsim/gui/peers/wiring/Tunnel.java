@@ -1,11 +1,7 @@
 package com.ra4king.circuitsim.gui.peers.wiring;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import com.ra4king.circuitsim.gui.ComponentManager.ComponentManagerInterface;
 import com.ra4king.circuitsim.gui.ComponentPeer;
@@ -14,11 +10,7 @@ import com.ra4king.circuitsim.gui.GuiUtils;
 import com.ra4king.circuitsim.gui.Properties;
 import com.ra4king.circuitsim.gui.Properties.Direction;
 import com.ra4king.circuitsim.gui.Properties.Property;
-import com.ra4king.circuitsim.simulator.Circuit;
 import com.ra4king.circuitsim.simulator.CircuitState;
-import com.ra4king.circuitsim.simulator.Component;
-import com.ra4king.circuitsim.simulator.Port;
-import com.ra4king.circuitsim.simulator.WireValue;
 
 import javafx.geometry.Bounds;
 import javafx.scene.canvas.GraphicsContext;
@@ -29,16 +21,14 @@ import javafx.util.Pair;
 /**
  * @author Roi Atalla
  */
-public class Tunnel extends ComponentPeer<Component> {
-	private static Map<Circuit, Map<String, Set<Tunnel>>> tunnels = new HashMap<>();
-	
+public class Tunnel extends ComponentPeer<com.ra4king.circuitsim.simulator.components.wiring.Tunnel> {
 	public static void installComponent(ComponentManagerInterface manager) {
 		manager.addComponent(new Pair<>("Wiring", "Tunnel"),
 		                     new Image(Tunnel.class.getResourceAsStream("/resources/Tunnel.png")),
 		                     new Properties(new Property<>(Properties.DIRECTION, Direction.WEST)));
 	}
 	
-	private final Component tunnel;
+	private final com.ra4king.circuitsim.simulator.components.wiring.Tunnel tunnel;
 	private final String label;
 	private final int bitSize;
 	
@@ -54,139 +44,10 @@ public class Tunnel extends ComponentPeer<Component> {
 		label = properties.getValue(Properties.LABEL);
 		bitSize = properties.getValue(Properties.BITSIZE);
 		
-		Bounds bounds = GuiUtils.getBounds(GuiUtils.getFont(13), label);
+		Bounds bounds = GuiUtils.getBounds(13, label, true);
 		setWidth(Math.max((int)Math.ceil(bounds.getWidth() / GuiUtils.BLOCK_SIZE), 1));
 		
-		tunnel = new Component(label, new int[] { bitSize }) {
-			@Override
-			public void setCircuit(Circuit circuit) {
-				Circuit oldCircuit = getCircuit();
-				
-				super.setCircuit(circuit);
-				
-				if(label.isEmpty()) {
-					return;
-				}
-				
-				if(circuit != null) {
-					Map<String, Set<Tunnel>> tunnelSet = tunnels.computeIfAbsent(circuit, l -> new HashMap<>());
-					Set<Tunnel> toNotify = tunnelSet.computeIfAbsent(label, c -> new HashSet<>());
-					toNotify.add(Tunnel.this);
-				} else {
-					Map<String, Set<Tunnel>> tunnelSet = tunnels.get(oldCircuit);
-					if(tunnelSet != null) {
-						Set<Tunnel> toNotify = tunnelSet.get(label);
-						if(toNotify != null) {
-							toNotify.remove(Tunnel.this);
-							
-							if(toNotify.isEmpty()) {
-								tunnelSet.remove(label);
-								
-								if(tunnelSet.isEmpty()) {
-									tunnels.remove(oldCircuit);
-								}
-							}
-						}
-					}
-				}
-			}
-			
-			@Override
-			public void init(CircuitState state, Object lastProperty) {
-				if(label.isEmpty()) {
-					return;
-				}
-				
-				Map<String, Set<Tunnel>> tunnelSet = tunnels.get(getCircuit());
-				if(tunnelSet != null) {
-					Set<Tunnel> toNotify = tunnelSet.get(label);
-					WireValue value = new WireValue(bitSize);
-					
-					for(Tunnel tunnel : toNotify) {
-						if(tunnel != Tunnel.this) {
-							Port port = tunnel.getComponent().getPort(0);
-							WireValue portValue = state.getLastReceived(port);
-							if(portValue.getBitSize() == value.getBitSize()) {
-								try {
-									value.merge(portValue);
-								} catch(Exception exc) {
-									return; // nothing to push, it's a short circuit
-								}
-							}
-						}
-					}
-					
-					state.pushValue(getPort(0), value);
-				}
-			}
-			
-			@Override
-			public void uninit(CircuitState state) {
-				Map<String, Set<Tunnel>> tunnelSet = tunnels.get(getCircuit());
-				if(tunnelSet != null) {
-					Set<Tunnel> toNotify = tunnelSet.get(label);
-					if(toNotify != null) {
-						tunnels:
-						for(Tunnel tunnel : toNotify) {
-							if(tunnel.bitSize == bitSize) {
-								WireValue combined = new WireValue(bitSize);
-								
-								for(Tunnel otherTunnel : toNotify) {
-									if(tunnel != otherTunnel && otherTunnel != Tunnel.this) {
-										Port port = otherTunnel.getComponent().getPort(0);
-										WireValue portValue = state.getLastReceived(port);
-										if(portValue.getBitSize() == combined.getBitSize()) {
-											try {
-												combined.merge(portValue);
-											} catch(Exception exc) {
-												continue tunnels;
-											}
-										}
-									}
-								}
-								
-								state.pushValue(tunnel.getComponent().getPort(0), combined);
-							}
-						}
-					}
-				}
-			}
-			
-			@Override
-			public void valueChanged(CircuitState state, WireValue value, int portIndex) {
-				Map<String, Set<Tunnel>> tunnelSet = tunnels.get(getCircuit());
-				if(tunnelSet != null && tunnelSet.containsKey(label)) {
-					Set<Tunnel> toNotify = tunnelSet.get(label);
-					
-					tunnels:
-					for(Tunnel tunnel : toNotify) {
-						if(tunnel != Tunnel.this && tunnel.bitSize == bitSize) {
-							WireValue combined = value;
-							
-							if(toNotify.size() > 2) {
-								combined = new WireValue(bitSize);
-								
-								for(Tunnel otherTunnel : toNotify) {
-									if(tunnel != otherTunnel) {
-										Port port = otherTunnel.getComponent().getPort(0);
-										WireValue portValue = state.getLastReceived(port);
-										if(portValue.getBitSize() == combined.getBitSize()) {
-											try {
-												combined.merge(portValue);
-											} catch(Exception exc) {
-												continue tunnels;
-											}
-										}
-									}
-								}
-							}
-							
-							state.pushValue(tunnel.getComponent().getPort(0), combined);
-						}
-					}
-				}
-			}
-		};
+		tunnel = new com.ra4king.circuitsim.simulator.components.wiring.Tunnel(label, bitSize);
 		
 		List<PortConnection> connections = new ArrayList<>();
 		switch(properties.getValue(Properties.DIRECTION)) {
@@ -214,12 +75,9 @@ public class Tunnel extends ComponentPeer<Component> {
 	}
 	
 	private boolean isIncompatible() {
-		Map<String, Set<Tunnel>> tunnelSet = tunnels.get(tunnel.getCircuit());
-		if(tunnelSet != null && tunnelSet.containsKey(label)) {
-			for(Tunnel tunnel : tunnelSet.get(label)) {
-				if(tunnel.bitSize != bitSize) {
-					return true;
-				}
+		for(com.ra4king.circuitsim.simulator.components.wiring.Tunnel other : tunnel.getLinkedTunnels()) {
+			if(other.getBitSize() != bitSize) {
+				return true;
 			}
 		}
 		
@@ -1,12 +1,19 @@
 package com.ra4king.circuitsim.simulator;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 
+import com.ra4king.circuitsim.simulator.Port.Link;
+
 /**
  * @author Roi Atalla
  */
@@ -20,6 +27,8 @@ public class Circuit {
 	
 	private final Queue<CircuitChangeListener> listeners = new ConcurrentLinkedQueue<>();
 	
+	private boolean levelized;
+	
 	/**
 	 * Creates a new Circuit. It is added to the Simulator's list of circuits.
 	 *
@@ -66,6 +75,7 @@ public class Circuit {
 			
 			component.setCircuit(this);
 			components.add(component);
+			levelized = false;
 			states.forEach(state -> {
 				try {
 					component.init(state, state.getComponentProperty(component));
@@ -122,6 +132,7 @@ public class Circuit {
 			
 			newComponent.setCircuit(this);
 			components.add(newComponent);
+			levelized = false;
 			states.forEach(state -> {
 				try {
 					newComponent.init(state, state.getComponentProperty(oldComponent));
@@ -157,6 +168,7 @@ public class Circuit {
 			states.forEach(state -> state.ensureUnlinked(component, true));
 			
 			components.remove(component);
+			levelized = false;
 			states.forEach(state -> {
 				try {
 					component.uninit(state);
@@ -193,6 +205,106 @@ public class Circuit {
 		return simulator;
 	}
 	
+	void invalidateLevels() {
+		levelized = false;
+	}
+	
+	/**
+	 * Ranks the Components of this Circuit by combinational depth and stores in each Link the highest rank of the
+	 * Components driving it, so that the Simulator can propagate a Link only after everything feeding it has settled.
+	 * <p>
+	 * Components do not declare which of their ports are outputs, so a Port is considered driving once it has pushed
+	 * a value. A Component whose ports all drive, such as a Splitter, reads all of them too. Cycles, which only appear
+	 * through feedback or such bidirectional Components, are broken at an arbitrary Component.
+	 */
+	void levelize() {
+		if(levelized) {
+			return;
+		}
+		
+		levelized = true;
+		
+		List<Component> componentList = new ArrayList<>(components);
+		Map<Component, Integer> indices = new HashMap<>();
+		Set<Link> links = new HashSet<>();
+		boolean[] allDriving = new boolean[componentList.size()];
+		for(int i = 0; i < componentList.size(); i++) {
+			Component component = componentList.get(i);
+			indices.put(component, i);
+			
+			allDriving[i] = true;
+			for(int p = 0; p < component.getNumPorts(); p++) {
+				Port port = component.getPort(p);
+				links.add(port.getLink());
+				allDriving[i] &= port.drives;
+			}
+		}
+		
+		List<List<Integer>> successors = new ArrayList<>();
+		componentList.forEach(component -> successors.add(new ArrayList<>()));
+		int[] inDegree = new int[componentList.size()];
+		
+		for(Link link : links) {
+			for(Port driver : link.getParticipants()) {
+				if(!driver.drives) {
+					continue;
+				}
+				
+				int from = indices.get(driver.getComponent());
+				for(Port reader : link.getParticipants()) {
+					int to = indices.get(reader.getComponent());
+					if(to != from && (!reader.drives || allDriving[to])) {
+						successors.get(from).add(to);
+						inDegree[to]++;
+					}
+				}
+			}
+		}
+		
+		int[] levels = new int[componentList.size()];
+		boolean[] ranked = new boolean[componentList.size()];
+		ArrayDeque<Integer> ready = new ArrayDeque<>();
+		for(int i = 0; i < inDegree.length; i++) {
+			if(inDegree[i] == 0) {
+				ready.add(i);
+			}
+		}
+		
+		int next = 0;
+		for(int count = 0; count < componentList.size(); count++) {
+			// Only cycles are left, break one at the next unranked Component
+			if(ready.isEmpty()) {
+				while(ranked[next]) {
+					next++;
+				}
+				
+				inDegree[next] = 0;
+				ready.add(next);
+			}
+			
+			int from = ready.poll();
+			ranked[from] = true;
+			
+			for(int to : successors.get(from)) {
+				if(!ranked[to]) {
+					levels[to] = Math.max(levels[to], levels[from] + 1);
+					if(--inDegree[to] == 0) {
+						ready.add(to);
+					}
+				}
+			}
+		}
+		
+		for(Link link : links) {
+			link.level = 0;
+			for(Port port : link.getParticipants()) {
+				if(port.drives) {
+					link.level = Math.max(link.level, levels[indices.get(port.getComponent())]);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Returns the top-level state of this Circuit. Each Circuit has a top-level state.
 	 *
@@ -1,8 +1,13 @@
 package com.ra4king.circuitsim.simulator;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 
 import com.ra4king.circuitsim.simulator.Port.Link;
@@ -15,6 +20,17 @@ public class CircuitState {
 	
 	private final boolean readOnly;
 	
+	// Incremented on every change, each LinkState holds the count of its own last change
+	private long modCount;
+	
+	private volatile CircuitState snapshot;
+	private volatile boolean snapshotRequested;
+	
+	// What changed since the last snapshot, only recorded once there is a snapshot to update
+	private boolean trackChanges;
+	private final List<LinkState> changedLinks = new ArrayList<>();
+	private final Set<Component> changedProperties = new HashSet<>();
+	
 	/**
 	 * Create a new CircuitState based on the given Circuit. It is added to the Circuit's list of states.
 	 *
@@ -43,12 +59,137 @@ public class CircuitState {
 	public CircuitState(CircuitState state) {
 		this.readOnly = true;
 		
-		state.circuit.getSimulator().runSync(() -> {
-			this.circuit = state.circuit;
-			this.componentProperties = new HashMap<>(state.componentProperties);
-			this.linkStates = new HashMap<>();
-			state.linkStates.forEach((link, linkState) -> this.linkStates.put(link, new LinkState(linkState)));
-		});
+		state.circuit.getSimulator().runSync(() -> copy(state, null));
+	}
+	
+	// Must be called with the Simulator lock held
+	private CircuitState(CircuitState state, CircuitState previous) {
+		this.readOnly = true;
+		
+		copy(state, previous);
+	}
+	
+	/**
+	 * Copies the state into persistent maps. Given the previous snapshot of the state, only the links and properties
+	 * that changed since are copied into its maps, sharing everything else with it.
+	 */
+	@SuppressWarnings("unchecked")
+	private void copy(CircuitState state, CircuitState previous) {
+		this.circuit = state.circuit;
+		this.modCount = state.modCount;
+		
+		PersistentMap<Component, Object> properties;
+		PersistentMap<Link, LinkState> links;
+		if(previous == null) {
+			properties = PersistentMap.empty();
+			for(Map.Entry<Component, Object> entry : state.componentProperties.entrySet()) {
+				properties = properties.with(entry.getKey(), entry.getValue());
+			}
+			
+			links = PersistentMap.empty();
+			for(LinkState linkState : state.linkStates.values()) {
+				links = links.with(linkState.link, copy(linkState));
+			}
+		} else {
+			properties = (PersistentMap<Component, Object>)previous.componentProperties;
+			for(Component component : state.changedProperties) {
+				properties = state.componentProperties.containsKey(component)
+				             ? properties.with(component, state.componentProperties.get(component))
+				             : properties.without(component);
+			}
+			
+			links = (PersistentMap<Link, LinkState>)previous.linkStates;
+			for(LinkState linkState : state.changedLinks) {
+				LinkState current = state.linkStates.get(linkState.link);
+				if(current == null) {
+					links = links.without(linkState.link);
+				} else if(current == linkState) {
+					links = links.with(linkState.link, copy(linkState));
+				}
+				// Otherwise it was replaced by a LinkState that changed too
+			}
+		}
+		
+		this.componentProperties = properties;
+		this.linkStates = links;
+	}
+	
+	private LinkState copy(LinkState linkState) {
+		// Copies are never modified, so their merged value must already be up to date
+		linkState.updateMergedValue();
+		return new LinkState(linkState);
+	}
+	
+	/**
+	 * Get an immutable read-only copy of this CircuitState, so the values can be read, such as to paint them, without
+	 * holding the Simulator lock while the simulation goes on. Only what changed since the previous snapshot is
+	 * copied, the copies of everything else are shared with it, and the previous snapshot itself is returned if
+	 * nothing changed.
+	 * <p>
+	 * Instead of waiting for another thread that is using the Simulator, the previous snapshot is returned and a new
+	 * one is published when that thread finishes its next stepAll.
+	 *
+	 * @return A read-only snapshot of this CircuitState, or this if it is read-only.
+	 */
+	public CircuitState getSnapshot() {
+		if(readOnly) {
+			return this;
+		}
+		
+		Simulator simulator = circuit.getSimulator();
+		Lock lock = simulator.getLock();
+		
+		CircuitState snapshot = this.snapshot;
+		if(snapshot == null) {
+			lock.lock();
+		} else if(!lock.tryLock()) {
+			if(!snapshotRequested) {
+				snapshotRequested = true;
+				simulator.requestSnapshot(this);
+			}
+			
+			return snapshot;
+		}
+		
+		try {
+			return updateSnapshot();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Compares this snapshot to an earlier snapshot of the same CircuitState, such as to only repaint what changed.
+	 *
+	 * @param snapshot The earlier snapshot.
+	 * @param link     The Link to compare.
+	 * @return false if the values of the Link are the same in both snapshots, true if they may differ.
+	 */
+	public boolean isChangedSince(CircuitState snapshot, Link link) {
+		LinkState current = linkStates.get(link);
+		LinkState previous = snapshot.linkStates.get(link);
+		if(current == null || previous == null) {
+			return current != previous;
+		}
+		
+		return current.version != previous.version;
+	}
+	
+	// Must be called with the Simulator lock held
+	CircuitState updateSnapshot() {
+		snapshotRequested = false;
+		
+		CircuitState snapshot = this.snapshot;
+		if(snapshot == null || snapshot.modCount != modCount) {
+			this.snapshot = snapshot = new CircuitState(this, snapshot);
+			
+			trackChanges = true;
+			changedLinks.forEach(linkState -> linkState.changed = false);
+			changedLinks.clear();
+			changedProperties.clear();
+		}
+		
+		return snapshot;
 	}
 	
 	public Circuit getCircuit() {
@@ -65,14 +206,24 @@ public class CircuitState {
 	
 	public void putComponentProperty(Component component, Object property) {
 		componentProperties.put(component, property);
+		propertyChanged(component);
 	}
 	
 	public Object removeComponentProperty(Component component) {
+		propertyChanged(component);
 		return componentProperties.remove(component);
 	}
 	
+	private void propertyChanged(Component component) {
+		modCount++;
+		if(trackChanges) {
+			changedProperties.add(component);
+		}
+	}
+	
 	/**
 	 * Get the current true value on the Link, which is the merging of all pushed values.
+	 * The returned value is a read-only view that is updated in place by the simulation.
 	 *
 	 * @param link The Link for which the value is returned.
 	 * @return The value of the Link.
@@ -83,22 +234,32 @@ public class CircuitState {
 	
 	/**
 	 * Get the last value received by this Port.
+	 * The returned value is a read-only view that is updated in place by the simulation.
 	 *
 	 * @param port The Port for which the last received value is returned.
 	 * @return The last received value of the Port.
 	 */
 	public WireValue getLastReceived(Port port) {
-		return new WireValue(get(port.getLink()).getLastReceived(port));
+		return get(port.getLink()).getLastReceived(port);
 	}
 	
 	/**
-	 * Get the last value pushed by this Port.
+	 * Get the last value pushed by this Port, including a value still queued because another thread was using the
+	 * Simulator, so a read-modify-write of the value does not lose an earlier write.
+	 * The returned value is a read-only view that is updated in place by the simulation.
 	 *
 	 * @param port The Port for which the last pushed value is returned.
 	 * @return The last pushed value of the Port.
 	 */
 	public WireValue getLastPushed(Port port) {
-		return new WireValue(get(port.getLink()).getLastPushed(port));
+		if(!readOnly) {
+			WireValue pending = circuit.getSimulator().getPendingValue(this, port);
+			if(pending != null) {
+				return pending;
+			}
+		}
+		
+		return get(port.getLink()).getLastPushed(port);
 	}
 	
 	public boolean isShortCircuited(Link link) {
@@ -110,6 +271,8 @@ public class CircuitState {
 	 * Each Component's {@code uninit(this)} then {@code init(this, null)} methods are called.
 	 */
 	public void reset() {
+		Simulator simulator = circuit.getSimulator();
+		simulator.runSync(() -> linkStates.values().forEach(simulator::linkRemoved));
 		linkStates.putAll(linkStates.keySet().stream().collect(Collectors.toMap(link -> link, LinkState::new)));
 		
 		circuit.getComponents().forEach(c -> {
@@ -122,7 +285,7 @@ public class CircuitState {
 		});
 	}
 	
-	private LinkState get(Link link) {
+	LinkState get(Link link) {
 		if(!linkStates.containsKey(link)) {
 			if(link.getCircuit() == null) {
 				throw new IllegalArgumentException("Link has no circuit!");
@@ -132,8 +295,11 @@ public class CircuitState {
 				throw new IllegalArgumentException("Link not from this circuit.");
 			}
 			
+			// Snapshots are shared between threads, so they are not modified even to cache an empty link
 			LinkState linkState = new LinkState(link);
-			linkStates.put(link, linkState);
+			if(!readOnly) {
+				linkStates.put(link, linkState);
+			}
 			return linkState;
 		}
 		
@@ -148,25 +314,26 @@ public class CircuitState {
 		circuit.getSimulator().runSync(() -> get(link).unlink(port));
 	}
 	
-	void propagateSignal(Link link) {
-		LinkState linkState = get(link);
-		
-		linkState.participants.forEach((port, info) -> {
-			WireValue lastMerged = info.lastMerged;
-			WireValue lastPushed = info.lastPushed;
-			
-			if(!lastMerged.equals(lastPushed)) {
-				linkState.cachedMergedValue = null;
-				linkState.isShortCircuited = null;
-				lastMerged.set(lastPushed);
+	/**
+	 * @return false if the Link is short circuited.
+	 */
+	boolean propagateSignal(LinkState linkState) {
+		for(PortStateInfo info : linkState.getInfos()) {
+			if(!info.lastMerged.equals(info.lastPushed)) {
+				linkState.modified();
+				linkState.mergedValid = false;
+				linkState.drivers.replace(info.lastMerged, info.lastPushed);
+				info.lastMerged.set(info.lastPushed);
 			}
-		});
+		}
 		
-		linkState.propagate();
+		return linkState.propagate();
 	}
 	
 	/**
 	 * Push a new value from the specified Port. The Simulator instance attached to the Circuit is notified.
+	 * If the Simulator is timed, the value is pushed once the delay of the Port's Component has passed. If another
+	 * thread is using the Simulator, the value is queued and pushed as soon as that thread is done.
 	 * An IllegalStateException is thrown if this CircuitState is read-only.
 	 *
 	 * @param port  The Port pushing the value.
@@ -177,14 +344,49 @@ public class CircuitState {
 			throw new IllegalStateException("This CircuitState is read-only");
 		}
 		
+		circuit.getSimulator().pushValue(this, port, value);
+	}
+	
+	void applyPush(Port port, WireValue value) {
+		LinkState linkState = get(port.getLink());
+		
+		if(!port.drives) {
+			port.drives = true;
+			circuit.invalidateLevels();
+		}
+		
+		WireValue lastPushed = linkState.getLastPushed(port);
+		if(!value.equals(lastPushed)) {
+			lastPushed.assign(value);
+			linkState.modified();
+			circuit.getSimulator().queue(linkState);
+		}
+	}
+	
+	/**
+	 * Overwrite the last pushed and received values of the specified Port without notifying the Simulator or any
+	 * Component. This is used to publish values computed outside of this CircuitState, such as by a compiled
+	 * Netlist. An IllegalStateException is thrown if this CircuitState is read-only.
+	 *
+	 * @param port     The Port whose values are overwritten.
+	 * @param pushed   The value the Port is pushing.
+	 * @param received The value the Port is receiving.
+	 */
+	public void loadValues(Port port, WireValue pushed, WireValue received) {
+		if(readOnly) {
+			throw new IllegalStateException("This CircuitState is read-only");
+		}
+		
 		circuit.getSimulator().runSync(() -> {
 			LinkState linkState = get(port.getLink());
+			PortStateInfo info = linkState.participants.get(port);
 			
-			WireValue lastPushed = linkState.getLastPushed(port);
-			if(!value.equals(lastPushed)) {
-				lastPushed.set(value);
-				circuit.getSimulator().valueChanged(this, port);
-			}
+			linkState.modified();
+			linkState.mergedValid = false;
+			linkState.drivers.replace(info.lastMerged, pushed);
+			info.lastMerged.set(pushed);
+			info.lastPushed.assign(pushed);
+			info.lastReceived.assign(received);
 		});
 	}
 	
@@ -197,52 +399,126 @@ public class CircuitState {
 			}
 			
 			if(removeLinks) {
-				linkStates.remove(link);
-				circuit.getSimulator().linkRemoved(link);
+				LinkState linkState = linkStates.get(link);
+				if(linkState != null) {
+					remove(linkState);
+				}
 			}
 		}
 	}
 	
+	private void remove(LinkState linkState) {
+		linkStates.remove(linkState.link);
+		linkState.modified();
+		circuit.getSimulator().linkRemoved(linkState);
+	}
+	
+	static class PortStateInfo {
+		final Port port;
+		final WireValue lastPushed;
+		final WireValue lastMerged;
+		final WireValue lastReceived;
+		
+		PortStateInfo(Port port, int bitSize) {
+			this(port, new WireValue(bitSize), new WireValue(bitSize), new WireValue(bitSize));
+		}
+		
+		PortStateInfo(PortStateInfo info) {
+			this(info.port, new WireValue(info.lastPushed), new WireValue(info.lastMerged),
+			     new WireValue(info.lastReceived));
+		}
+		
+		PortStateInfo(Port port, WireValue lastPushed, WireValue lastMerged, WireValue lastReceived) {
+			this.port = port;
+			this.lastPushed = lastPushed.makeReadOnly();
+			this.lastMerged = lastMerged;
+			this.lastReceived = lastReceived.makeReadOnly();
+		}
+	}
+	
 	class LinkState {
 		final Link link;
 		final HashMap<Port, PortStateInfo> participants;
-		WireValue cachedMergedValue;
-		Boolean isShortCircuited;
-		
-		class PortStateInfo {
-			WireValue lastPushed;
-			WireValue lastMerged;
-			WireValue lastReceived;
-			
-			PortStateInfo() {
-				this(new WireValue(link.getBitSize()),
-				     new WireValue(link.getBitSize()),
-				     new WireValue(link.getBitSize()));
-			}
-			
-			PortStateInfo(PortStateInfo info) {
-				this(new WireValue(info.lastPushed),
-				     new WireValue(info.lastMerged),
-				     new WireValue(info.lastReceived));
-			}
-			
-			PortStateInfo(WireValue lastPushed, WireValue lastMerged, WireValue lastReceived) {
-				this.lastPushed = lastPushed;
-				this.lastMerged = lastMerged;
-				this.lastReceived = lastReceived;
-			}
-		}
+		
+		// Dense copy of participants.values() and scratch space sized to match, rebuilt when participants change
+		private PortStateInfo[] infos;
+		private int[] toNotify;
+		
+		// Counts of the lastMerged values of all participants
+		final DriverCounts drivers;
+		
+		private final WireValue incomingValue;
+		// Only up to date while mergedValid, conflicting bits are ONE in mergedValue while short circuited
+		private final WireValue mergedValue;
+		boolean mergedValid;
+		private boolean isShortCircuited;
+		
+		// Index in the Simulator's LinkQueue of queueLevel, -1 when not queued
+		int queueIndex = -1;
+		int queueLevel;
+		
+		// Random, so that the Simulator can tell sets of queued links apart by the sum of their fingerprints
+		final long fingerprint = ThreadLocalRandom.current().nextLong();
+		
+		// The modCount of the CircuitState at the last change, compared to tell whether copies are up to date
+		long version;
+		// Whether it is in changedLinks
+		boolean changed;
 		
 		LinkState(Link link) {
 			this.link = link;
 			participants = new HashMap<>();
-			link.getParticipants().forEach(port -> participants.put(port, new PortStateInfo()));
+			link.getParticipants().forEach(port -> participants.put(port, new PortStateInfo(port, link.getBitSize())));
+			
+			drivers = new DriverCounts(link.getBitSize());
+			incomingValue = new WireValue(link.getBitSize());
+			mergedValue = new WireValue(link.getBitSize()).makeReadOnly();
+			
+			if(!readOnly) {
+				modified();
+			}
 		}
 		
 		LinkState(LinkState linkState) {
 			link = linkState.link;
 			participants = new HashMap<>();
 			linkState.participants.forEach((port, info) -> participants.put(port, new PortStateInfo(info)));
+			
+			drivers = new DriverCounts(linkState.drivers);
+			incomingValue = new WireValue(link.getBitSize());
+			mergedValue = new WireValue(linkState.mergedValue).makeReadOnly();
+			mergedValid = linkState.mergedValid;
+			isShortCircuited = linkState.isShortCircuited;
+			version = linkState.version;
+		}
+		
+		void modified() {
+			version = ++modCount;
+			
+			if(trackChanges && !changed) {
+				changed = true;
+				changedLinks.add(this);
+			}
+		}
+		
+		CircuitState getCircuitState() {
+			return CircuitState.this;
+		}
+		
+		PortStateInfo[] getInfos() {
+			if(infos == null) {
+				infos = participants.values().toArray(new PortStateInfo[participants.size()]);
+				toNotify = new int[infos.length];
+			}
+			
+			return infos;
+		}
+		
+		void addParticipant(Port port, PortStateInfo info) {
+			modified();
+			participants.put(port, info);
+			drivers.add(info.lastMerged);
+			infos = null;
 		}
 		
 		WireValue getLastPushed(Port port) {
@@ -257,74 +533,89 @@ public class CircuitState {
 			return participants.get(port).lastReceived;
 		}
 		
-		WireValue getIncomingValue(Port port) {
-			WireValue newValue = new WireValue(link.getBitSize());
-			participants.forEach((p, info) -> {
-				if(p != port) {
-					newValue.merge(info.lastMerged);
-				}
-			});
-			return newValue;
+		/**
+		 * Merges the values of all participants except the given one into the incomingValue scratch buffer.
+		 * If participant is null, all participants are merged.
+		 *
+		 * @return The merged value, or null if the values conflict.
+		 */
+		private WireValue getIncomingValue(PortStateInfo participant) {
+			if(!drivers.resolve(participant == null ? null : participant.lastMerged, incomingValue)) {
+				return null;
+			}
+			return incomingValue;
+		}
+		
+		private void updateMergedValue() {
+			if(!mergedValid) {
+				isShortCircuited = !drivers.resolve(null, incomingValue);
+				mergedValue.assign(incomingValue);
+				mergedValid = true;
+			}
 		}
 		
 		WireValue getMergedValue() {
-			if(cachedMergedValue != null) return cachedMergedValue;
-			
-			WireValue newValue = new WireValue(link.getBitSize());
-			participants.values().forEach(info -> newValue.merge(info.lastMerged));
+			updateMergedValue();
 			
-			cachedMergedValue = new WireValue(newValue);
-			isShortCircuited = null;
+			if(isShortCircuited) {
+				throw getShortCircuit();
+			}
 			
-			return newValue;
+			return mergedValue;
 		}
 		
 		boolean isShortCircuit() {
-			try {
-				if(isShortCircuited != null) return isShortCircuited;
-				
-				getMergedValue();
-				return isShortCircuited = false;
-			} catch(ShortCircuitException exc) {
-				return isShortCircuited = true;
-			} catch(Throwable t) {
-				return isShortCircuited = false;
-			}
+			updateMergedValue();
+			return isShortCircuited;
 		}
 		
-		void propagate() {
-			Map<Port, WireValue> toNotify = new HashMap<>();
+		/**
+		 * Only meant for reporting, short circuits are detected with isShortCircuit.
+		 */
+		ShortCircuitException getShortCircuit() {
+			return new ShortCircuitException(drivers.getDriven(State.ONE), drivers.getDriven(State.ZERO));
+		}
+		
+		/**
+		 * Participants whose incoming value has conflicting bits keep their last received value.
+		 *
+		 * @return false if the Link is short circuited.
+		 */
+		boolean propagate() {
+			PortStateInfo[] infos = getInfos();
+			int[] toNotify = this.toNotify;
+			int notifyCount = 0;
 			
-			ShortCircuitException shortCircuit = null;
+			boolean shortCircuit = false;
 			
-			for(Port participantPort : participants.keySet()) {
-				WireValue incomingValue;
-				try {
-					incomingValue = getIncomingValue(participantPort);
-				} catch(ShortCircuitException exc) {
-					shortCircuit = exc;
+			for(int i = 0; i < infos.length; i++) {
+				WireValue incomingValue = getIncomingValue(infos[i]);
+				if(incomingValue == null) {
+					shortCircuit = true;
 					continue;
 				}
 				
-				WireValue lastReceived = getLastReceived(participantPort);
+				WireValue lastReceived = infos[i].lastReceived;
 				if(!lastReceived.equals(incomingValue)) {
-					lastReceived.set(incomingValue);
-					toNotify.put(participantPort, incomingValue);
+					lastReceived.assign(incomingValue);
+					toNotify[notifyCount++] = i;
 				}
 			}
 			
+			if(notifyCount > 0) {
+				modified();
+			}
+			
 			RuntimeException exception = null;
 			
-			for(Entry<Port, WireValue> entry : toNotify.entrySet()) {
-				Port participantPort = entry.getKey();
-				WireValue incomingValue = entry.getValue();
+			for(int i = 0; i < notifyCount; i++) {
+				PortStateInfo info = infos[toNotify[i]];
 				
 				try {
-					participantPort.getComponent().valueChanged(CircuitState.this,
-					                                            incomingValue,
-					                                            participantPort.getPortIndex());
+					info.port.getComponent().valueChanged(CircuitState.this, info.lastReceived,
+					                                      info.port.getPortIndex());
 				} catch(ShortCircuitException exc) {
-					shortCircuit = exc;
+					shortCircuit = true;
 				} catch(RuntimeException exc) {
 					exc.printStackTrace();
 					
@@ -339,56 +630,55 @@ public class CircuitState {
 				throw exception;
 			}
 			
-			if(shortCircuit != null) {
-				throw shortCircuit;
-			}
-			
-			getMergedValue(); // check for short circuit
+			return !shortCircuit && !isShortCircuit();
 		}
 		
 		void link(LinkState other) {
 			if(this == other) return;
 			
+			modified();
 			participants.putAll(other.participants);
+			infos = null;
 			
-			cachedMergedValue = null;
-			isShortCircuited = null;
+			mergedValid = false;
 			participants.forEach((port, info) -> info.lastMerged.setAllBits(State.X));
+			drivers.clear();
 			
-			linkStates.remove(other.link);
-			getCircuit().getSimulator().linkRemoved(other.link);
+			remove(other);
 			
-			getCircuit().getSimulator().valueChanged(CircuitState.this, link);
+			getCircuit().getSimulator().queue(this);
 		}
 		
 		void unlink(Port port) {
 			if(!participants.containsKey(port)) return;
 			
-			cachedMergedValue = null;
-			isShortCircuited = null;
+			modified();
+			mergedValid = false;
 			
 			PortStateInfo info = participants.remove(port);
-			get(port.getLink()).participants.put(port, new PortStateInfo(info.lastPushed,
-			                                                             new WireValue(info.lastPushed),
-			                                                             new WireValue(link.getBitSize())));
+			drivers.remove(info.lastMerged);
+			infos = null;
+			get(port.getLink()).addParticipant(port, new PortStateInfo(port,
+			                                                          info.lastPushed,
+			                                                          new WireValue(info.lastPushed),
+			                                                          new WireValue(link.getBitSize())));
 			
 			RuntimeException exception = null;
 			
 			WireValue newValue = new WireValue(link.getBitSize());
 			if(!info.lastReceived.equals(newValue)) {
-				info.lastReceived.set(newValue);
+				info.lastReceived.assign(newValue);
 				try {
-					port.getComponent().valueChanged(CircuitState.this, newValue, port.getPortIndex());
+					port.getComponent().valueChanged(CircuitState.this, info.lastReceived, port.getPortIndex());
 				} catch(RuntimeException exc) {
 					exception = exc;
 				}
 			}
 			
 			if(participants.isEmpty()) {
-				linkStates.remove(link);
-				getCircuit().getSimulator().linkRemoved(link);
+				remove(this);
 			} else {
-				getCircuit().getSimulator().valueChanged(CircuitState.this, link);
+				getCircuit().getSimulator().queue(this);
 			}
 			
 			if(exception != null) {
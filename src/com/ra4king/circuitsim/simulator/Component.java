@@ -41,6 +41,27 @@ public abstract class Component {
 		return ports.length;
 	}
 	
+	/**
+	 * The number of time units a value pushed by this Component takes to reach its Link when the Simulator is timed.
+	 * Components that only forward values, such as wiring, return 0.
+	 *
+	 * @return The propagation delay, 1 by default.
+	 */
+	public int getDelay() {
+		return 1;
+	}
+	
+	/**
+	 * Whether valueChanged never pushes anything, like a display that only shows the values it receives. Engines such
+	 * as the compiled Netlist then simulate it without calling it, keeping whatever it pushed from init or from outside
+	 * the simulation. Components without Ports are passive.
+	 *
+	 * @return true if this Component never pushes a value in response to a value it receives.
+	 */
+	public boolean isPassive() {
+		return getNumPorts() == 0;
+	}
+	
 	public void init(CircuitState circuitState, Object lastProperty) {}
 	
 	public void uninit(CircuitState circuitState) {}
@@ -0,0 +1,142 @@
+package com.ra4king.circuitsim.simulator;
+
+import com.ra4king.circuitsim.simulator.WireValue.State;
+
+/**
+ * Keeps per-bit counts of how many participants of a Link drive each bit to ONE and to ZERO, updated incrementally
+ * as their values change. The value seen by any single participant, and whether the Link is short circuited, is then
+ * resolved with a few mask operations per word instead of re-merging every other participant.
+ *
+ * @author Roi Atalla
+ */
+class DriverCounts {
+	private final int bitSize;
+	private final int[] oneCounts;
+	private final int[] zeroCounts;
+	
+	// Per word: bits driven to ONE (or ZERO) by at least one participant, and by at least two participants
+	private final long[] anyOnes;
+	private final long[] manyOnes;
+	private final long[] anyZeros;
+	private final long[] manyZeros;
+	
+	DriverCounts(int bitSize) {
+		this.bitSize = bitSize;
+		
+		oneCounts = new int[bitSize];
+		zeroCounts = new int[bitSize];
+		
+		int words = Math.max(1, (bitSize + 63) >>> 6);
+		anyOnes = new long[words];
+		manyOnes = new long[words];
+		anyZeros = new long[words];
+		manyZeros = new long[words];
+	}
+	
+	DriverCounts(DriverCounts counts) {
+		bitSize = counts.bitSize;
+		oneCounts = counts.oneCounts.clone();
+		zeroCounts = counts.zeroCounts.clone();
+		anyOnes = counts.anyOnes.clone();
+		manyOnes = counts.manyOnes.clone();
+		anyZeros = counts.anyZeros.clone();
+		manyZeros = counts.manyZeros.clone();
+	}
+	
+	/**
+	 * Resets all counts, as if every participant is driving X.
+	 */
+	void clear() {
+		for(int i = 0; i < bitSize; i++) {
+			oneCounts[i] = 0;
+			zeroCounts[i] = 0;
+		}
+		
+		for(int i = 0; i < anyOnes.length; i++) {
+			anyOnes[i] = manyOnes[i] = anyZeros[i] = manyZeros[i] = 0;
+		}
+	}
+	
+	void add(WireValue value) {
+		for(int word = 0; word < anyOnes.length; word++) {
+			update(word, 0, 0, value.getOnesWord(word), value.getZerosWord(word));
+		}
+	}
+	
+	void remove(WireValue value) {
+		for(int word = 0; word < anyOnes.length; word++) {
+			update(word, value.getOnesWord(word), value.getZerosWord(word), 0, 0);
+		}
+	}
+	
+	/**
+	 * A participant stopped driving oldValue and is now driving newValue. Only the changed bits are touched.
+	 */
+	void replace(WireValue oldValue, WireValue newValue) {
+		for(int word = 0; word < anyOnes.length; word++) {
+			update(word,
+			       oldValue.getOnesWord(word), oldValue.getZerosWord(word),
+			       newValue.getOnesWord(word), newValue.getZerosWord(word));
+		}
+	}
+	
+	private void update(int word, long oldOnes, long oldZeros, long newOnes, long newZeros) {
+		long changed = (oldOnes ^ newOnes) | (oldZeros ^ newZeros);
+		
+		while(changed != 0) {
+			int bit = Long.numberOfTrailingZeros(changed);
+			long mask = 1L << bit;
+			changed &= ~mask;
+			
+			int index = (word << 6) + bit;
+			int ones = oneCounts[index] += (int)((newOnes >>> bit) & 1) - (int)((oldOnes >>> bit) & 1);
+			int zeros = zeroCounts[index] += (int)((newZeros >>> bit) & 1) - (int)((oldZeros >>> bit) & 1);
+			
+			anyOnes[word] = ones > 0 ? anyOnes[word] | mask : anyOnes[word] & ~mask;
+			manyOnes[word] = ones > 1 ? manyOnes[word] | mask : manyOnes[word] & ~mask;
+			anyZeros[word] = zeros > 0 ? anyZeros[word] | mask : anyZeros[word] & ~mask;
+			manyZeros[word] = zeros > 1 ? manyZeros[word] | mask : manyZeros[word] & ~mask;
+		}
+	}
+	
+	/**
+	 * Writes into result the merge of all counted values, excluding the given one if not null. The excluded value
+	 * must currently be counted.
+	 *
+	 * @return false if some bit is driven to both ONE and ZERO, in which case result holds ONE for that bit.
+	 */
+	boolean resolve(WireValue exclude, WireValue result) {
+		long conflicts = 0;
+		
+		for(int word = 0; word < anyOnes.length; word++) {
+			long ones = anyOnes[word];
+			long zeros = anyZeros[word];
+			
+			if(exclude != null) {
+				long excludeOnes = exclude.getOnesWord(word);
+				long excludeZeros = exclude.getZerosWord(word);
+				
+				// the excluded bits only count if another participant drives them too
+				ones = (excludeOnes & manyOnes[word]) | (~excludeOnes & ones);
+				zeros = (excludeZeros & manyZeros[word]) | (~excludeZeros & zeros);
+			}
+			
+			conflicts |= ones & zeros;
+			result.setWord(word, ones, ~(ones | zeros));
+		}
+		
+		return conflicts == 0;
+	}
+	
+	/**
+	 * Returns a value with the given state on every bit driven to that state by some participant, X elsewhere.
+	 */
+	WireValue getDriven(State state) {
+		WireValue value = new WireValue(bitSize);
+		for(int word = 0; word < anyOnes.length; word++) {
+			long driven = state == State.ONE ? anyOnes[word] : anyZeros[word];
+			value.setWord(word, state == State.ONE ? driven : 0, ~driven);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,105 @@
+package com.ra4king.circuitsim.simulator;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import com.ra4king.circuitsim.simulator.CircuitState.LinkState;
+
+/**
+ * A ring buffer of the LinkStates queued at one level of the Simulator. Each queued LinkState stores its index in the
+ * buffer, so adding and removing are O(1) and allocation free. Removing leaves a hole that polling skips.
+ *
+ * @author Roi Atalla
+ */
+class LinkQueue {
+	private LinkState[] items = new LinkState[16];
+	private int head;
+	
+	// Occupied slots including holes, and the LinkStates actually queued
+	private int size;
+	private int count;
+	
+	boolean isEmpty() {
+		return count == 0;
+	}
+	
+	int size() {
+		return count;
+	}
+	
+	void add(LinkState linkState, int level) {
+		if(size == items.length) {
+			grow();
+		}
+		
+		int index = (head + size) & (items.length - 1);
+		items[index] = linkState;
+		linkState.queueIndex = index;
+		linkState.queueLevel = level;
+		size++;
+		count++;
+	}
+	
+	/**
+	 * @return The oldest queued LinkState, or null if none is queued.
+	 */
+	LinkState poll() {
+		while(count > 0) {
+			LinkState linkState = items[head];
+			items[head] = null;
+			head = (head + 1) & (items.length - 1);
+			size--;
+			
+			if(linkState != null) {
+				linkState.queueIndex = -1;
+				if(--count == 0) {
+					head = size = 0;
+				}
+				return linkState;
+			}
+		}
+		
+		return null;
+	}
+	
+	void remove(LinkState linkState) {
+		items[linkState.queueIndex] = null;
+		linkState.queueIndex = -1;
+		if(--count == 0) {
+			head = size = 0;
+		}
+	}
+	
+	void forEach(Consumer<LinkState> consumer) {
+		for(int i = 0; i < size; i++) {
+			LinkState linkState = items[(head + i) & (items.length - 1)];
+			if(linkState != null) {
+				consumer.accept(linkState);
+			}
+		}
+	}
+	
+	void clear() {
+		forEach(linkState -> linkState.queueIndex = -1);
+		Arrays.fill(items, null);
+		head = size = count = 0;
+	}
+	
+	// Compacts the holes away, doubling the capacity only if it is more than half full
+	private void grow() {
+		LinkState[] newItems = count * 2 > items.length ? new LinkState[items.length * 2] : new LinkState[items.length];
+		
+		int n = 0;
+		for(int i = 0; i < size; i++) {
+			LinkState linkState = items[(head + i) & (items.length - 1)];
+			if(linkState != null) {
+				linkState.queueIndex = n;
+				newItems[n++] = linkState;
+			}
+		}
+		
+		items = newItems;
+		head = 0;
+		size = n;
+	}
+}
@@ -0,0 +1,62 @@
+package com.ra4king.circuitsim.simulator;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free queue for many producers and a single consumer. Any thread may offer, only one thread at a
+ * time may poll.
+ * <p>
+ * Offering is a single atomic swap of the tail. An element whose producer has swapped the tail but not yet linked it
+ * is invisible to poll until it is linked, so a consumer may see the queue as empty for a moment after an offer.
+ *
+ * @author Roi Atalla
+ */
+class MpscQueue<E> {
+	private static class Node<E> {
+		private E value;
+		private volatile Node<E> next;
+		
+		Node(E value) {
+			this.value = value;
+		}
+	}
+	
+	private final AtomicReference<Node<E>> tail;
+	private volatile Node<E> head;
+	
+	MpscQueue() {
+		head = new Node<>(null);
+		tail = new AtomicReference<>(head);
+	}
+	
+	void offer(E value) {
+		Node<E> node = new Node<>(value);
+		tail.getAndSet(node).next = node;
+	}
+	
+	/**
+	 * Must only be called by the consumer.
+	 *
+	 * @return The oldest linked element, or null if there is none.
+	 */
+	E poll() {
+		Node<E> next = head.next;
+		if(next == null) {
+			return null;
+		}
+		
+		E value = next.value;
+		next.value = null;
+		head = next;
+		return value;
+	}
+	
+	/**
+	 * May be called from any thread.
+	 *
+	 * @return true if nothing has been offered since the last element was polled.
+	 */
+	boolean isEmpty() {
+		return tail.get() == head;
+	}
+}
@@ -0,0 +1,270 @@
+package com.ra4king.circuitsim.simulator;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash map, where with and without return a new map that shares everything but the path to the changed
+ * entry with this one. A copy of a large map that changes a little at a time then only costs as much as the entries
+ * that changed. Null keys are not supported, and all mutators of Map throw UnsupportedOperationException.
+ * <p>
+ * It is a hash array mapped trie: each node holds up to 32 children, picked by 5 bits of the hash at each level, and
+ * keys whose hashes are equal end up in a node that is searched linearly.
+ *
+ * @author Roi Atalla
+ */
+final class PersistentMap<K, V> extends AbstractMap<K, V> {
+	private static final int BITS = 5;
+	private static final int MAX_SHIFT = 30;
+	
+	private static final Node EMPTY_NODE = new Node(0, new Object[0]);
+	private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(EMPTY_NODE, 0);
+	
+	private final Node root;
+	private final int size;
+	
+	private PersistentMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+	
+	@SuppressWarnings("unchecked")
+	static <K, V> PersistentMap<K, V> empty() {
+		return (PersistentMap<K, V>)EMPTY;
+	}
+	
+	/**
+	 * @return A map with the key mapped to the value, or this map if it already was.
+	 */
+	PersistentMap<K, V> with(K key, V value) {
+		Leaf<K, V> existing = find(key);
+		if(existing != null && existing.value == value) {
+			return this;
+		}
+		
+		return new PersistentMap<>(with(root, new Leaf<>(hash(key), key, value), 0),
+		                           existing == null ? size + 1 : size);
+	}
+	
+	/**
+	 * @return A map without the key, or this map if it did not have it.
+	 */
+	PersistentMap<K, V> without(Object key) {
+		if(find(key) == null) {
+			return this;
+		}
+		
+		return new PersistentMap<>(without(root, key, hash(key), 0), size - 1);
+	}
+	
+	@Override
+	public V get(Object key) {
+		Leaf<K, V> leaf = find(key);
+		return leaf == null ? null : leaf.value;
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) != null;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action) {
+		forEach(root, action);
+	}
+	
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		List<Entry<K, V>> entries = new ArrayList<>(size);
+		forEach((key, value) -> entries.add(new SimpleImmutableEntry<>(key, value)));
+		
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return Collections.unmodifiableList(entries).iterator();
+			}
+			
+			@Override
+			public int size() {
+				return entries.size();
+			}
+		};
+	}
+	
+	private static int hash(Object key) {
+		int hash = key.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & 31);
+	}
+	
+	private static int index(int bitmap, int bit) {
+		return Integer.bitCount(bitmap & (bit - 1));
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Leaf<K, V> find(Object key) {
+		int hash = hash(key);
+		
+		Node node = root;
+		for(int shift = 0; ; shift += BITS) {
+			if(shift > MAX_SHIFT) {
+				for(Object child : node.children) {
+					if(((Leaf<K, V>)child).key.equals(key)) {
+						return (Leaf<K, V>)child;
+					}
+				}
+				return null;
+			}
+			
+			int bit = bit(hash, shift);
+			if((node.bitmap & bit) == 0) {
+				return null;
+			}
+			
+			Object child = node.children[index(node.bitmap, bit)];
+			if(child instanceof Leaf) {
+				Leaf<K, V> leaf = (Leaf<K, V>)child;
+				return leaf.hash == hash && leaf.key.equals(key) ? leaf : null;
+			}
+			
+			node = (Node)child;
+		}
+	}
+	
+	private static Node with(Node node, Leaf<?, ?> leaf, int shift) {
+		// Past the last bits of the hash, all keys in the node have the same hash
+		if(shift > MAX_SHIFT) {
+			for(int i = 0; i < node.children.length; i++) {
+				if(((Leaf<?, ?>)node.children[i]).key.equals(leaf.key)) {
+					Object[] children = node.children.clone();
+					children[i] = leaf;
+					return new Node(0, children);
+				}
+			}
+			
+			return new Node(0, insert(node.children, node.children.length, leaf));
+		}
+		
+		int bit = bit(leaf.hash, shift);
+		int index = index(node.bitmap, bit);
+		if((node.bitmap & bit) == 0) {
+			return new Node(node.bitmap | bit, insert(node.children, index, leaf));
+		}
+		
+		Object child = node.children[index];
+		Object replacement;
+		if(child instanceof Node) {
+			replacement = with((Node)child, leaf, shift + BITS);
+		} else if(((Leaf<?, ?>)child).key.equals(leaf.key)) {
+			replacement = leaf;
+		} else {
+			replacement = with(with(EMPTY_NODE, (Leaf<?, ?>)child, shift + BITS), leaf, shift + BITS);
+		}
+		
+		Object[] children = node.children.clone();
+		children[index] = replacement;
+		return new Node(node.bitmap, children);
+	}
+	
+	private static Node without(Node node, Object key, int hash, int shift) {
+		if(shift > MAX_SHIFT) {
+			for(int i = 0; i < node.children.length; i++) {
+				if(((Leaf<?, ?>)node.children[i]).key.equals(key)) {
+					return new Node(0, remove(node.children, i));
+				}
+			}
+			return node;
+		}
+		
+		int bit = bit(hash, shift);
+		if((node.bitmap & bit) == 0) {
+			return node;
+		}
+		
+		int index = index(node.bitmap, bit);
+		Object child = node.children[index];
+		if(child instanceof Leaf) {
+			if(!((Leaf<?, ?>)child).key.equals(key)) {
+				return node;
+			}
+			return new Node(node.bitmap & ~bit, remove(node.children, index));
+		}
+		
+		Node replacement = without((Node)child, key, hash, shift + BITS);
+		if(replacement == child) {
+			return node;
+		}
+		
+		if(replacement.children.length == 0) {
+			return new Node(node.bitmap & ~bit, remove(node.children, index));
+		}
+		
+		Object[] children = node.children.clone();
+		children[index] = replacement;
+		return new Node(node.bitmap, children);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K, V> void forEach(Node node, BiConsumer<? super K, ? super V> action) {
+		for(Object child : node.children) {
+			if(child instanceof Leaf) {
+				Leaf<K, V> leaf = (Leaf<K, V>)child;
+				action.accept(leaf.key, leaf.value);
+			} else {
+				forEach((Node)child, action);
+			}
+		}
+	}
+	
+	private static Object[] insert(Object[] array, int index, Object value) {
+		Object[] inserted = new Object[array.length + 1];
+		System.arraycopy(array, 0, inserted, 0, index);
+		inserted[index] = value;
+		System.arraycopy(array, index, inserted, index + 1, array.length - index);
+		return inserted;
+	}
+	
+	private static Object[] remove(Object[] array, int index) {
+		Object[] removed = new Object[array.length - 1];
+		System.arraycopy(array, 0, removed, 0, index);
+		System.arraycopy(array, index + 1, removed, index, array.length - index - 1);
+		return removed;
+	}
+	
+	private static final class Node {
+		// The children are in the order of the bits set in the bitmap, which is 0 in a node of equal hashes
+		final int bitmap;
+		final Object[] children;
+		
+		Node(int bitmap, Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+	}
+	
+	private static final class Leaf<K, V> {
+		final int hash;
+		final K key;
+		final V value;
+		
+		Leaf(int hash, K key, V value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
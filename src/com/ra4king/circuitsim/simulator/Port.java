@@ -11,6 +11,9 @@ public class Port {
 	private final int portIndex;
 	private Link link;
 	
+	// Set once this Port has pushed a value in any CircuitState, the Circuit's levels treat it as driving its Link
+	boolean drives;
+	
 	public Port(Component component, int portIndex, int bitSize) {
 		this.component = component;
 		this.portIndex = portIndex;
@@ -50,6 +53,9 @@ public class Port {
 		private final Set<Port> participants;
 		private final int bitSize;
 		
+		// Combinational depth of the Components driving this Link, computed by Circuit
+		int level;
+		
 		public Link(int bitSize) {
 			this.participants = new HashSet<>();
 			this.bitSize = bitSize;
@@ -89,6 +95,7 @@ public class Port {
 			}
 			
 			circuit.forEachState(state -> state.link(this, port.getLink()));
+			circuit.invalidateLevels();
 			
 			Set<Port> portParticipants = port.getLink().participants;
 			participants.addAll(portParticipants);
@@ -116,6 +123,7 @@ public class Port {
 			port.link.participants.add(port);
 			
 			circuit.forEachState(state -> state.unlink(this, port));
+			circuit.invalidateLevels();
 			
 			return this;
 		}
@@ -4,33 +4,70 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
+import com.ra4king.circuitsim.simulator.CircuitState.LinkState;
 import com.ra4king.circuitsim.simulator.Port.Link;
-
-import javafx.util.Pair;
+import com.ra4king.circuitsim.simulator.Utils.Pair;
 
 /**
  * @author Roi Atalla
  */
 public class Simulator {
 	private Set<Circuit> circuits;
-	private Collection<Pair<CircuitState, Link>> linksToUpdate, temp, shortCircuited;
-	private ShortCircuitException lastShortCircuit;
-	private final Set<Collection<Pair<CircuitState, Link>>> history;
+	private Set<LinkState> shortCircuited;
+	private LinkState lastShortCircuit;
+	
+	// Queued LinkStates by the level of their Link, drained lowest level first
+	private final List<LinkQueue> levels;
+	private int lowestLevel;
+	private int queuedCount;
+	
+	// Sum of the fingerprints of the queued LinkStates, the same for the same set of links in any order
+	private long queuedFingerprint;
+	
+	// Values pushed with a delay when timed
+	private final TimingWheel timingWheel = new TimingWheel();
+	private boolean timed;
+	
+	// Time units a timed Circuit may take to settle in stepAll before it is considered oscillating
+	private static final long MAX_SETTLE_TIME = 1 << 16;
 	
-	// Create a Lock with a fair policy
-	private final ReentrantLock lock = new ReentrantLock(true);
+	// Fairness would force a handoff on every contended push, pushes from other threads are queued instead
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	// Values pushed from outside the Simulator while it was busy, pushed on the next acquisition of the lock
+	private final MpscQueue<PendingPush> pendingPushes = new MpscQueue<>();
+	// The latest queued push of each Port, so it is read back by getLastPushed before it is pushed
+	private final Map<Pair<CircuitState, Port>, PendingPush> latestPendingPushes = new ConcurrentHashMap<>();
+	
+	// Whether linksToUpdate or the timing wheel may be non-empty, readable without the lock
+	private volatile boolean linksPending;
+	
+	// CircuitStates whose snapshot was requested while the lock was held, published at the end of the next stepAll
+	private final MpscQueue<CircuitState> snapshotRequests = new MpscQueue<>();
+	
+	private static class PendingPush {
+		private final CircuitState state;
+		private final Port port;
+		private final WireValue value;
+		
+		PendingPush(CircuitState state, Port port, WireValue value) {
+			this.state = state;
+			this.port = port;
+			this.value = value;
+		}
+	}
 	
 	public Simulator() {
 		circuits = new HashSet<>();
-		linksToUpdate = new LinkedHashSet<>();
-		temp = new LinkedHashSet<>();
-		shortCircuited = new ArrayList<>();
-		history = new HashSet<>();
+		levels = new ArrayList<>();
+		shortCircuited = new LinkedHashSet<>();
 	}
 	
 	/**
@@ -46,6 +83,8 @@ public class Simulator {
 	 * Allows execution of code that is synchronized with the Simulator
 	 * <p>
 	 * Similar to but more efficient than <code>synchronized(simulator) { runnable.run(); }</code>
+	 * <p>
+	 * Values queued by other threads while the Simulator was busy are pushed before the runnable is run.
 	 *
 	 * @param runnable The block of code to run synchronously
 	 */
@@ -53,21 +92,138 @@ public class Simulator {
 		lock.lock();
 		
 		try {
+			pushPending();
 			runnable.run();
 		} finally {
 			lock.unlock();
 		}
 	}
 	
+	/**
+	 * Push the value from the Port. If another thread is holding the lock, the value is copied into a lock-free queue
+	 * instead of waiting, and pushed in order the next time the lock is acquired.
+	 */
+	void pushValue(CircuitState state, Port port, WireValue value) {
+		if(lock.isHeldByCurrentThread()) {
+			pushNow(state, port, value);
+		} else if(lock.tryLock()) {
+			try {
+				pushPending();
+				pushNow(state, port, value);
+			} finally {
+				lock.unlock();
+			}
+		} else {
+			PendingPush push = new PendingPush(state, port, new WireValue(value));
+			latestPendingPushes.put(new Pair<>(state, port), push);
+			pendingPushes.offer(push);
+		}
+	}
+	
+	/**
+	 * @return The latest value queued by the Port that is not pushed yet, or null if there is none.
+	 */
+	WireValue getPendingValue(CircuitState state, Port port) {
+		if(latestPendingPushes.isEmpty()) {
+			return null;
+		}
+		
+		PendingPush push = latestPendingPushes.get(new Pair<>(state, port));
+		return push == null ? null : push.value;
+	}
+	
+	private void pushNow(CircuitState state, Port port, WireValue value) {
+		int delay = timed ? port.getComponent().getDelay() : 0;
+		if(delay > 0) {
+			timingWheel.schedule(state, port, new WireValue(value), delay);
+			linksPending = true;
+		} else {
+			state.applyPush(port, value);
+		}
+	}
+	
+	private void pushPending() {
+		// Nested acquisitions and steps would interleave the pushes with a propagation in progress
+		if(lock.getHoldCount() > 1 || stepping) {
+			return;
+		}
+		
+		PendingPush push;
+		while((push = pendingPushes.poll()) != null) {
+			if(isAttached(push.state, push.port)) {
+				pushNow(push.state, push.port, push.value);
+			}
+			
+			// Only once pushed, and only if no later push of the same Port is queued
+			latestPendingPushes.remove(new Pair<>(push.state, push.port), push);
+		}
+	}
+	
+	// The Component or CircuitState may have been removed since the value was pushed
+	private static boolean isAttached(CircuitState state, Port port) {
+		return port.getComponent().getCircuit() == state.getCircuit() && state.getCircuit().containsState(state);
+	}
+	
+	/**
+	 * Get a copy of the queue of un-propagated links. This should be called within runSync.
+	 *
+	 * @return The un-propagated links and the CircuitStates they are in.
+	 */
 	public Collection<Pair<CircuitState, Link>> getLinksToUpdate() {
+		List<Pair<CircuitState, Link>> linksToUpdate = new ArrayList<>();
+		levels.forEach(queue -> queue.forEach(
+			linkState -> linksToUpdate.add(new Pair<>(linkState.getCircuitState(), linkState.link))));
 		return linksToUpdate;
 	}
 	
-	private boolean tmp;
+	/**
+	 * Get the links found short circuited by the last propagation of each. This should be called within runSync.
+	 *
+	 * @return The short circuited links and the CircuitStates they are in.
+	 */
+	public Collection<Pair<CircuitState, Link>> getShortCircuitedLinks() {
+		List<Pair<CircuitState, Link>> links = new ArrayList<>();
+		shortCircuited.forEach(linkState -> links.add(new Pair<>(linkState.getCircuitState(), linkState.link)));
+		return links;
+	}
 	
+	/**
+	 * Whether there is anything left to propagate. This does not take the lock.
+	 */
 	public boolean hasLinksToUpdate() {
-		runSync(() -> tmp = !linksToUpdate.isEmpty());
-		return tmp;
+		return linksPending || !pendingPushes.isEmpty();
+	}
+	
+	/**
+	 * Enable or disable propagation delays. When timed, every value pushed by a Component reaches its Link after the
+	 * Component's delay instead of on the next step, which makes glitches and settle times observable. Values still
+	 * pending when disabling are pushed immediately.
+	 *
+	 * @param timed Whether to use propagation delays.
+	 */
+	public void setTimed(boolean timed) {
+		runSync(() -> {
+			if(!timed) {
+				while(!timingWheel.isEmpty()) {
+					pushScheduled();
+				}
+			}
+			
+			this.timed = timed;
+		});
+	}
+	
+	public boolean isTimed() {
+		return timed;
+	}
+	
+	/**
+	 * Get the current time in delay units. Time only advances when timed.
+	 *
+	 * @return The current time.
+	 */
+	public long getTime() {
+		return timingWheel.getTime();
 	}
 	
 	/**
@@ -76,10 +232,12 @@ public class Simulator {
 	public void clear() {
 		runSync(() -> {
 			circuits.clear();
-			linksToUpdate.clear();
-			temp.clear();
+			levels.forEach(LinkQueue::clear);
+			queuedCount = 0;
 			shortCircuited.clear();
-			history.clear();
+			queuedFingerprint = 0;
+			timingWheel.clear();
+			linksPending = false;
 		});
 	}
 	
@@ -87,7 +245,10 @@ public class Simulator {
 	 * Resets all CircuitStates of all attached Circuits.
 	 */
 	public void reset() {
-		runSync(() -> circuits.forEach(circuit -> circuit.forEachState(CircuitState::reset)));
+		runSync(() -> {
+			timingWheel.clear();
+			circuits.forEach(circuit -> circuit.forEachState(CircuitState::reset));
+		});
 	}
 	
 	public Set<Circuit> getCircuits() {
@@ -129,21 +290,67 @@ public class Simulator {
 	 * @param link  The Link that has received new values.
 	 */
 	public void valueChanged(CircuitState state, Link link) {
-		runSync(() -> linksToUpdate.add(new Pair<>(state, link)));
+		runSync(() -> queue(state.get(link)));
+	}
+	
+	/**
+	 * Queue the LinkState for propagation if it isn't already. This must be called within runSync.
+	 */
+	void queue(LinkState linkState) {
+		if(linkState.queueIndex != -1) {
+			return;
+		}
+		
+		int level = linkState.link.level;
+		while(levels.size() <= level) {
+			levels.add(new LinkQueue());
+		}
+		
+		levels.get(level).add(linkState, level);
+		queuedCount++;
+		queuedFingerprint += linkState.fingerprint;
+		lowestLevel = Math.min(lowestLevel, level);
+		
+		if(!linksPending) {
+			linksPending = true;
+		}
+	}
+	
+	/**
+	 * Advances the time to the next scheduled values and pushes them.
+	 */
+	private void pushScheduled() {
+		for(TimingWheel.Event event = timingWheel.poll(); event != null; event = event.next) {
+			if(isAttached(event.state, event.port)) {
+				event.state.applyPush(event.port, event.value);
+			}
+		}
 	}
 	
 	/**
-	 * Removes the Link from the processing queue.
+	 * Removes the LinkState from the processing queue. This must be called within runSync.
 	 */
-	void linkRemoved(Link link) {
-		runSync(() -> linksToUpdate.removeAll(
-			linksToUpdate.stream().filter(pair -> pair.getValue() == link).collect(Collectors.toList())));
+	void linkRemoved(LinkState linkState) {
+		if(linkState.queueIndex != -1) {
+			levels.get(linkState.queueLevel).remove(linkState);
+			queuedCount--;
+			queuedFingerprint -= linkState.fingerprint;
+		}
+		
+		shortCircuited.remove(linkState);
 	}
 	
 	private boolean stepping = false;
 	
 	/**
 	 * Perform only a single propagation step. This is thread-safe.
+	 * <p>
+	 * A step is one wave through the Circuits: queued links are propagated level by level, so a Link is only
+	 * propagated once everything driving it has settled and each Component sees one change per wave instead of one
+	 * per input arrival. The step ends when the only links left were queued by feedback into an already propagated
+	 * level. When timed and nothing is queued, the time first advances to the next scheduled values.
+	 * <p>
+	 * A ShortCircuitException is thrown for the last short circuited link once nothing is left to propagate.
 	 */
 	public void step() {
 		runSync(() -> {
@@ -154,68 +361,223 @@ public class Simulator {
 			try {
 				stepping = true;
 				
-				Collection<Pair<CircuitState, Link>> tmp = linksToUpdate;
-				linksToUpdate = temp;
-				temp = tmp;
-				
-				temp.addAll(shortCircuited);
+				circuits.forEach(Circuit::levelize);
 				
-				linksToUpdate.clear();
-				shortCircuited.clear();
 				lastShortCircuit = null;
 				
-				temp.forEach(pair -> {
-					CircuitState state = pair.getKey();
-					Link link = pair.getValue();
+				if(queuedCount == 0) {
+					pushScheduled();
+				}
+				
+				int level = -1;
+				while(queuedCount > 0) {
+					while(levels.get(lowestLevel).isEmpty()) {
+						lowestLevel++;
+					}
 					
-					// The Link or CircuitState may have been removed
-					if(link.getCircuit() == null || !state.getCircuit().containsState(state)) {
-						return;
+					if(lowestLevel <= level) {
+						break;
 					}
 					
-					try {
-						state.propagateSignal(link);
-					} catch(ShortCircuitException exc) {
-						shortCircuited.add(pair);
-						lastShortCircuit = exc;
+					level = lowestLevel;
+					
+					// Only the LinkStates queued before the level started, feedback is left for the next wave
+					LinkQueue queue = levels.get(level);
+					for(int count = queue.size(); count > 0 && !queue.isEmpty(); count--) {
+						LinkState linkState = queue.poll();
+						queuedCount--;
+						queuedFingerprint -= linkState.fingerprint;
+						propagate(linkState);
 					}
-				});
-				
-				if(lastShortCircuit != null && linksToUpdate.isEmpty()) {
-					throw lastShortCircuit;
 				}
 				
-				linksToUpdate.addAll(shortCircuited);
+				if(lastShortCircuit != null && queuedCount == 0 && timingWheel.isEmpty()) {
+					throw lastShortCircuit.getShortCircuit();
+				}
 			} finally {
 				stepping = false;
+				linksPending = queuedCount > 0 || !timingWheel.isEmpty();
 			}
 		});
 	}
 	
+	private void propagate(LinkState linkState) {
+		CircuitState state = linkState.getCircuitState();
+		
+		// The Link or CircuitState may have been removed
+		if(linkState.link.getCircuit() == null || !state.getCircuit().containsState(state)) {
+			return;
+		}
+		
+		if(state.propagateSignal(linkState)) {
+			shortCircuited.remove(linkState);
+		} else {
+			shortCircuited.add(linkState);
+			lastShortCircuit = linkState;
+		}
+	}
+	
+	void requestSnapshot(CircuitState state) {
+		snapshotRequests.offer(state);
+	}
+	
+	private void publishSnapshots() {
+		CircuitState state;
+		while((state = snapshotRequests.poll()) != null) {
+			state.updateSnapshot();
+		}
+	}
+	
+	/**
+	 * How a stepAll with a budget ended.
+	 */
+	public enum SettleStatus {
+		/**
+		 * Nothing is left to propagate.
+		 */
+		SETTLED,
+		/**
+		 * The steps or time ran out, the next stepAll resumes where this one stopped.
+		 */
+		BUDGET_EXHAUSTED,
+		/**
+		 * The thread was interrupted, the next stepAll resumes where this one stopped.
+		 */
+		INTERRUPTED
+	}
+	
+	public interface SettleProgressListener {
+		/**
+		 * Called after each step of a stepAll with a budget, with the lock held.
+		 *
+		 * @param steps       The number of steps taken by this stepAll so far.
+		 * @param queuedLinks The number of links left to propagate.
+		 */
+		void progress(long steps, int queuedLinks);
+	}
+	
+	// Oscillation detection of the settle in progress, kept when a stepAll with a budget stops before it settles
+	private boolean settling;
+	private long savedFingerprint;
+	private int power;
+	private int length;
+	private int repeatCount;
+	private long settleStartTime;
+	
 	/**
 	 * Continuously steps the simulation until no more propagation is needed. This is thread-safe.
 	 */
 	public void stepAll() {
-		runSync(() -> {
+		stepAll(Long.MAX_VALUE, Long.MAX_VALUE, null, false);
+	}
+	
+	/**
+	 * Steps the simulation until no more propagation is needed, the budget runs out or the thread is interrupted.
+	 * A settle that was stopped early is resumed by the next stepAll, along with its oscillation detection, so a
+	 * circuit that never settles still ends in an OscillationException over several calls. This is thread-safe.
+	 *
+	 * @param maxSteps The maximum number of steps to take.
+	 * @param maxNanos The maximum time to take, checked between steps.
+	 * @param progress Notified after each step, may be null.
+	 * @return Whether the simulation settled or why it stopped early.
+	 */
+	public SettleStatus stepAll(long maxSteps, long maxNanos, SettleProgressListener progress) {
+		return stepAll(maxSteps, maxNanos, progress, true);
+	}
+	
+	private SettleStatus stepAll(long maxSteps, long maxNanos, SettleProgressListener progress,
+	                             boolean interruptible) {
+		lock.lock();
+		
+		try {
+			pushPending();
+			
+			// Called from within a step, which is left to finish the propagation
 			if(stepping) {
-				return;
+				return queuedCount == 0 && timingWheel.isEmpty() ? SettleStatus.SETTLED : SettleStatus.BUDGET_EXHAUSTED;
 			}
 			
-			history.clear();
-			
-			int repeatCount = 0;
-			
-			while(!linksToUpdate.isEmpty()) {
-				if(history.contains(linksToUpdate)) {
-					if(++repeatCount == 10) { // since short circuits are retried, it looks like they're oscillating
-						throw new OscillationException();
-					}
+			try {
+				return settle(maxSteps, maxNanos, progress, interruptible);
+			} finally {
+				publishSnapshots();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private SettleStatus settle(long maxSteps, long maxNanos, SettleProgressListener progress,
+	                            boolean interruptible) {
+		if(queuedCount == 0 && timingWheel.isEmpty()) {
+			settling = false;
+			return SettleStatus.SETTLED;
+		}
+		
+		// Brent's cycle detection on the fingerprint of the queue: it is compared to one saved fingerprint, which is
+		// replaced after twice as many steps each time, so a cycle of any length is found in constant memory
+		if(!settling) {
+			settling = true;
+			resetOscillationDetection();
+			settleStartTime = timingWheel.getTime();
+		}
+		
+		long startNanos = maxNanos == Long.MAX_VALUE ? 0 : System.nanoTime();
+		long steps = 0;
+		
+		try {
+			while(queuedCount > 0 || !timingWheel.isEmpty()) {
+				if(steps >= maxSteps || (maxNanos != Long.MAX_VALUE && System.nanoTime() - startNanos >= maxNanos)) {
+					return SettleStatus.BUDGET_EXHAUSTED;
+				}
+				
+				if(interruptible && Thread.currentThread().isInterrupted()) {
+					return SettleStatus.INTERRUPTED;
 				}
 				
-				history.add(new LinkedHashSet<>(linksToUpdate));
+				long time = timingWheel.getTime();
 				
 				step();
+				steps++;
+				
+				// Only loops without delay can oscillate within a time, others are caught by the settle time
+				if(timingWheel.getTime() != time) {
+					if(timingWheel.getTime() - settleStartTime > MAX_SETTLE_TIME) {
+						throw new OscillationException();
+					}
+					
+					resetOscillationDetection();
+				} else {
+					if(queuedFingerprint == savedFingerprint) {
+						if(++repeatCount == 10) {
+							throw new OscillationException();
+						}
+					}
+					
+					if(++length == power) {
+						savedFingerprint = queuedFingerprint;
+						power <<= 1;
+						length = 0;
+					}
+				}
+				
+				if(progress != null) {
+					progress.progress(steps, queuedCount);
+				}
 			}
-		});
+		} catch(RuntimeException exc) {
+			settling = false;
+			throw exc;
+		}
+		
+		settling = false;
+		return SettleStatus.SETTLED;
+	}
+	
+	private void resetOscillationDetection() {
+		savedFingerprint = queuedFingerprint;
+		power = 1;
+		length = 0;
+		repeatCount = 0;
 	}
 }
@@ -0,0 +1,174 @@
+package com.ra4king.circuitsim.simulator;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timing wheel holding the values pushed with a propagation delay in a timed Simulator.
+ * <p>
+ * Level 0 has a slot per time unit of the current 64 unit rotation, each higher level has a slot per rotation of the
+ * level below it. Scheduling is O(1), and advancing moves a whole slot down a level at a time instead of sorting.
+ * Events pushed for the same time are returned in the order they were scheduled.
+ *
+ * @author Roi Atalla
+ */
+class TimingWheel {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 6;
+	
+	static class Event {
+		final CircuitState state;
+		final Port port;
+		final WireValue value;
+		final long time;
+		Event next;
+		
+		Event(CircuitState state, Port port, WireValue value, long time) {
+			this.state = state;
+			this.port = port;
+			this.value = value;
+			this.time = time;
+		}
+	}
+	
+	private final Event[][] heads = new Event[LEVELS][SLOTS];
+	private final Event[][] tails = new Event[LEVELS][SLOTS];
+	
+	// Events too far ahead for the top level, only possible when the time crosses a top level rotation
+	private Event overflow, overflowTail;
+	
+	private long now;
+	private int size;
+	
+	long getTime() {
+		return now;
+	}
+	
+	boolean isEmpty() {
+		return size == 0;
+	}
+	
+	void clear() {
+		for(int level = 0; level < LEVELS; level++) {
+			Arrays.fill(heads[level], null);
+			Arrays.fill(tails[level], null);
+		}
+		
+		overflow = overflowTail = null;
+		size = 0;
+		now = 0;
+	}
+	
+	/**
+	 * Schedule the value to be pushed from the Port after the delay. The value is not copied.
+	 */
+	void schedule(CircuitState state, Port port, WireValue value, int delay) {
+		if(delay <= 0) {
+			throw new IllegalArgumentException("Delay must be positive.");
+		}
+		
+		insert(new Event(state, port, value, now + delay));
+		size++;
+	}
+	
+	/**
+	 * Advances the time to the earliest scheduled event and removes all events scheduled for it.
+	 *
+	 * @return A list of the removed events linked through {@link Event#next}, or null if nothing is scheduled.
+	 */
+	Event poll() {
+		if(size == 0) {
+			return null;
+		}
+		
+		// After a cascade the events for the new time itself are in level 0
+		boolean inclusive = false;
+		while(true) {
+			int digit = (int)now & MASK;
+			for(int slot = inclusive ? digit : digit + 1; slot < SLOTS; slot++) {
+				Event events = heads[0][slot];
+				if(events != null) {
+					heads[0][slot] = null;
+					tails[0][slot] = null;
+					now = (now & ~(long)MASK) | slot;
+					
+					for(Event event = events; event != null; event = event.next) {
+						size--;
+					}
+					
+					return events;
+				}
+			}
+			
+			cascade();
+			inclusive = true;
+		}
+	}
+	
+	/**
+	 * Moves the next occupied slot of the lowest level that has one down to the lower levels and advances the time to
+	 * the start of that slot.
+	 */
+	private void cascade() {
+		for(int level = 1; level < LEVELS; level++) {
+			int shift = BITS * level;
+			int digit = (int)(now >>> shift) & MASK;
+			
+			for(int slot = digit + 1; slot < SLOTS; slot++) {
+				Event events = heads[level][slot];
+				if(events != null) {
+					heads[level][slot] = null;
+					tails[level][slot] = null;
+					now = (now >>> (shift + BITS) << (shift + BITS)) | ((long)slot << shift);
+					reinsert(events);
+					return;
+				}
+			}
+		}
+		
+		// Only overflowed events are left, jump straight to the earliest of them
+		Event events = overflow;
+		overflow = overflowTail = null;
+		
+		now = Long.MAX_VALUE;
+		for(Event event = events; event != null; event = event.next) {
+			now = Math.min(now, event.time);
+		}
+		
+		reinsert(events);
+	}
+	
+	private void reinsert(Event events) {
+		while(events != null) {
+			Event next = events.next;
+			insert(events);
+			events = next;
+		}
+	}
+	
+	private void insert(Event event) {
+		event.next = null;
+		
+		for(int level = 0; level < LEVELS; level++) {
+			int shift = BITS * (level + 1);
+			if(event.time >>> shift == now >>> shift) {
+				int slot = (int)(event.time >>> (BITS * level)) & MASK;
+				if(tails[level][slot] == null) {
+					heads[level][slot] = event;
+				} else {
+					tails[level][slot].next = event;
+				}
+				tails[level][slot] = event;
+				return;
+			}
+		}
+		
+		if(overflowTail == null) {
+			overflow = event;
+		} else {
+			overflowTail.next = event;
+		}
+		overflowTail = event;
+	}
+}
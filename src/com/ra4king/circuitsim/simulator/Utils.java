@@ -1,6 +1,7 @@
 package com.ra4king.circuitsim.simulator;
 
 import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * @author Roi Atalla
@@ -11,4 +12,45 @@ public class Utils {
 		Arrays.fill(array, value);
 		return array;
 	}
+	
+	/**
+	 * An immutable pair of values, so the simulator does not need javafx.util.Pair.
+	 */
+	public static class Pair<K, V> {
+		private final K key;
+		private final V value;
+		
+		public Pair(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+		
+		public K getKey() {
+			return key;
+		}
+		
+		public V getValue() {
+			return value;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if(other instanceof Pair) {
+				Pair<?, ?> pair = (Pair<?, ?>)other;
+				return Objects.equals(key, pair.key) && Objects.equals(value, pair.value);
+			}
+			
+			return false;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(key) * 31 + Objects.hashCode(value);
+		}
+		
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
 }
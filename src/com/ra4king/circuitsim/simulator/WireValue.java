@@ -1,6 +1,13 @@
 package com.ra4king.circuitsim.simulator;
 
+import java.util.Arrays;
+
 /**
+ * Bits are stored packed in two masks: a set bit in {@code ones} means the bit is ONE and a set bit in {@code
+ * undefined} means the bit is X. A bit set in neither is ZERO, and no bit is ever set in both. Bits at or above
+ * the bit size are always clear in both masks. The first 64 bits live in primitive fields; wider buses spill the
+ * remaining bits into the {@code upper*} arrays.
+ *
  * @author Roi Atalla
  */
 public class WireValue {
@@ -18,119 +25,334 @@ public class WireValue {
 		}
 	}
 	
-	private State[] bits;
+	private static final long[] NO_WORDS = new long[0];
+	
+	private int bitSize;
+	private long ones;
+	private long undefined;
+	private long[] upperOnes;
+	private long[] upperUndefined;
+	
+	private boolean readOnly;
 	
 	public WireValue(int bitSize) {
 		this(bitSize, State.X);
 	}
 	
 	public WireValue(int bitSize, State state) {
-		bits = new State[bitSize];
+		allocate(bitSize);
 		setAllBits(state);
 	}
 	
 	public WireValue(State... states) {
-		bits = states;
+		allocate(states.length);
+		for(int i = 0; i < states.length; i++) {
+			setBit(i, states[i]);
+		}
 	}
 	
 	public WireValue(WireValue value) {
-		bits = new State[value.bits.length];
-		System.arraycopy(value.bits, 0, bits, 0, bits.length);
+		allocate(value.bitSize);
+		set(value);
 	}
 	
 	public WireValue(WireValue value, int newSize) {
-		bits = new State[newSize];
-		setAllBits(State.ZERO);
-		System.arraycopy(value.bits, 0, bits, 0, newSize < value.bits.length ? newSize : value.bits.length);
+		allocate(newSize);
+		copyLowBits(value);
+	}
+	
+	private void allocate(int bitSize) {
+		if(bitSize < 0) {
+			throw new NegativeArraySizeException(String.valueOf(bitSize));
+		}
+		
+		this.bitSize = bitSize;
+		this.ones = 0;
+		this.undefined = 0;
+		
+		int upperWords = bitSize <= 64 ? 0 : ((bitSize - 1) >>> 6);
+		if(upperOnes == null || upperOnes.length != upperWords) {
+			upperOnes = upperWords == 0 ? NO_WORDS : new long[upperWords];
+			upperUndefined = upperWords == 0 ? NO_WORDS : new long[upperWords];
+		} else {
+			Arrays.fill(upperOnes, 0);
+			Arrays.fill(upperUndefined, 0);
+		}
+	}
+	
+	/**
+	 * Returns the mask of valid bits in the given word index.
+	 */
+	private long wordMask(int word) {
+		int bits = bitSize - (word << 6);
+		return bits >= 64 ? -1L : bits <= 0 ? 0L : (1L << bits) - 1;
+	}
+	
+	/**
+	 * Copies min(this.bitSize, value.bitSize) low bits from value, leaving the rest as ZERO.
+	 */
+	private void copyLowBits(WireValue value) {
+		int words = Math.min(upperOnes.length, value.upperOnes.length);
+		ones = value.ones & wordMask(0);
+		undefined = value.undefined & wordMask(0);
+		for(int i = 0; i < words; i++) {
+			upperOnes[i] = value.upperOnes[i] & wordMask(i + 1);
+			upperUndefined[i] = value.upperUndefined[i] & wordMask(i + 1);
+		}
+	}
+	
+	/**
+	 * Returns a mask of all bits where both values are defined but disagree. Both values must be the same size.
+	 */
+	private long conflicts(WireValue value, int word) {
+		if(word == 0) {
+			return ~(undefined | value.undefined) & (ones ^ value.ones);
+		}
+		
+		int i = word - 1;
+		return ~(upperUndefined[i] | value.upperUndefined[i]) & (upperOnes[i] ^ value.upperOnes[i]);
 	}
 	
 	public WireValue merge(WireValue value) {
+		if(!merge(value, null)) {
+			throw new ShortCircuitException(this, value);
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Merges the value into this one unless some bits conflict, in which case neither value is modified.
+	 *
+	 * @param value     The value to merge into this one.
+	 * @param conflicts If not null, receives ONE at every bit where both values are defined but disagree, ZERO
+	 *                  elsewhere. Must be the same size.
+	 * @return true if the values were merged, false if they conflict.
+	 */
+	public boolean merge(WireValue value, WireValue conflicts) {
+		checkWritable();
+		
 		if(value.getBitSize() != this.getBitSize()) {
 			throw new IllegalStateException("Different size wires detected: wanted "
 					                                + this.getBitSize() + ", found " + value.getBitSize());
 		}
 		
-		for(int i = 0; i < getBitSize(); i++) {
-			if(getBit(i) == State.X) {
-				setBit(i, value.getBit(i));
-			} else if(value.getBit(i) == State.X) {
-				setBit(i, getBit(i));
-			} else if(value.getBit(i) != getBit(i)) {
-				throw new ShortCircuitException(this, value);
+		if(conflicts != null) {
+			conflicts.checkWritable();
+			
+			if(conflicts.getBitSize() != this.getBitSize()) {
+				throw new IllegalStateException("Different size conflicts detected: wanted "
+						                                + this.getBitSize() + ", found " + conflicts.getBitSize());
 			}
 		}
 		
-		return this;
+		long anyConflicts = 0;
+		for(int word = 0; word <= upperOnes.length; word++) {
+			long mask = conflicts(value, word);
+			anyConflicts |= mask;
+			if(conflicts != null) {
+				conflicts.setWord(word, mask, 0);
+			}
+		}
+		
+		if(anyConflicts != 0) {
+			return false;
+		}
+		
+		// X bits never have their ONE bit set, so OR-ing the ones and AND-ing the undefineds is a merge
+		ones |= value.ones;
+		undefined &= value.undefined;
+		for(int i = 0; i < upperOnes.length; i++) {
+			upperOnes[i] |= value.upperOnes[i];
+			upperUndefined[i] &= value.upperUndefined[i];
+		}
+		
+		return true;
 	}
 	
 	public static WireValue of(long value, int bitSize) {
-		WireValue wireValue = new WireValue(bitSize);
-		for(int i = bitSize - 1; i >= 0; i--) {
-			if((value & (1 << i)) == 0) {
-				wireValue.setBit(i, State.ZERO);
-			} else {
-				wireValue.setBit(i, State.ONE);
-			}
-		}
+		WireValue wireValue = new WireValue(bitSize, State.ZERO);
+		wireValue.ones = value & wireValue.wordMask(0);
 		return wireValue;
 	}
 	
 	public void setAllBits(State state) {
-		for(int i = 0; i < bits.length; i++) {
-			bits[i] = state;
+		checkWritable();
+		
+		long onesFill = state == State.ONE ? -1L : 0L;
+		long undefinedFill = state == State.X ? -1L : 0L;
+		
+		ones = onesFill & wordMask(0);
+		undefined = undefinedFill & wordMask(0);
+		for(int i = 0; i < upperOnes.length; i++) {
+			upperOnes[i] = onesFill & wordMask(i + 1);
+			upperUndefined[i] = undefinedFill & wordMask(i + 1);
 		}
 	}
 	
 	public int getBitSize() {
-		return bits.length;
+		return bitSize;
 	}
 	
 	public void setBitSize(int bitSize) {
-		State[] oldBits = bits;
+		checkWritable();
+		
+		if(bitSize == this.bitSize) {
+			return;
+		}
 		
-		bits = new State[bitSize];
+		WireValue old = new WireValue(this);
+		allocate(bitSize);
 		setAllBits(State.X);
-		System.arraycopy(oldBits, 0, bits, 0, bitSize < oldBits.length ? bitSize : oldBits.length);
+		
+		int copied = Math.min(bitSize, old.bitSize);
+		for(int i = 0; i < copied; i++) {
+			setBit(i, old.getBit(i));
+		}
 	}
 	
 	public State getBit(int index) {
-		return bits[index];
+		if(index < 0 || index >= bitSize) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		
+		long o, u;
+		if(index < 64) {
+			o = ones;
+			u = undefined;
+		} else {
+			o = upperOnes[(index >>> 6) - 1];
+			u = upperUndefined[(index >>> 6) - 1];
+		}
+		
+		long bit = 1L << index;
+		return (u & bit) != 0 ? State.X : (o & bit) != 0 ? State.ONE : State.ZERO;
 	}
 	
 	public void setBit(int index, State state) {
-		bits[index] = state;
+		checkWritable();
+		
+		if(index < 0 || index >= bitSize) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		
+		long bit = 1L << index;
+		long o = state == State.ONE ? bit : 0L;
+		long u = state == State.X ? bit : 0L;
+		
+		if(index < 64) {
+			ones = (ones & ~bit) | o;
+			undefined = (undefined & ~bit) | u;
+		} else {
+			int i = (index >>> 6) - 1;
+			upperOnes[i] = (upperOnes[i] & ~bit) | o;
+			upperUndefined[i] = (upperUndefined[i] & ~bit) | u;
+		}
 	}
 	
 	public WireValue set(WireValue other) {
+		checkWritable();
+		assign(other);
+		return this;
+	}
+	
+	/**
+	 * Same as {@code set}, but allowed on read-only values. Only the owner of a read-only value may call this.
+	 */
+	void assign(WireValue other) {
 		if(other.getBitSize() != getBitSize()) {
-			throw new IllegalArgumentException("Cannot set wire of different size bits. Wanted: " + bits.length +
-					                                   ", Found: " + other.bits.length);
+			throw new IllegalArgumentException("Cannot set wire of different size bits. Wanted: " + bitSize +
+					                                   ", Found: " + other.bitSize);
 		}
 		
-		System.arraycopy(other.bits, 0, bits, 0, bits.length);
+		ones = other.ones;
+		undefined = other.undefined;
+		if(upperOnes.length > 0) {
+			System.arraycopy(other.upperOnes, 0, upperOnes, 0, upperOnes.length);
+			System.arraycopy(other.upperUndefined, 0, upperUndefined, 0, upperUndefined.length);
+		}
+	}
+	
+	int getWordCount() {
+		return upperOnes.length + 1;
+	}
+	
+	long getOnesWord(int word) {
+		return word == 0 ? ones : upperOnes[word - 1];
+	}
+	
+	long getUndefinedWord(int word) {
+		return word == 0 ? undefined : upperUndefined[word - 1];
+	}
+	
+	long getZerosWord(int word) {
+		return ~(getOnesWord(word) | getUndefinedWord(word)) & wordMask(word);
+	}
+	
+	/**
+	 * Overwrites a whole word, bits outside the bit size are dropped. Ignores the read-only flag.
+	 */
+	void setWord(int word, long ones, long undefined) {
+		long mask = wordMask(word);
+		if(word == 0) {
+			this.ones = ones & mask;
+			this.undefined = undefined & ~ones & mask;
+		} else {
+			upperOnes[word - 1] = ones & mask;
+			upperUndefined[word - 1] = undefined & ~ones & mask;
+		}
+	}
+	
+	/**
+	 * Read-only values are views owned by a CircuitState, they are updated in place as the simulation runs.
+	 * Copy them with {@code new WireValue(value)} in order to keep or modify them.
+	 *
+	 * @return true if this value cannot be modified.
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
+	WireValue makeReadOnly() {
+		readOnly = true;
 		return this;
 	}
 	
+	private void checkWritable() {
+		if(readOnly) {
+			throw new UnsupportedOperationException("This WireValue is read-only, copy it before modifying it.");
+		}
+	}
+	
 	public WireValue slice(int offset, int length) {
-		if(offset <= 0 || offset + length > bits.length) {
+		if(offset <= 0 || offset + length > bitSize) {
 			throw new IllegalArgumentException("Incorrect offset and length: " + offset + ", " + length);
 		}
 		
 		WireValue value = new WireValue(length);
-		for(int i = offset; i < offset + length; i++) {
-			value.setBit(i - offset, bits[i]);
+		if(offset + length <= 64) {
+			value.ones = (ones >>> offset) & value.wordMask(0);
+			value.undefined = (undefined >>> offset) & value.wordMask(0);
+		} else {
+			for(int i = offset; i < offset + length; i++) {
+				value.setBit(i - offset, getBit(i));
+			}
 		}
 		
 		return value;
 	}
 	
 	public boolean isValidValue() {
-		if(bits.length == 0) {
+		if(bitSize == 0) {
+			return false;
+		}
+		
+		if(undefined != 0) {
 			return false;
 		}
 		
-		for(State bit : bits) {
-			if(bit == State.X) {
+		for(long u : upperUndefined) {
+			if(u != 0) {
 				return false;
 			}
 		}
@@ -139,15 +361,13 @@ public class WireValue {
 	}
 	
 	public int getValue() {
-		int value = 0;
-		for(int i = 0; i < bits.length; i++) {
-			if(bits[i] == State.X) throw new IllegalStateException("Invalid value");
-			
-			value |= (1 << i) * (bits[i] == State.ONE ? 1 : 0);
+		if(!isValidValue() && bitSize != 0) {
+			throw new IllegalStateException("Invalid value");
 		}
-		return value;
+		
+		return (int)ones;
 	}
-
+	
 	/**
 	 * Converts the value held on this wire to a hex string.
 	 *
@@ -167,22 +387,17 @@ public class WireValue {
 		}
 		return value;
 	}
-
+	
 	@Override
 	public boolean equals(Object other) {
 		if(other instanceof WireValue) {
 			WireValue value = (WireValue)other;
-			if(value.getBitSize() != this.getBitSize()) {
+			if(value.bitSize != this.bitSize || value.ones != this.ones || value.undefined != this.undefined) {
 				return false;
 			}
 			
-			for(int i = 0; i < this.getBitSize(); i++) {
-				if(this.getBit(i) != value.getBit(i)) {
-					return false;
-				}
-			}
-			
-			return true;
+			return upperOnes.length == 0 || (Arrays.equals(upperOnes, value.upperOnes) &&
+					                                 Arrays.equals(upperUndefined, value.upperUndefined));
 		}
 		
 		return false;
@@ -136,6 +136,11 @@ public class Subcircuit extends Component {
 		return getPort(index);
 	}
 	
+	@Override
+	public int getDelay() {
+		return 0;
+	}
+	
 	@Override
 	public void valueChanged(CircuitState state, WireValue value, int portIndex) {
 		CircuitState subcircuitState = (CircuitState)state.getComponentProperty(this);
@@ -25,6 +25,14 @@ public class Comparator extends Component {
 		this.useSignedCompare = useSignedCompare;
 	}
 	
+	public int getBitSize() {
+		return bitSize;
+	}
+	
+	public boolean isSignedCompare() {
+		return useSignedCompare;
+	}
+	
 	@Override
 	public void valueChanged(CircuitState state, WireValue value, int portIndex) {
 		WireValue inputA = state.getLastReceived(getPort(PORT_A));
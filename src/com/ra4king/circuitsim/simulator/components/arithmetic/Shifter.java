@@ -31,6 +31,14 @@ public class Shifter extends Component {
 		this.shiftType = shiftType;
 	}
 	
+	public int getBitSize() {
+		return bitSize;
+	}
+	
+	public ShiftType getShiftType() {
+		return shiftType;
+	}
+	
 	private static int getShiftBits(int bitSize) {
 		return Math.max(1, (int)Math.ceil(Math.log(bitSize) / Math.log(2)));
 	}
@@ -45,7 +45,7 @@ public class Register extends Component {
 			state.putComponentProperty(this, pushValue);
 		} else if(state.getLastReceived(getPort(PORT_ENABLE)).getBit(0) != State.ZERO) {
 			if(portIndex == PORT_CLK && value.getBit(0) == State.ONE) {
-				WireValue pushValue = state.getLastReceived(getPort(PORT_IN));
+				WireValue pushValue = new WireValue(state.getLastReceived(getPort(PORT_IN)));
 				state.pushValue(getPort(PORT_OUT), pushValue);
 				state.putComponentProperty(this, pushValue);
 			}
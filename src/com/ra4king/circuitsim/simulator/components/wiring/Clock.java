@@ -2,6 +2,8 @@ package com.ra4king.circuitsim.simulator.components.wiring;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 
 import com.ra4king.circuitsim.simulator.Circuit;
 import com.ra4king.circuitsim.simulator.CircuitState;
@@ -14,14 +16,26 @@ import com.ra4king.circuitsim.simulator.WireValue;
  * @author Roi Atalla
  */
 public class Clock extends Component {
+	private static final WireValue LOW = WireValue.of(0, 1);
+	private static final WireValue HIGH = WireValue.of(1, 1);
+	
+	/**
+	 * The frequency that ticks the clock as fast as the circuit can settle.
+	 */
+	public static final int UNLIMITED = -1;
+	
+	// How long the clock thread holds the Simulator lock for a batch of ticks, so others can get it in between
+	private static final long MAX_BATCH_NANOS = 2000000;
+	// How far the clock may fall behind before the missed ticks are dropped instead of caught up on
+	private static final long MAX_LAG_NANOS = 100000000;
+	
 	private static class ClockInfo {
 		private Map<Clock, Object> clocks = new ConcurrentHashMap<>();
 		private Map<ClockChangeListener, Object> clockChangeListeners = new ConcurrentHashMap<>();
 		
-		private Thread currentClock;
-		private boolean clock;
+		private volatile Thread currentClock;
+		private volatile boolean clock;
 		
-		private long lastTickTime;
 		private long lastPrintTime;
 		private int tickCount;
 		private volatile int lastTickCount;
@@ -34,47 +48,127 @@ public class Clock extends Component {
 		}
 		
 		void tick() {
+			notifyListeners(push());
+		}
+		
+		// Flips the clock and pushes it to every Clock, without notifying the listeners
+		WireValue push() {
 			clock = !clock;
-			WireValue clockValue = WireValue.of(clock ? 1 : 0, 1);
+			WireValue clockValue = clock ? HIGH : LOW;
 			clocks.forEach((clock, o) -> {
 				if(clock.getCircuit() != null) {
 					clock.getCircuit().forEachState(state -> state.pushValue(clock.getPort(PORT), clockValue));
 				}
 			});
+			return clockValue;
+		}
+		
+		void notifyListeners(WireValue clockValue) {
 			clockChangeListeners.forEach((listener, o) -> listener.valueChanged(clockValue));
 		}
 		
-		void startClock(int hertz) {
-			lastTickTime = lastPrintTime = System.nanoTime();
-			lastTickCount = tickCount = 0;
+		RunResult run(Simulator simulator, long cycles, BooleanSupplier condition) {
+			stopClock();
 			
-			final long nanosPerTick = (long)(1e9 / (2 * hertz));
+			long startTime = System.nanoTime();
+			long count = 0;
+			boolean conditionMet = false;
+			
+			try {
+				while(count < cycles && !conditionMet && !Thread.currentThread().isInterrupted()) {
+					simulator.getLock().lock();
+					try {
+						long batchStart = System.nanoTime();
+						do {
+							// A full cycle is two edges, each settled before the next
+							push();
+							simulator.stepAll();
+							push();
+							simulator.stepAll();
+							count++;
+							
+							conditionMet = condition != null && condition.getAsBoolean();
+						} while(count < cycles && !conditionMet && System.nanoTime() - batchStart < MAX_BATCH_NANOS);
+					} finally {
+						simulator.getLock().unlock();
+					}
+					
+					if(count < cycles && !conditionMet) {
+						// Let threads waiting on the lock in before it is taken again right away
+						LockSupport.parkNanos(MAX_BATCH_NANOS / 40);
+					}
+				}
+			} finally {
+				notifyListeners(clock ? HIGH : LOW);
+			}
 			
+			return new RunResult(count, System.nanoTime() - startTime, conditionMet);
+		}
+		
+		/**
+		 * Ticks are scheduled at fixed times from the start, so the time spent ticking and the sleeping granularity
+		 * do not add up to drift. The ticks that are due are run in a batch under a single acquisition of the
+		 * Simulator lock, each one settled by the listeners before the next one.
+		 */
+		void startClock(Simulator simulator, int hertz) {
 			stopClock();
+			
+			lastPrintTime = System.nanoTime();
+			lastTickCount = tickCount = 0;
+			
+			final long nanosPerTick = hertz <= 0 ? 0 : (long)(1e9 / (2 * hertz));
+			
 			Thread clockThread = new Thread(() -> {
-				Thread thread = currentClock;
+				Thread thread = Thread.currentThread();
 				
-				while(thread != null && !thread.isInterrupted()) {
+				long startTime = System.nanoTime();
+				long ticks = 0;
+				
+				while(currentClock == thread && !thread.isInterrupted()) {
 					long now = System.nanoTime();
+					
+					if(nanosPerTick > 0) {
+						long nextTickTime = startTime + ticks * nanosPerTick;
+						if(nextTickTime - now > 0) {
+							LockSupport.parkNanos(nextTickTime - now);
+							continue;
+						}
+						
+						if(now - nextTickTime > MAX_LAG_NANOS) {
+							startTime = now;
+							ticks = 0;
+						}
+					}
+					
+					try {
+						simulator.getLock().lockInterruptibly();
+					} catch(InterruptedException exc) {
+						break;
+					}
+					
+					long batchStart = System.nanoTime();
+					try {
+						do {
+							tick();
+							tickCount++;
+							ticks++;
+							
+							now = System.nanoTime();
+						} while(currentClock == thread && now - batchStart < MAX_BATCH_NANOS
+							        && (nanosPerTick == 0 || now - (startTime + ticks * nanosPerTick) >= 0));
+					} finally {
+						simulator.getLock().unlock();
+					}
+					
 					if(now - lastPrintTime >= 1e9) {
 						lastTickCount = tickCount;
 						tickCount = 0;
 						lastPrintTime = now;
-						lastTickTime = now;
 					}
 					
-					tick();
-					tickCount++;
-					
-					lastTickTime += nanosPerTick;
-					
-					long diff = lastTickTime - System.nanoTime();
-					if(diff >= 1e6 || (tickCount >> 1) >= hertz) {
-						try {
-							Thread.sleep(Math.max(1, (long)(diff / 1e6)));
-						} catch(InterruptedException exc) {
-							break;
-						}
+					if(now - batchStart >= MAX_BATCH_NANOS) {
+						// Still behind, so let threads waiting on the lock in before it is taken again right away
+						LockSupport.parkNanos(MAX_BATCH_NANOS / 40);
 					}
 				}
 			});
@@ -133,6 +227,11 @@ public class Clock extends Component {
 		circuitState.pushValue(getPort(PORT), WireValue.of(clock.clock ? 1 : 0, 1));
 	}
 	
+	@Override
+	public int getDelay() {
+		return 0;
+	}
+	
 	@Override
 	public void valueChanged(CircuitState state, WireValue value, int portIndex) {}
 	
@@ -160,9 +259,31 @@ public class Clock extends Component {
 		clock.reset();
 	}
 	
+	/**
+	 * Runs full clock cycles, high then low, in a loop on the current thread that settles the circuit after every edge,
+	 * until the number of cycles has run or the condition is true at the end of a cycle. The cycles are run in batches
+	 * under a single acquisition of the Simulator lock, and the clock change listeners are only notified once at the
+	 * end. A running clock is stopped first.
+	 * <p>
+	 * Interrupting the thread stops the run after the current batch. A SimulationException stops it where it happened.
+	 *
+	 * @param cycles    The maximum number of cycles to run.
+	 * @param condition Checked with the Simulator lock held after each cycle, or null to run all the cycles.
+	 * @return The number of cycles run and how long they took.
+	 */
+	public static RunResult run(Simulator simulator, long cycles, BooleanSupplier condition) {
+		ClockInfo clock = get(simulator);
+		return clock.run(simulator, cycles, condition);
+	}
+	
+	/**
+	 * Starts ticking the clock on a separate thread.
+	 *
+	 * @param hertz The number of full clock cycles per second, or UNLIMITED for as many as possible.
+	 */
 	public static void startClock(Simulator simulator, int hertz) {
 		ClockInfo clock = get(simulator);
-		clock.startClock(hertz);
+		clock.startClock(simulator, hertz);
 	}
 	
 	public static boolean isRunning(Simulator simulator) {
@@ -188,4 +309,26 @@ public class Clock extends Component {
 	public interface ClockChangeListener {
 		void valueChanged(WireValue value);
 	}
+	
+	public static class RunResult {
+		public final long cycles;
+		public final long nanos;
+		public final boolean conditionMet;
+		
+		RunResult(long cycles, long nanos, boolean conditionMet) {
+			this.cycles = cycles;
+			this.nanos = nanos;
+			this.conditionMet = conditionMet;
+		}
+		
+		public double getCyclesPerSecond() {
+			return nanos == 0 ? 0 : cycles * 1e9 / nanos;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d cycles in %.3f s (%.0f cycles/s)%s", cycles, nanos / 1e9, getCyclesPerSecond(),
+			                     conditionMet ? ", condition met" : "");
+		}
+	}
 }
@@ -32,6 +32,11 @@ public class Constant extends Component {
 		circuitState.pushValue(getPort(PORT), WireValue.of(value, bitSize));
 	}
 	
+	@Override
+	public int getDelay() {
+		return 0;
+	}
+	
 	@Override
 	public void valueChanged(CircuitState circuitState, WireValue value, int portIndex) {}
 }
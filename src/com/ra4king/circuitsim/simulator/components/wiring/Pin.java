@@ -57,6 +57,11 @@ public class Pin extends Component {
 		}
 	}
 	
+	@Override
+	public int getDelay() {
+		return 0;
+	}
+	
 	@Override
 	public void valueChanged(CircuitState state, WireValue value, int portIndex) {
 		Set<PinChangeListener> listeners = pinChangeListeners.get(state);
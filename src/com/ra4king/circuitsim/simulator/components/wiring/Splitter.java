@@ -59,6 +59,11 @@ public class Splitter extends Component {
 		return fanouts;
 	}
 	
+	@Override
+	public int getDelay() {
+		return 0;
+	}
+	
 	@Override
 	public void valueChanged(CircuitState state, WireValue value, int portIndex) {
 		if(portIndex == PORT_JOINED) {
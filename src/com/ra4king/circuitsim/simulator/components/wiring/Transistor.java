@@ -23,6 +23,10 @@ public class Transistor extends Component {
 		enableBit = isPType ? State.ZERO : State.ONE;
 	}
 	
+	public boolean isPType() {
+		return enableBit == State.ZERO;
+	}
+	
 	@Override
 	public void valueChanged(CircuitState state, WireValue value, int portIndex) {
 		if(portIndex == PORT_OUT) {
@@ -0,0 +1,182 @@
+package com.ra4king.circuitsim.simulator.components.wiring;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.ra4king.circuitsim.simulator.Circuit;
+import com.ra4king.circuitsim.simulator.CircuitState;
+import com.ra4king.circuitsim.simulator.Component;
+import com.ra4king.circuitsim.simulator.Port;
+import com.ra4king.circuitsim.simulator.WireValue;
+
+/**
+ * All Tunnels in the same Circuit with the same label and bit size behave as if they were wired together.
+ *
+ * @author Roi Atalla
+ */
+public class Tunnel extends Component {
+	private static Map<Circuit, Map<String, Set<Tunnel>>> tunnels = new HashMap<>();
+	
+	public static final int PORT = 0;
+	
+	private final String label;
+	private final int bitSize;
+	
+	public Tunnel(String label, int bitSize) {
+		super(label, new int[] { bitSize });
+		
+		this.label = label;
+		this.bitSize = bitSize;
+	}
+	
+	public String getLabel() {
+		return label;
+	}
+	
+	public int getBitSize() {
+		return bitSize;
+	}
+	
+	/**
+	 * @return all Tunnels in the same Circuit with the same label, including this one. They may differ in bit size.
+	 */
+	public Set<Tunnel> getLinkedTunnels() {
+		Map<String, Set<Tunnel>> tunnelSet = tunnels.get(getCircuit());
+		if(tunnelSet != null && tunnelSet.containsKey(label)) {
+			return Collections.unmodifiableSet(tunnelSet.get(label));
+		}
+		
+		return Collections.emptySet();
+	}
+	
+	@Override
+	public void setCircuit(Circuit circuit) {
+		Circuit oldCircuit = getCircuit();
+		
+		super.setCircuit(circuit);
+		
+		if(label.isEmpty()) {
+			return;
+		}
+		
+		if(circuit != null) {
+			Map<String, Set<Tunnel>> tunnelSet = tunnels.computeIfAbsent(circuit, l -> new HashMap<>());
+			Set<Tunnel> toNotify = tunnelSet.computeIfAbsent(label, c -> new HashSet<>());
+			toNotify.add(this);
+		} else {
+			Map<String, Set<Tunnel>> tunnelSet = tunnels.get(oldCircuit);
+			if(tunnelSet != null) {
+				Set<Tunnel> toNotify = tunnelSet.get(label);
+				if(toNotify != null) {
+					toNotify.remove(this);
+					
+					if(toNotify.isEmpty()) {
+						tunnelSet.remove(label);
+						
+						if(tunnelSet.isEmpty()) {
+							tunnels.remove(oldCircuit);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void init(CircuitState state, Object lastProperty) {
+		if(label.isEmpty()) {
+			return;
+		}
+		
+		Map<String, Set<Tunnel>> tunnelSet = tunnels.get(getCircuit());
+		if(tunnelSet != null) {
+			Set<Tunnel> toNotify = tunnelSet.get(label);
+			WireValue value = new WireValue(bitSize);
+			
+			for(Tunnel tunnel : toNotify) {
+				if(tunnel != this) {
+					Port port = tunnel.getPort(PORT);
+					WireValue portValue = state.getLastReceived(port);
+					if(portValue.getBitSize() == value.getBitSize()) {
+						if(!value.merge(portValue, null)) {
+							return; // nothing to push, it's a short circuit
+						}
+					}
+				}
+			}
+			
+			state.pushValue(getPort(PORT), value);
+		}
+	}
+	
+	@Override
+	public void uninit(CircuitState state) {
+		Map<String, Set<Tunnel>> tunnelSet = tunnels.get(getCircuit());
+		if(tunnelSet != null) {
+			Set<Tunnel> toNotify = tunnelSet.get(label);
+			if(toNotify != null) {
+				tunnels:
+				for(Tunnel tunnel : toNotify) {
+					if(tunnel.bitSize == bitSize) {
+						WireValue combined = new WireValue(bitSize);
+						
+						for(Tunnel otherTunnel : toNotify) {
+							if(tunnel != otherTunnel && otherTunnel != this) {
+								Port port = otherTunnel.getPort(PORT);
+								WireValue portValue = state.getLastReceived(port);
+								if(portValue.getBitSize() == combined.getBitSize()) {
+									if(!combined.merge(portValue, null)) {
+										continue tunnels;
+									}
+								}
+							}
+						}
+						
+						state.pushValue(tunnel.getPort(PORT), combined);
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	public int getDelay() {
+		return 0;
+	}
+	
+	@Override
+	public void valueChanged(CircuitState state, WireValue value, int portIndex) {
+		Map<String, Set<Tunnel>> tunnelSet = tunnels.get(getCircuit());
+		if(tunnelSet != null && tunnelSet.containsKey(label)) {
+			Set<Tunnel> toNotify = tunnelSet.get(label);
+			
+			tunnels:
+			for(Tunnel tunnel : toNotify) {
+				if(tunnel != this && tunnel.bitSize == bitSize) {
+					WireValue combined = value;
+					
+					if(toNotify.size() > 2) {
+						combined = new WireValue(bitSize);
+						
+						for(Tunnel otherTunnel : toNotify) {
+							if(tunnel != otherTunnel) {
+								Port port = otherTunnel.getPort(PORT);
+								WireValue portValue = state.getLastReceived(port);
+								if(portValue.getBitSize() == combined.getBitSize()) {
+									if(!combined.merge(portValue, null)) {
+										continue tunnels;
+									}
+								}
+							}
+						}
+					}
+					
+					state.pushValue(tunnel.getPort(PORT), combined);
+				}
+			}
+		}
+	}
+}
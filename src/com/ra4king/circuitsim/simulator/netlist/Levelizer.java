@@ -0,0 +1,302 @@
+package com.ra4king.circuitsim.simulator.netlist;
+
+import com.ra4king.circuitsim.simulator.components.memory.DFlipFlop;
+import com.ra4king.circuitsim.simulator.components.memory.RAM;
+import com.ra4king.circuitsim.simulator.components.memory.Register;
+import com.ra4king.circuitsim.simulator.components.memory.SRFlipFlop;
+import com.ra4king.circuitsim.simulator.components.arithmetic.RandomGenerator;
+import com.ra4king.circuitsim.simulator.components.wiring.Transistor;
+
+/**
+ * Ranks the cells of a Netlist for CYCLE mode. Combinational cells are ranked by their depth from the clocked cells
+ * and the inputs of the circuit, clocked cells all share the level after the deepest combinational cell.
+ * <p>
+ * RAM is ranked as a combinational cell by its address and control inputs: it reads combinationally and only samples
+ * its data on the clock edge, which happens before anything it depends on can change.
+ *
+ * @author Roi Atalla
+ */
+class Levelizer {
+	private final Netlist netlist;
+	private final boolean[] inputs;
+	private final boolean[] outputs;
+	private final int[] slotCell;
+	
+	private Levelizer(Netlist netlist, boolean[] slotInputs, boolean[] slotOutputs) {
+		this.netlist = netlist;
+		this.inputs = slotInputs.clone();
+		this.outputs = slotOutputs.clone();
+		
+		slotCell = new int[netlist.slotNet.length];
+		for(int cell = 0; cell < netlist.cellType.length; cell++) {
+			for(int i = 0; i < netlist.cellNumSlots[cell]; i++) {
+				slotCell[netlist.cellFirstSlot[cell] + i] = cell;
+			}
+		}
+	}
+	
+	/**
+	 * Fills in the levels of the Netlist if it can be simulated cycle by cycle.
+	 *
+	 * @param slotInputs  Slots whose value is read by their cell.
+	 * @param slotOutputs Slots whose value may be driven by their cell.
+	 * @return null on success, otherwise the reason the Netlist must be simulated event by event.
+	 */
+	static String levelize(Netlist netlist, boolean[] slotInputs, boolean[] slotOutputs) {
+		return new Levelizer(netlist, slotInputs, slotOutputs).levelize();
+	}
+	
+	static boolean isClocked(int type) {
+		return type == Netlist.REGISTER || type == Netlist.DFF || type == Netlist.SRFF || type == Netlist.RANDOM;
+	}
+	
+	private static int getClockPort(int type) {
+		switch(type) {
+			case Netlist.REGISTER:
+				return Register.PORT_CLK;
+			case Netlist.DFF:
+				return DFlipFlop.PORT_CLOCK;
+			case Netlist.SRFF:
+				return SRFlipFlop.PORT_CLOCK;
+			case Netlist.RANDOM:
+				return RandomGenerator.PORT_CLK;
+			case Netlist.MEMORY_RAM:
+				return RAM.PORT_CLK;
+			default:
+				return -1;
+		}
+	}
+	
+	private String levelize() {
+		int cells = netlist.cellType.length;
+		
+		for(int cell = 0; cell < cells; cell++) {
+			if(netlist.cellComponents[cell] instanceof Transistor) {
+				return "the circuit contains transistors";
+			}
+			
+			if(netlist.cellType[cell] == Netlist.MEMORY_RAM) {
+				inputs[netlist.cellFirstSlot[cell] + RAM.PORT_DATA] = false;
+			}
+		}
+		
+		String reason = orientSplitters();
+		if(reason != null) {
+			return reason;
+		}
+		
+		reason = checkClocks();
+		if(reason != null) {
+			return reason;
+		}
+		
+		// Edges go from every combinational cell driving a net to every other combinational cell reading it
+		int[] inDegree = new int[cells];
+		int[] edgeStart = new int[cells + 1];
+		for(int pass = 0; pass < 2; pass++) {
+			int[] fill = pass == 0 ? null : edgeStart.clone();
+			int[] edges = pass == 0 ? null : new int[edgeStart[cells]];
+			
+			for(int slot = 0; slot < slotCell.length; slot++) {
+				int from = slotCell[slot];
+				if(!outputs[slot] || !isCombinational(from)) {
+					continue;
+				}
+				
+				int net = netlist.slotNet[slot];
+				for(int i = netlist.netSlotStart[net]; i < netlist.netSlotStart[net + 1]; i++) {
+					int other = netlist.netSlots[i];
+					int to = slotCell[other];
+					if(to != from && inputs[other] && isCombinational(to)) {
+						if(pass == 0) {
+							edgeStart[from + 1]++;
+						} else {
+							edges[fill[from]++] = to;
+							inDegree[to]++;
+						}
+					}
+				}
+			}
+			
+			if(pass == 0) {
+				for(int cell = 0; cell < cells; cell++) {
+					edgeStart[cell + 1] += edgeStart[cell];
+				}
+			} else {
+				reason = rank(edgeStart, edges, inDegree);
+			}
+		}
+		
+		return reason;
+	}
+	
+	private boolean isCombinational(int cell) {
+		int type = netlist.cellType[cell];
+		return type != Netlist.PASSIVE && !isClocked(type);
+	}
+	
+	/**
+	 * Kahn's algorithm, a cell's level is one more than the deepest cell driving it.
+	 */
+	private String rank(int[] edgeStart, int[] edges, int[] inDegree) {
+		int cells = netlist.cellType.length;
+		int[] level = new int[cells];
+		int[] ready = new int[cells];
+		int readyCount = 0;
+		
+		for(int cell = 0; cell < cells; cell++) {
+			if(inDegree[cell] == 0) {
+				ready[readyCount++] = cell;
+			}
+		}
+		
+		int maxLevel = 0;
+		for(int i = 0; i < readyCount; i++) {
+			int cell = ready[i];
+			maxLevel = Math.max(maxLevel, level[cell]);
+			
+			for(int e = edgeStart[cell]; e < edgeStart[cell + 1]; e++) {
+				int to = edges[e];
+				level[to] = Math.max(level[to], level[cell] + 1);
+				if(--inDegree[to] == 0) {
+					ready[readyCount++] = to;
+				}
+			}
+		}
+		
+		if(readyCount < cells) {
+			return "the circuit has a combinational loop";
+		}
+		
+		int levels = maxLevel + 2;
+		int[] levelStart = new int[levels + 1];
+		for(int cell = 0; cell < cells; cell++) {
+			if(isClocked(netlist.cellType[cell])) {
+				level[cell] = levels - 1;
+			}
+			levelStart[level[cell] + 1]++;
+		}
+		
+		for(int l = 0; l < levels; l++) {
+			levelStart[l + 1] += levelStart[l];
+		}
+		
+		netlist.cellLevel = level;
+		netlist.levelStart = levelStart;
+		return null;
+	}
+	
+	/**
+	 * Splitters pass values both ways, so each is oriented by which side is driven. A splitter whose joined net is
+	 * driven splits it into the fans, otherwise it joins the fans.
+	 */
+	private String orientSplitters() {
+		int cells = netlist.cellType.length;
+		int[] drivers = new int[netlist.netBits.length];
+		
+		for(int slot = 0; slot < slotCell.length; slot++) {
+			if(netlist.cellType[slotCell[slot]] == Netlist.SPLITTER) {
+				outputs[slot] = false;
+			} else if(outputs[slot]) {
+				drivers[netlist.slotNet[slot]]++;
+			}
+		}
+		
+		// 0 is undecided, 1 splits and 2 joins. Orienting one splitter may drive the nets of another.
+		int[] direction = new int[cells];
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			
+			for(int cell = 0; cell < cells; cell++) {
+				if(netlist.cellType[cell] != Netlist.SPLITTER || direction[cell] != 0) {
+					continue;
+				}
+				
+				int first = netlist.cellFirstSlot[cell];
+				int joined = first + netlist.cellNumSlots[cell] - 1;
+				
+				boolean fansDriven = false;
+				for(int slot = first; slot < joined; slot++) {
+					fansDriven |= drivers[netlist.slotNet[slot]] > 0;
+				}
+				
+				if(drivers[netlist.slotNet[joined]] > 0) {
+					direction[cell] = 1;
+					for(int slot = first; slot < joined; slot++) {
+						drivers[netlist.slotNet[slot]]++;
+					}
+				} else if(fansDriven) {
+					direction[cell] = 2;
+					drivers[netlist.slotNet[joined]]++;
+				} else {
+					continue;
+				}
+				
+				changed = true;
+			}
+		}
+		
+		for(int cell = 0; cell < cells; cell++) {
+			if(netlist.cellType[cell] != Netlist.SPLITTER) {
+				continue;
+			}
+			
+			int first = netlist.cellFirstSlot[cell];
+			int joined = first + netlist.cellNumSlots[cell] - 1;
+			boolean splits = direction[cell] != 2;
+			
+			inputs[joined] = splits;
+			outputs[joined] = !splits;
+			for(int slot = first; slot < joined; slot++) {
+				inputs[slot] = !splits;
+				outputs[slot] = splits;
+			}
+			
+			// Anything driving the outputs besides this splitter means it is used in both directions
+			if(direction[cell] == 1) {
+				for(int slot = first; slot < joined; slot++) {
+					if(drivers[netlist.slotNet[slot]] > 1) {
+						return "a splitter is driven from both sides";
+					}
+				}
+			} else if(direction[cell] == 2 && drivers[netlist.slotNet[joined]] > 1) {
+				return "a splitter is driven from both sides";
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Clocks must come straight from Clocks or Pins and only feed clock inputs, so that every clocked cell sees the
+	 * edge in the same wave and before any of its data inputs change.
+	 */
+	private String checkClocks() {
+		boolean[] clockNets = new boolean[netlist.netBits.length];
+		
+		for(int cell = 0; cell < netlist.cellType.length; cell++) {
+			int port = getClockPort(netlist.cellType[cell]);
+			if(port != -1) {
+				clockNets[netlist.slotNet[netlist.cellFirstSlot[cell] + port]] = true;
+			}
+		}
+		
+		for(int slot = 0; slot < slotCell.length; slot++) {
+			int cell = slotCell[slot];
+			if(!clockNets[netlist.slotNet[slot]] || netlist.cellType[cell] == Netlist.PASSIVE) {
+				continue;
+			}
+			
+			if(outputs[slot]) {
+				return "a clock is driven by logic";
+			}
+			
+			if(inputs[slot] && slot - netlist.cellFirstSlot[cell] != getClockPort(netlist.cellType[cell])) {
+				return "a clock is used as data";
+			}
+		}
+		
+		return null;
+	}
+}
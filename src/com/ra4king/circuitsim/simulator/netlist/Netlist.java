@@ -0,0 +1,995 @@
+package com.ra4king.circuitsim.simulator.netlist;
+
+import java.util.Map;
+
+import com.ra4king.circuitsim.simulator.Circuit;
+import com.ra4king.circuitsim.simulator.CircuitState;
+import com.ra4king.circuitsim.simulator.Component;
+import com.ra4king.circuitsim.simulator.OscillationException;
+import com.ra4king.circuitsim.simulator.Port;
+import com.ra4king.circuitsim.simulator.ShortCircuitException;
+import com.ra4king.circuitsim.simulator.SimulationException;
+import com.ra4king.circuitsim.simulator.WireValue;
+import com.ra4king.circuitsim.simulator.WireValue.State;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Adder;
+import com.ra4king.circuitsim.simulator.components.arithmetic.BitExtender;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Comparator;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Divider;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Multiplier;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Negator;
+import com.ra4king.circuitsim.simulator.components.arithmetic.RandomGenerator;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Shifter;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Subtractor;
+import com.ra4king.circuitsim.simulator.components.memory.DFlipFlop;
+import com.ra4king.circuitsim.simulator.components.memory.RAM;
+import com.ra4king.circuitsim.simulator.components.memory.ROM;
+import com.ra4king.circuitsim.simulator.components.memory.Register;
+import com.ra4king.circuitsim.simulator.components.memory.SRFlipFlop;
+import com.ra4king.circuitsim.simulator.components.wiring.Pin;
+
+/**
+ * A Circuit compiled into flat int-indexed arrays. Every Link of every CircuitState is a net, Links joined through a
+ * Subcircuit or a Tunnel share the same net. Every Port is a slot holding the value it drives and every Component is
+ * a cell that is evaluated from the values its slots receive. Values are stored as a pair of masks, a bit set in
+ * neither {@code ones} nor {@code zeros} is X and a bit set in both is a short circuit.
+ * <p>
+ * A Netlist is a snapshot of the structure of the Circuit at the time it was compiled and must be recompiled after
+ * the Circuit changes. It is not thread-safe. Values are only written back to the CircuitStates when
+ * {@link #publish()} is called.
+ *
+ * @author Roi Atalla
+ */
+public class Netlist {
+	/**
+	 * EVENT re-evaluates cells in the order their inputs change. CYCLE evaluates combinational cells once per wave in
+	 * levelized order and all clocked cells together after them, it requires a synchronous, loop-free circuit.
+	 */
+	public enum Mode {
+		EVENT,
+		CYCLE
+	}
+	
+	static final int PASSIVE = 0;
+	static final int AND = 1;
+	static final int OR = 2;
+	static final int XOR = 3;
+	static final int BUFFER = 4;
+	static final int ADDER = 5;
+	static final int SUBTRACTOR = 6;
+	static final int MULTIPLIER = 7;
+	static final int DIVIDER = 8;
+	static final int NEGATOR = 9;
+	static final int COMPARATOR = 10;
+	static final int SHIFTER = 11;
+	static final int EXTENDER = 12;
+	static final int MUX = 13;
+	static final int DEMUX = 14;
+	static final int DECODER = 15;
+	static final int PRIORITY_ENCODER = 16;
+	static final int SPLITTER = 17;
+	static final int REGISTER = 18;
+	static final int DFF = 19;
+	static final int SRFF = 20;
+	static final int MEMORY_RAM = 21;
+	static final int MEMORY_ROM = 22;
+	static final int RANDOM = 23;
+	
+	private static final int BIT_ZERO = 0;
+	private static final int BIT_ONE = 1;
+	private static final int BIT_X = 2;
+	
+	private static final int MAX_EVALUATIONS_PER_CELL = 1000;
+	
+	Circuit circuit;
+	
+	// Nets, the slots and reader cells of each net are in CSR form: net n owns [start[n], start[n + 1])
+	int[] netBits;
+	int[] netSlotStart;
+	int[] netSlots;
+	int[] netReaderStart;
+	int[] netReaders;
+	boolean[] netAlwaysNotify;
+	long[] netOnes;
+	long[] netZeros;
+	
+	// Slots, one per Port of every Component instance
+	int[] slotNet;
+	long[] slotOnes;
+	long[] slotZeros;
+	CircuitState[] slotStates;
+	Port[] slotPorts;
+	
+	// Cells, one per Component instance, the slots of a cell are [first, first + count) in Port order
+	int[] cellType;
+	int[] cellFirstSlot;
+	int[] cellNumSlots;
+	int[] cellParam;
+	Object[] cellData;
+	long[] cellOnes;
+	long[] cellZeros;
+	byte[] cellLastClock;
+	Component[] cellComponents;
+	CircuitState[] cellStates;
+	
+	int[] clockSlots;
+	boolean clock;
+	
+	Mode mode = Mode.EVENT;
+	String fallbackReason;
+	
+	// Levelized buckets used in CYCLE mode, the queued cells of level l are levelCells[levelStart[l] + i]
+	int[] cellLevel;
+	int[] levelStart;
+	private int[] levelCount;
+	private int[] levelCells;
+	private int lowestLevel;
+	
+	Map<CircuitState, Map<Port, Integer>> slotIndices;
+	
+	private int[] netQueue;
+	private boolean[] netQueued;
+	private int netHead, netCount;
+	
+	private int[] cellQueue;
+	private boolean[] cellQueued;
+	private int cellHead, cellCount;
+	
+	private int shortedNets;
+	
+	// Scratch space for splitters, sized to the largest number of fans
+	private long[] fanOnes;
+	private long[] fanZeros;
+	private int[] fanIndices;
+	
+	private long recvOnes, recvZeros;
+	
+	Netlist() {}
+	
+	/**
+	 * Called by the compiler once all structural arrays are filled in. Nets are resolved from the initial slot
+	 * values and every cell is queued for evaluation.
+	 */
+	void initialize(int maxFans) {
+		netOnes = new long[netBits.length];
+		netZeros = new long[netBits.length];
+		netQueue = new int[netBits.length];
+		netQueued = new boolean[netBits.length];
+		cellQueue = new int[cellType.length];
+		cellQueued = new boolean[cellType.length];
+		if(mode == Mode.CYCLE) {
+			levelCount = new int[levelStart.length - 1];
+			levelCells = new int[cellType.length];
+			lowestLevel = levelCount.length;
+		}
+		fanOnes = new long[maxFans];
+		fanZeros = new long[maxFans];
+		fanIndices = new int[maxFans];
+		
+		for(int net = 0; net < netBits.length; net++) {
+			resolve(net);
+		}
+		
+		for(int cell = 0; cell < cellType.length; cell++) {
+			if(cellType[cell] != PASSIVE) {
+				queueCell(cell);
+			}
+		}
+	}
+	
+	public Circuit getCircuit() {
+		return circuit;
+	}
+	
+	public int getNetCount() {
+		return netBits.length;
+	}
+	
+	public int getCellCount() {
+		return cellType.length;
+	}
+	
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * @return why CYCLE mode was requested but EVENT mode was chosen, or null.
+	 */
+	public String getFallbackReason() {
+		return fallbackReason;
+	}
+	
+	public boolean getClock() {
+		return clock;
+	}
+	
+	/**
+	 * Toggles the value driven by all Clocks. Call {@link #settle()} to propagate it.
+	 */
+	public void tick() {
+		clock = !clock;
+		for(int slot : clockSlots) {
+			drive(slot, clock ? 1 : 0, clock ? 0 : 1);
+		}
+	}
+	
+	/**
+	 * Sets the value driven by an input Pin of the compiled Circuit. Call {@link #settle()} to propagate it.
+	 *
+	 * @param pin   The input Pin, it must be in the compiled Circuit.
+	 * @param value The value to drive.
+	 */
+	public void setValue(Pin pin, WireValue value) {
+		if(!pin.isInput()) {
+			throw new IllegalArgumentException("Pin is not an input: " + pin);
+		}
+		
+		if(value.getBitSize() != pin.getBitSize()) {
+			throw new IllegalArgumentException("Wanted " + pin.getBitSize() + " bits, found " + value.getBitSize());
+		}
+		
+		long ones = 0, zeros = 0;
+		for(int i = 0; i < value.getBitSize(); i++) {
+			State bit = value.getBit(i);
+			if(bit == State.ONE) {
+				ones |= 1L << i;
+			} else if(bit == State.ZERO) {
+				zeros |= 1L << i;
+			}
+		}
+		
+		drive(getSlot(circuit.getTopLevelState(), pin.getPort(Pin.PORT)), ones, zeros);
+	}
+	
+	/**
+	 * Get the value of the net the Port is attached to in the top level state of the compiled Circuit.
+	 *
+	 * @param port The Port, it must belong to a Component in the compiled Circuit.
+	 * @return The merged value of all slots on the net.
+	 */
+	public WireValue getValue(Port port) {
+		return getValue(circuit.getTopLevelState(), port);
+	}
+	
+	/**
+	 * Get the value of the net the Port is attached to in the given CircuitState.
+	 *
+	 * @param state The CircuitState, it must be the top level state or the state of a nested Subcircuit.
+	 * @param port  The Port, it must belong to a Component in the Circuit of the state.
+	 * @return The merged value of all slots on the net.
+	 */
+	public WireValue getValue(CircuitState state, Port port) {
+		int net = slotNet[getSlot(state, port)];
+		return toWireValue(netBits[net], netOnes[net], netZeros[net]);
+	}
+	
+	public boolean isShortCircuited() {
+		return shortedNets > 0;
+	}
+	
+	private int getSlot(CircuitState state, Port port) {
+		Map<Port, Integer> ports = slotIndices.get(state);
+		Integer slot = ports == null ? null : ports.get(port);
+		if(slot == null) {
+			throw new IllegalArgumentException("Port is not part of this netlist: " + port);
+		}
+		return slot;
+	}
+	
+	/**
+	 * Evaluates queued nets and cells until no values change.
+	 * An OscillationException is thrown if the circuit does not settle and a ShortCircuitException is thrown if a net
+	 * is left with conflicting drivers.
+	 */
+	public void settle() {
+		long budget = (long)MAX_EVALUATIONS_PER_CELL * Math.max(cellType.length, 1);
+		
+		if(mode == Mode.CYCLE) {
+			settleLevelized(budget);
+		} else {
+			settleEvents(budget);
+		}
+		
+		if(shortedNets > 0) {
+			for(int net = 0; net < netBits.length; net++) {
+				long conflict = netOnes[net] & netZeros[net];
+				if(conflict != 0) {
+					throw new ShortCircuitException(toWireValue(netBits[net], conflict, 0),
+					                                toWireValue(netBits[net], 0, conflict));
+				}
+			}
+		}
+	}
+	
+	private void settleEvents(long budget) {
+		while(netCount > 0 || cellCount > 0) {
+			resolveQueuedNets();
+			
+			while(cellCount > 0) {
+				int cell = cellQueue[cellHead];
+				cellQueued[cell] = false;
+				cellHead = cellHead + 1 == cellQueue.length ? 0 : cellHead + 1;
+				cellCount--;
+				
+				if(--budget < 0) {
+					throw new OscillationException();
+				}
+				
+				evaluate(cell);
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates the lowest queued level as one batch and only then resolves the nets it drove. Combinational edges
+	 * always point to a higher level so each cell evaluates once per wave, and since clocked cells share the last
+	 * level they all sample their inputs before any of them commits.
+	 */
+	private void settleLevelized(long budget) {
+		resolveQueuedNets();
+		
+		while(lowestLevel < levelCount.length) {
+			int level = lowestLevel;
+			int start = levelStart[level];
+			int count = levelCount[level];
+			levelCount[level] = 0;
+			
+			lowestLevel = level + 1;
+			while(lowestLevel < levelCount.length && levelCount[lowestLevel] == 0) {
+				lowestLevel++;
+			}
+			
+			budget -= count;
+			if(budget < 0) {
+				throw new OscillationException();
+			}
+			
+			for(int i = start; i < start + count; i++) {
+				cellQueued[levelCells[i]] = false;
+				evaluate(levelCells[i]);
+			}
+			
+			resolveQueuedNets();
+		}
+	}
+	
+	private void resolveQueuedNets() {
+		while(netCount > 0) {
+			int net = netQueue[netHead];
+			netQueued[net] = false;
+			netHead = netHead + 1 == netQueue.length ? 0 : netHead + 1;
+			netCount--;
+			
+			if(resolve(net) || netAlwaysNotify[net]) {
+				for(int i = netReaderStart[net]; i < netReaderStart[net + 1]; i++) {
+					queueCell(netReaders[i]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the values of all slots back to their CircuitStates, along with the internal state of Registers and
+	 * flip-flops, so the GUI and the event-driven Simulator see the results of this Netlist.
+	 */
+	public void publish() {
+		for(int slot = 0; slot < slotNet.length; slot++) {
+			int bits = netBits[slotNet[slot]];
+			receive(slot);
+			slotStates[slot].loadValues(slotPorts[slot],
+			                            toWireValue(bits, slotOnes[slot], slotZeros[slot]),
+			                            toWireValue(bits, recvOnes, recvZeros));
+		}
+		
+		for(int cell = 0; cell < cellType.length; cell++) {
+			switch(cellType[cell]) {
+				case REGISTER:
+					cellStates[cell].putComponentProperty(cellComponents[cell],
+					                                      toWireValue(netBits[slotNet[cellFirstSlot[cell]]],
+					                                                  cellOnes[cell], cellZeros[cell]));
+					break;
+				case DFF:
+				case SRFF:
+					cellStates[cell].putComponentProperty(cellComponents[cell],
+					                                      cellOnes[cell] != 0 ? State.ONE : State.ZERO);
+					break;
+			}
+		}
+	}
+	
+	private void queueNet(int net) {
+		if(!netQueued[net]) {
+			netQueued[net] = true;
+			int tail = netHead + netCount;
+			netQueue[tail >= netQueue.length ? tail - netQueue.length : tail] = net;
+			netCount++;
+		}
+	}
+	
+	private void queueCell(int cell) {
+		if(!cellQueued[cell]) {
+			cellQueued[cell] = true;
+			
+			if(mode == Mode.CYCLE) {
+				int level = cellLevel[cell];
+				levelCells[levelStart[level] + levelCount[level]++] = cell;
+				if(level < lowestLevel) {
+					lowestLevel = level;
+				}
+				return;
+			}
+			
+			int tail = cellHead + cellCount;
+			cellQueue[tail >= cellQueue.length ? tail - cellQueue.length : tail] = cell;
+			cellCount++;
+		}
+	}
+	
+	/**
+	 * Merges the values of all slots on the net.
+	 *
+	 * @return true if the value of the net changed.
+	 */
+	private boolean resolve(int net) {
+		long ones = 0, zeros = 0;
+		for(int i = netSlotStart[net]; i < netSlotStart[net + 1]; i++) {
+			int slot = netSlots[i];
+			ones |= slotOnes[slot];
+			zeros |= slotZeros[slot];
+		}
+		
+		if(ones == netOnes[net] && zeros == netZeros[net]) {
+			return false;
+		}
+		
+		boolean wasShorted = (netOnes[net] & netZeros[net]) != 0;
+		boolean isShorted = (ones & zeros) != 0;
+		if(wasShorted != isShorted) {
+			shortedNets += isShorted ? 1 : -1;
+		}
+		
+		netOnes[net] = ones;
+		netZeros[net] = zeros;
+		return true;
+	}
+	
+	/**
+	 * Merges the values of all other slots on the net of the given slot into recvOnes and recvZeros. Shorted bits
+	 * are received as X.
+	 */
+	private void receive(int slot) {
+		int net = slotNet[slot];
+		long ones, zeros;
+		
+		if((slotOnes[slot] | slotZeros[slot]) == 0) {
+			ones = netOnes[net];
+			zeros = netZeros[net];
+		} else {
+			ones = 0;
+			zeros = 0;
+			for(int i = netSlotStart[net]; i < netSlotStart[net + 1]; i++) {
+				int other = netSlots[i];
+				if(other != slot) {
+					ones |= slotOnes[other];
+					zeros |= slotZeros[other];
+				}
+			}
+		}
+		
+		long conflict = ones & zeros;
+		recvOnes = ones & ~conflict;
+		recvZeros = zeros & ~conflict;
+	}
+	
+	private int receiveBit(int slot) {
+		receive(slot);
+		return (recvOnes & 1) != 0 ? BIT_ONE : (recvZeros & 1) != 0 ? BIT_ZERO : BIT_X;
+	}
+	
+	private boolean receiveValid(int slot) {
+		receive(slot);
+		int bits = netBits[slotNet[slot]];
+		return bits > 0 && (recvOnes | recvZeros) == mask(bits);
+	}
+	
+	private void drive(int slot, long ones, long zeros) {
+		if(slotOnes[slot] != ones || slotZeros[slot] != zeros) {
+			slotOnes[slot] = ones;
+			slotZeros[slot] = zeros;
+			queueNet(slotNet[slot]);
+		}
+	}
+	
+	private void driveValue(int slot, long value) {
+		long mask = mask(netBits[slotNet[slot]]);
+		drive(slot, value & mask, ~value & mask);
+	}
+	
+	private void driveBit(int slot, int bit) {
+		drive(slot, bit == BIT_ONE ? 1 : 0, bit == BIT_ZERO ? 1 : 0);
+	}
+	
+	private static long mask(int bits) {
+		return bits >= 64 ? -1L : (1L << bits) - 1;
+	}
+	
+	private static WireValue toWireValue(int bits, long ones, long zeros) {
+		WireValue value = WireValue.of(ones, bits);
+		long undefined = ~(ones | zeros) & mask(bits);
+		while(undefined != 0) {
+			int bit = Long.numberOfTrailingZeros(undefined);
+			undefined &= undefined - 1;
+			value.setBit(bit, State.X);
+		}
+		return value;
+	}
+	
+	private boolean isRisingEdge(int cell, int clockBit) {
+		boolean rising = cellLastClock[cell] != BIT_ONE && clockBit == BIT_ONE;
+		cellLastClock[cell] = (byte)clockBit;
+		return rising;
+	}
+	
+	private void evaluate(int cell) {
+		int first = cellFirstSlot[cell];
+		int count = cellNumSlots[cell];
+		
+		switch(cellType[cell]) {
+			case AND:
+			case OR:
+			case XOR:
+				evaluateGate(cell, first, count - 1);
+				break;
+			case BUFFER:
+				// ControlledBuffer and Transistor share the same port layout, cellParam is the enabling bit
+				if(receiveBit(first + 1) == cellParam[cell]) {
+					receive(first);
+					drive(first + 2, recvOnes, recvZeros);
+				} else {
+					drive(first + 2, 0, 0);
+				}
+				break;
+			case ADDER: {
+				int bits = netBits[slotNet[first]];
+				if(receiveValid(first + Adder.PORT_A)) {
+					long a = recvOnes;
+					if(receiveValid(first + Adder.PORT_B)) {
+						long b = recvOnes;
+						long c = receiveBit(first + Adder.PORT_CARRY_IN) == BIT_ONE ? 1 : 0;
+						long sum = a + b + c;
+						boolean carry = bits >= 64 ? Long.compareUnsigned(sum, a) < 0 ||
+								                             (c == 1 && sum == a) : ((sum >>> bits) & 1) != 0;
+						driveValue(first + Adder.PORT_OUT, sum);
+						driveBit(first + Adder.PORT_CARRY_OUT, carry ? BIT_ONE : BIT_ZERO);
+						break;
+					}
+				}
+				drive(first + Adder.PORT_OUT, 0, 0);
+				drive(first + Adder.PORT_CARRY_OUT, 0, 0);
+				break;
+			}
+			case SUBTRACTOR:
+				if(receiveValid(first + Subtractor.PORT_A)) {
+					int a = (int)recvOnes;
+					if(receiveValid(first + Subtractor.PORT_B)) {
+						int b = (int)recvOnes;
+						int c = receiveBit(first + Subtractor.PORT_CARRY_IN) == BIT_ONE ? 1 : 0;
+						driveValue(first + Subtractor.PORT_OUT, a - b - c);
+						driveBit(first + Subtractor.PORT_CARRY_OUT, a - b - c < 0 ? BIT_ONE : BIT_ZERO);
+						break;
+					}
+				}
+				drive(first + Subtractor.PORT_OUT, 0, 0);
+				drive(first + Subtractor.PORT_CARRY_OUT, 0, 0);
+				break;
+			case MULTIPLIER: {
+				int bits = netBits[slotNet[first]];
+				if(receiveValid(first + Multiplier.PORT_A)) {
+					long a = recvOnes & 0xFFFFFFFFL;
+					if(receiveValid(first + Multiplier.PORT_B)) {
+						long b = recvOnes & 0xFFFFFFFFL;
+						long c = receiveValid(first + Multiplier.PORT_CARRY_IN) ? recvOnes & 0xFFFFFFFFL : 0;
+						long product = a * b + c;
+						driveValue(first + Multiplier.PORT_OUT_LOWER, (int)product);
+						driveValue(first + Multiplier.PORT_OUT_UPPER, (int)(product >>> bits));
+						break;
+					}
+				}
+				drive(first + Multiplier.PORT_OUT_LOWER, 0, 0);
+				drive(first + Multiplier.PORT_OUT_UPPER, 0, 0);
+				break;
+			}
+			case DIVIDER:
+				if(receiveValid(first + Divider.PORT_DIVIDEND)) {
+					int a = (int)recvOnes;
+					if(receiveValid(first + Divider.PORT_DIVISOR)) {
+						int b = (int)recvOnes;
+						driveValue(first + Divider.PORT_QUOTIENT, b == 0 ? a : a / b);
+						driveValue(first + Divider.PORT_REMAINDER, b == 0 ? 0 : a % b);
+						break;
+					}
+				}
+				drive(first + Divider.PORT_QUOTIENT, 0, 0);
+				drive(first + Divider.PORT_REMAINDER, 0, 0);
+				break;
+			case NEGATOR:
+				if(receiveValid(first + Negator.PORT_IN)) {
+					driveValue(first + Negator.PORT_OUT, -(int)recvOnes);
+				} else {
+					drive(first + Negator.PORT_OUT, 0, 0);
+				}
+				break;
+			case COMPARATOR:
+				evaluateComparator(cell, first);
+				break;
+			case SHIFTER:
+				evaluateShifter(cell, first);
+				break;
+			case EXTENDER: {
+				int inBits = netBits[slotNet[first + BitExtender.PORT_IN]];
+				int outBits = netBits[slotNet[first + BitExtender.PORT_OUT]];
+				receive(first + BitExtender.PORT_IN);
+				long ones = recvOnes & mask(outBits);
+				long zeros = recvZeros & mask(outBits);
+				if(outBits > inBits) {
+					long extension = mask(outBits) & ~mask(inBits);
+					boolean fillOnes =
+						cellParam[cell] == BitExtender.ExtensionType.ONE.ordinal() ||
+							(cellParam[cell] == BitExtender.ExtensionType.SIGN.ordinal() &&
+								 ((recvOnes >>> (inBits - 1)) & 1) != 0);
+					if(fillOnes) {
+						ones |= extension;
+					} else {
+						zeros |= extension;
+					}
+				}
+				drive(first + BitExtender.PORT_OUT, ones, zeros);
+				break;
+			}
+			case MUX: {
+				int inputs = count - 2;
+				if(receiveValid(first + inputs)) {
+					receive(first + (int)recvOnes);
+					drive(first + inputs + 1, recvOnes, recvZeros);
+				} else {
+					drive(first + inputs + 1, 0, 0);
+				}
+				break;
+			}
+			case DEMUX: {
+				int outputs = count - 2;
+				if(receiveValid(first + outputs)) {
+					int selected = (int)recvOnes;
+					receive(first + outputs + 1);
+					long mask = mask(netBits[slotNet[first]]);
+					for(int i = 0; i < outputs; i++) {
+						if(i == selected) {
+							drive(first + i, recvOnes, recvZeros);
+						} else {
+							drive(first + i, 0, mask);
+						}
+					}
+				} else {
+					for(int i = 0; i < outputs; i++) {
+						drive(first + i, 0, 0);
+					}
+				}
+				break;
+			}
+			case DECODER: {
+				int outputs = count - 1;
+				if(receiveValid(first + outputs)) {
+					int selected = (int)recvOnes;
+					for(int i = 0; i < outputs; i++) {
+						driveBit(first + i, i == selected ? BIT_ONE : BIT_ZERO);
+					}
+				} else {
+					for(int i = 0; i < outputs; i++) {
+						drive(first + i, 0, 0);
+					}
+				}
+				break;
+			}
+			case PRIORITY_ENCODER: {
+				int inputs = count - 4;
+				int enabledOut = first + inputs + 1;
+				int group = first + inputs + 2;
+				int out = first + inputs + 3;
+				
+				if(receiveBit(first + inputs) != BIT_ONE) {
+					driveBit(enabledOut, BIT_ZERO);
+					drive(out, 0, 0);
+					driveBit(group, BIT_ZERO);
+					break;
+				}
+				
+				int highest = -1;
+				for(int i = inputs - 1; i >= 0 && highest == -1; i--) {
+					if(receiveBit(first + i) == BIT_ONE) {
+						highest = i;
+					}
+				}
+				
+				if(highest == -1) {
+					driveBit(enabledOut, BIT_ONE);
+					drive(out, 0, 0);
+					driveBit(group, BIT_ZERO);
+				} else {
+					driveBit(enabledOut, BIT_ZERO);
+					driveBit(group, BIT_ONE);
+					driveValue(out, highest);
+				}
+				break;
+			}
+			case SPLITTER:
+				evaluateSplitter(cell, first, count);
+				break;
+			case REGISTER: {
+				boolean rising = isRisingEdge(cell, receiveBit(first + Register.PORT_CLK));
+				if(receiveBit(first + Register.PORT_ZERO) == BIT_ONE) {
+					cellOnes[cell] = 0;
+					cellZeros[cell] = mask(netBits[slotNet[first + Register.PORT_OUT]]);
+				} else if(rising && receiveBit(first + Register.PORT_ENABLE) != BIT_ZERO) {
+					receive(first + Register.PORT_IN);
+					cellOnes[cell] = recvOnes;
+					cellZeros[cell] = recvZeros;
+				}
+				drive(first + Register.PORT_OUT, cellOnes[cell], cellZeros[cell]);
+				break;
+			}
+			case DFF: {
+				boolean rising = isRisingEdge(cell, receiveBit(first + DFlipFlop.PORT_CLOCK));
+				if(receiveBit(first + DFlipFlop.PORT_CLEAR) == BIT_ONE) {
+					cellOnes[cell] = 0;
+				} else if(receiveBit(first + DFlipFlop.PORT_PRESET) == BIT_ONE) {
+					cellOnes[cell] = 1;
+				} else if(rising && receiveBit(first + DFlipFlop.PORT_ENABLE) != BIT_ZERO) {
+					int d = receiveBit(first + DFlipFlop.PORT_D);
+					if(d != BIT_X) {
+						cellOnes[cell] = d;
+					}
+				}
+				driveBit(first + DFlipFlop.PORT_Q, (int)cellOnes[cell]);
+				driveBit(first + DFlipFlop.PORT_QN, 1 - (int)cellOnes[cell]);
+				break;
+			}
+			case SRFF: {
+				boolean rising = isRisingEdge(cell, receiveBit(first + SRFlipFlop.PORT_CLOCK));
+				if(receiveBit(first + SRFlipFlop.PORT_CLEAR) == BIT_ONE) {
+					cellOnes[cell] = 0;
+				} else if(receiveBit(first + SRFlipFlop.PORT_PRESET) == BIT_ONE) {
+					cellOnes[cell] = 1;
+				} else if(rising && receiveBit(first + SRFlipFlop.PORT_ENABLE) != BIT_ZERO) {
+					int s = receiveBit(first + SRFlipFlop.PORT_S);
+					int r = receiveBit(first + SRFlipFlop.PORT_R);
+					if(s == BIT_ONE && r == BIT_ZERO) {
+						cellOnes[cell] = 1;
+					} else if(r == BIT_ONE && s == BIT_ZERO) {
+						cellOnes[cell] = 0;
+					}
+				}
+				driveBit(first + SRFlipFlop.PORT_Q, (int)cellOnes[cell]);
+				driveBit(first + SRFlipFlop.PORT_QN, 1 - (int)cellOnes[cell]);
+				break;
+			}
+			case MEMORY_RAM:
+				evaluateRAM(cell, first);
+				break;
+			case MEMORY_ROM: {
+				int[] memory = (int[])cellData[cell];
+				if(receiveBit(first + ROM.PORT_ENABLE) != BIT_ZERO && receiveValid(first + ROM.PORT_ADDRESS)) {
+					driveValue(first + ROM.PORT_DATA, memory[(int)recvOnes]);
+				} else {
+					drive(first + ROM.PORT_DATA, 0, 0);
+				}
+				break;
+			}
+			case RANDOM:
+				if(isRisingEdge(cell, receiveBit(first + RandomGenerator.PORT_CLK))) {
+					int bits = netBits[slotNet[first + RandomGenerator.PORT_OUT]];
+					driveValue(first + RandomGenerator.PORT_OUT, (long)(Math.random() * (1L << bits)));
+				}
+				break;
+			default:
+				throw new SimulationException("Unknown cell type: " + cellType[cell]);
+		}
+	}
+	
+	private void evaluateGate(int cell, int first, int inputs) {
+		int type = cellType[cell];
+		boolean[] negateInputs = (boolean[])cellData[cell];
+		long mask = mask(netBits[slotNet[first]]);
+		
+		long allX = mask;
+		long accOnes = 0, accZeros = 0;
+		for(int i = 0; i < inputs; i++) {
+			receive(first + i);
+			long ones = negateInputs[i] ? recvZeros : recvOnes;
+			long zeros = negateInputs[i] ? recvOnes : recvZeros;
+			allX &= ~(ones | zeros);
+			
+			if(i == 0) {
+				accOnes = ones;
+				accZeros = zeros;
+				continue;
+			}
+			
+			switch(type) {
+				case AND:
+					accOnes &= ones;
+					break;
+				case OR:
+					accOnes |= ones;
+					break;
+				case XOR:
+					accOnes = (accOnes | accZeros) & (ones | zeros) & (accOnes ^ ones);
+					break;
+			}
+			accZeros = mask & ~accOnes;
+		}
+		
+		accOnes &= ~allX;
+		accZeros &= ~allX;
+		
+		if(cellParam[cell] != 0) {
+			drive(first + inputs, accZeros, accOnes);
+		} else {
+			drive(first + inputs, accOnes, accZeros);
+		}
+	}
+	
+	private void evaluateComparator(int cell, int first) {
+		int bits = netBits[slotNet[first]];
+		if(receiveValid(first + Comparator.PORT_A)) {
+			long valueA = (long)(int)recvOnes;
+			if(receiveValid(first + Comparator.PORT_B)) {
+				long valueB = (long)(int)recvOnes;
+				
+				if(cellParam[cell] != 0) {
+					valueA |= (valueA & (0x1 << (bits - 1))) != 0 ? (-1 << bits) : 0;
+					valueB |= (valueB & (0x1 << (bits - 1))) != 0 ? (-1 << bits) : 0;
+				} else {
+					valueA &= 0xFFFFFFFFL;
+					valueB &= 0xFFFFFFFFL;
+				}
+				
+				driveBit(first + Comparator.PORT_LT, valueA < valueB ? BIT_ONE : BIT_ZERO);
+				driveBit(first + Comparator.PORT_EQ, valueA == valueB ? BIT_ONE : BIT_ZERO);
+				driveBit(first + Comparator.PORT_GT, valueA > valueB ? BIT_ONE : BIT_ZERO);
+				return;
+			}
+		}
+		
+		drive(first + Comparator.PORT_LT, 0, 0);
+		drive(first + Comparator.PORT_EQ, 0, 0);
+		drive(first + Comparator.PORT_GT, 0, 0);
+	}
+	
+	private void evaluateShifter(int cell, int first) {
+		int bits = netBits[slotNet[first + Shifter.PORT_IN]];
+		long mask = mask(bits);
+		
+		if(!receiveValid(first + Shifter.PORT_SHIFT)) {
+			drive(first + Shifter.PORT_OUT, 0, 0);
+			return;
+		}
+		
+		int shift = (int)recvOnes;
+		receive(first + Shifter.PORT_IN);
+		long ones = recvOnes;
+		long undefined = ~(recvOnes | recvZeros) & mask;
+		
+		long resultOnes, resultUndefined;
+		switch(Shifter.ShiftType.values()[cellParam[cell]]) {
+			case LOGICAL_LEFT:
+				resultOnes = shift >= bits ? 0 : (ones << shift) & mask;
+				resultUndefined = shift >= bits ? 0 : (undefined << shift) & mask;
+				break;
+			case LOGICAL_RIGHT:
+				resultOnes = shift >= bits ? 0 : ones >>> shift;
+				resultUndefined = shift >= bits ? 0 : undefined >>> shift;
+				break;
+			case ARITHMETIC_RIGHT: {
+				int s = Math.min(shift, bits);
+				long fill = s == 0 ? 0 : mask & ~mask(bits - s);
+				resultOnes = (s >= bits ? 0 : ones >>> s) | (((ones >>> (bits - 1)) & 1) != 0 ? fill : 0);
+				resultUndefined =
+					(s >= bits ? 0 : undefined >>> s) | (((undefined >>> (bits - 1)) & 1) != 0 ? fill : 0);
+				break;
+			}
+			case ROTATE_LEFT: {
+				int s = shift % bits;
+				resultOnes = s == 0 ? ones : ((ones << s) | (ones >>> (bits - s))) & mask;
+				resultUndefined = s == 0 ? undefined : ((undefined << s) | (undefined >>> (bits - s))) & mask;
+				break;
+			}
+			case ROTATE_RIGHT: {
+				int s = shift % bits;
+				resultOnes = s == 0 ? ones : ((ones >>> s) | (ones << (bits - s))) & mask;
+				resultUndefined = s == 0 ? undefined : ((undefined >>> s) | (undefined << (bits - s))) & mask;
+				break;
+			}
+			default:
+				throw new SimulationException("Unknown shift type");
+		}
+		
+		drive(first + Shifter.PORT_OUT, resultOnes, mask & ~(resultOnes | resultUndefined));
+	}
+	
+	private void evaluateSplitter(int cell, int first, int count) {
+		int[] bitFanIndices = (int[])cellData[cell];
+		int fans = count - 1;
+		int joined = first + fans;
+		
+		// joined bits are scattered into the fans, fan bits are gathered into the joined value
+		receive(joined);
+		long joinedOnes = recvOnes, joinedZeros = recvZeros;
+		
+		for(int i = 0; i < fans; i++) {
+			fanOnes[i] = 0;
+			fanZeros[i] = 0;
+			fanIndices[i] = 0;
+		}
+		
+		long gatheredOnes = 0, gatheredZeros = 0;
+		int currentFan = -1;
+		long currentOnes = 0, currentZeros = 0;
+		
+		for(int bit = 0; bit < bitFanIndices.length; bit++) {
+			int fan = bitFanIndices[bit];
+			if(fan < 0) {
+				continue;
+			}
+			
+			if(fan != currentFan) {
+				receive(first + fan);
+				currentFan = fan;
+				currentOnes = recvOnes;
+				currentZeros = recvZeros;
+			}
+			
+			int index = fanIndices[fan]++;
+			fanOnes[fan] |= ((joinedOnes >>> bit) & 1) << index;
+			fanZeros[fan] |= ((joinedZeros >>> bit) & 1) << index;
+			gatheredOnes |= ((currentOnes >>> index) & 1) << bit;
+			gatheredZeros |= ((currentZeros >>> index) & 1) << bit;
+		}
+		
+		for(int i = 0; i < fans; i++) {
+			drive(first + i, fanOnes[i], fanZeros[i]);
+		}
+		drive(joined, gatheredOnes, gatheredZeros);
+	}
+	
+	private void evaluateRAM(int cell, int first) {
+		int[] memory = (int[])cellData[cell];
+		int dataBits = netBits[slotNet[first + RAM.PORT_DATA]];
+		
+		boolean enabled = receiveBit(first + RAM.PORT_ENABLE) != BIT_ZERO;
+		boolean load = receiveBit(first + RAM.PORT_LOAD) != BIT_ZERO;
+		boolean rising = isRisingEdge(cell, receiveBit(first + RAM.PORT_CLK));
+		
+		// cellOnes holds the last clear bit, memory is cleared on its rising edge only
+		boolean clear = receiveBit(first + RAM.PORT_CLEAR) == BIT_ONE;
+		if(clear && cellOnes[cell] == 0) {
+			for(int i = 0; i < memory.length; i++) {
+				memory[i] = 0;
+			}
+		}
+		cellOnes[cell] = clear ? 1 : 0;
+		
+		boolean addressValid = receiveValid(first + RAM.PORT_ADDRESS);
+		int address = (int)recvOnes;
+		
+		if(rising && !load && addressValid) {
+			memory[address] = receiveValid(first + RAM.PORT_DATA) ? (int)recvOnes : (int)mask(dataBits);
+		}
+		
+		if(enabled && load && addressValid) {
+			driveValue(first + RAM.PORT_DATA, memory[address]);
+		} else {
+			drive(first + RAM.PORT_DATA, 0, 0);
+		}
+	}
+	
+}
@@ -0,0 +1,575 @@
+package com.ra4king.circuitsim.simulator.netlist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ra4king.circuitsim.simulator.Circuit;
+import com.ra4king.circuitsim.simulator.CircuitState;
+import com.ra4king.circuitsim.simulator.Component;
+import com.ra4king.circuitsim.simulator.Port;
+import com.ra4king.circuitsim.simulator.Port.Link;
+import com.ra4king.circuitsim.simulator.SimulationException;
+import com.ra4king.circuitsim.simulator.WireValue;
+import com.ra4king.circuitsim.simulator.WireValue.State;
+import com.ra4king.circuitsim.simulator.components.Subcircuit;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Adder;
+import com.ra4king.circuitsim.simulator.components.arithmetic.BitExtender;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Comparator;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Divider;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Multiplier;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Negator;
+import com.ra4king.circuitsim.simulator.components.arithmetic.RandomGenerator;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Shifter;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Subtractor;
+import com.ra4king.circuitsim.simulator.components.gates.AndGate;
+import com.ra4king.circuitsim.simulator.components.gates.ControlledBuffer;
+import com.ra4king.circuitsim.simulator.components.gates.Gate;
+import com.ra4king.circuitsim.simulator.components.gates.NandGate;
+import com.ra4king.circuitsim.simulator.components.gates.NorGate;
+import com.ra4king.circuitsim.simulator.components.gates.NotGate;
+import com.ra4king.circuitsim.simulator.components.gates.OrGate;
+import com.ra4king.circuitsim.simulator.components.gates.XnorGate;
+import com.ra4king.circuitsim.simulator.components.gates.XorGate;
+import com.ra4king.circuitsim.simulator.components.memory.DFlipFlop;
+import com.ra4king.circuitsim.simulator.components.memory.RAM;
+import com.ra4king.circuitsim.simulator.components.memory.ROM;
+import com.ra4king.circuitsim.simulator.components.memory.Register;
+import com.ra4king.circuitsim.simulator.components.memory.SRFlipFlop;
+import com.ra4king.circuitsim.simulator.components.plexers.Decoder;
+import com.ra4king.circuitsim.simulator.components.plexers.Demultiplexer;
+import com.ra4king.circuitsim.simulator.components.plexers.Multiplexer;
+import com.ra4king.circuitsim.simulator.components.plexers.PriorityEncoder;
+import com.ra4king.circuitsim.simulator.components.wiring.Clock;
+import com.ra4king.circuitsim.simulator.components.wiring.Constant;
+import com.ra4king.circuitsim.simulator.components.wiring.Pin;
+import com.ra4king.circuitsim.simulator.components.wiring.Splitter;
+import com.ra4king.circuitsim.simulator.components.wiring.Transistor;
+import com.ra4king.circuitsim.simulator.components.wiring.Tunnel;
+
+/**
+ * Flattens a Circuit and all of its nested Subcircuits into a Netlist. Subcircuit Ports are merged with the nets of
+ * the Pins they represent and Tunnels with the same label and bit size are merged into a single net, so neither
+ * exists at simulation time.
+ * <p>
+ * Only the built-in Components and passive Components, such as displays, are supported and nets may be at most 64
+ * bits wide, a SimulationException is thrown for anything else so the caller can keep using the event-driven
+ * Simulator.
+ *
+ * @author Roi Atalla
+ */
+public class NetlistCompiler {
+	private final Circuit circuit;
+	
+	private final Map<CircuitState, Map<Link, Integer>> linkNets = new HashMap<>();
+	private final List<Integer> netBits = new ArrayList<>();
+	private int[] parents = new int[16];
+	
+	private final List<Cell> cells = new ArrayList<>();
+	private final List<Integer> clockSlots = new ArrayList<>();
+	private int slotCount;
+	
+	private static class Cell {
+		final int type;
+		final Component component;
+		final CircuitState state;
+		final int firstSlot;
+		int param;
+		Object data;
+		
+		// Ports that the cell reads, a change on their net queues the cell for evaluation
+		boolean[] inputs;
+		
+		Cell(int type, Component component, CircuitState state, int firstSlot) {
+			this.type = type;
+			this.component = component;
+			this.state = state;
+			this.firstSlot = firstSlot;
+			this.inputs = new boolean[component.getNumPorts()];
+		}
+	}
+	
+	private NetlistCompiler(Circuit circuit) {
+		this.circuit = circuit;
+	}
+	
+	/**
+	 * Compiles the top level state of the Circuit. Initial values are taken from the current CircuitStates and every
+	 * cell is queued, call {@link Netlist#settle()} before reading values.
+	 *
+	 * @param circuit The Circuit to compile.
+	 * @return The compiled Netlist.
+	 */
+	public static Netlist compile(Circuit circuit) {
+		return compile(circuit, Netlist.Mode.EVENT);
+	}
+	
+	/**
+	 * Compiles the top level state of the Circuit for the requested Mode. A Circuit that cannot be simulated cycle by
+	 * cycle falls back to EVENT mode, check {@link Netlist#getMode()} and {@link Netlist#getFallbackReason()}.
+	 *
+	 * @param circuit The Circuit to compile.
+	 * @param mode    The Mode to simulate in.
+	 * @return The compiled Netlist.
+	 */
+	public static Netlist compile(Circuit circuit, Netlist.Mode mode) {
+		Netlist[] netlist = new Netlist[1];
+		circuit.getSimulator().runSync(() -> netlist[0] = new NetlistCompiler(circuit).build(mode));
+		return netlist[0];
+	}
+	
+	private Netlist build(Netlist.Mode mode) {
+		visit(circuit.getTopLevelState());
+		
+		Netlist netlist = new Netlist();
+		netlist.circuit = circuit;
+		netlist.clock = Clock.getTickState(circuit.getSimulator());
+		
+		// Renumber the union-find roots into dense net indices
+		int[] netIndex = new int[netBits.size()];
+		Arrays.fill(netIndex, -1);
+		int netCount = 0;
+		for(int i = 0; i < netBits.size(); i++) {
+			int root = find(i);
+			if(netIndex[root] == -1) {
+				netIndex[root] = netCount++;
+			}
+		}
+		
+		netlist.netBits = new int[netCount];
+		for(int i = 0; i < netBits.size(); i++) {
+			netlist.netBits[netIndex[find(i)]] = netBits.get(i);
+		}
+		
+		netlist.slotNet = new int[slotCount];
+		netlist.slotOnes = new long[slotCount];
+		netlist.slotZeros = new long[slotCount];
+		netlist.slotStates = new CircuitState[slotCount];
+		netlist.slotPorts = new Port[slotCount];
+		netlist.slotIndices = new HashMap<>();
+		
+		netlist.cellType = new int[cells.size()];
+		netlist.cellFirstSlot = new int[cells.size()];
+		netlist.cellNumSlots = new int[cells.size()];
+		netlist.cellParam = new int[cells.size()];
+		netlist.cellData = new Object[cells.size()];
+		netlist.cellOnes = new long[cells.size()];
+		netlist.cellZeros = new long[cells.size()];
+		netlist.cellLastClock = new byte[cells.size()];
+		netlist.cellComponents = new Component[cells.size()];
+		netlist.cellStates = new CircuitState[cells.size()];
+		
+		int[] netSlotCounts = new int[netCount];
+		int[] netReaderCounts = new int[netCount];
+		boolean[] slotInputs = new boolean[slotCount];
+		boolean[] slotOutputs = new boolean[slotCount];
+		int maxFans = 0;
+		
+		for(int c = 0; c < cells.size(); c++) {
+			Cell cell = cells.get(c);
+			Component component = cell.component;
+			
+			netlist.cellType[c] = cell.type;
+			netlist.cellFirstSlot[c] = cell.firstSlot;
+			netlist.cellNumSlots[c] = component.getNumPorts();
+			netlist.cellParam[c] = cell.param;
+			netlist.cellData[c] = cell.data;
+			netlist.cellComponents[c] = component;
+			netlist.cellStates[c] = cell.state;
+			
+			if(cell.type == Netlist.SPLITTER) {
+				maxFans = Math.max(maxFans, component.getNumPorts() - 1);
+			}
+			
+			Map<Port, Integer> slotIndices = netlist.slotIndices.computeIfAbsent(cell.state, s -> new HashMap<>());
+			
+			for(int i = 0; i < component.getNumPorts(); i++) {
+				int slot = cell.firstSlot + i;
+				Port port = component.getPort(i);
+				int net = netIndex[find(linkNets.get(cell.state).get(port.getLink()))];
+				
+				netlist.slotNet[slot] = net;
+				netlist.slotStates[slot] = cell.state;
+				netlist.slotPorts[slot] = port;
+				slotIndices.put(port, slot);
+				netSlotCounts[net]++;
+				
+				if(cell.inputs[i]) {
+					netReaderCounts[net]++;
+				}
+				
+				slotInputs[slot] = cell.inputs[i];
+				slotOutputs[slot] = drives(cell) && (!cell.inputs[i] || cell.type == Netlist.SPLITTER ||
+					                                     (cell.type == Netlist.MEMORY_RAM && i == RAM.PORT_DATA));
+				
+				if(drives(cell)) {
+					WireValue pushed = cell.state.getLastPushed(port);
+					for(int bit = 0; bit < pushed.getBitSize(); bit++) {
+						State state = pushed.getBit(bit);
+						if(state == State.ONE) {
+							netlist.slotOnes[slot] |= 1L << bit;
+						} else if(state == State.ZERO) {
+							netlist.slotZeros[slot] |= 1L << bit;
+						}
+					}
+				}
+			}
+			
+			initializeCellState(netlist, c, cell);
+		}
+		
+		netlist.netSlotStart = prefixSums(netSlotCounts);
+		netlist.netReaderStart = prefixSums(netReaderCounts);
+		netlist.netSlots = new int[slotCount];
+		netlist.netReaders = new int[netlist.netReaderStart[netCount]];
+		netlist.netAlwaysNotify = new boolean[netCount];
+		
+		int[] slotFill = Arrays.copyOf(netlist.netSlotStart, netCount);
+		int[] readerFill = Arrays.copyOf(netlist.netReaderStart, netCount);
+		for(int c = 0; c < cells.size(); c++) {
+			Cell cell = cells.get(c);
+			for(int i = 0; i < cell.inputs.length; i++) {
+				int slot = cell.firstSlot + i;
+				int net = netlist.slotNet[slot];
+				netlist.netSlots[slotFill[net]++] = slot;
+				
+				if(cell.inputs[i]) {
+					netlist.netReaders[readerFill[net]++] = c;
+					
+					// Ports that both read and drive receive the other drivers, which may change while the net doesn't
+					if(cell.type == Netlist.SPLITTER || cell.type == Netlist.MEMORY_RAM) {
+						netlist.netAlwaysNotify[net] = true;
+					}
+				}
+			}
+		}
+		
+		netlist.clockSlots = clockSlots.stream().mapToInt(Integer::intValue).toArray();
+		
+		if(mode == Netlist.Mode.CYCLE) {
+			String reason = Levelizer.levelize(netlist, slotInputs, slotOutputs);
+			if(reason == null) {
+				netlist.mode = Netlist.Mode.CYCLE;
+			} else {
+				netlist.fallbackReason = reason;
+			}
+		}
+		
+		netlist.initialize(maxFans);
+		return netlist;
+	}
+	
+	private static boolean drives(Cell cell) {
+		if(cell.type != Netlist.PASSIVE) {
+			return true;
+		}
+		
+		// Of the built-in passive cells only Constants, Clocks and the input Pins of the top level state push values
+		Component component = cell.component;
+		if(component instanceof Constant || component instanceof Clock) {
+			return true;
+		}
+		if(component instanceof Pin) {
+			return ((Pin)component).isInput() && cell.state == component.getCircuit().getTopLevelState();
+		}
+		if(component instanceof Subcircuit || component instanceof Tunnel) {
+			return false;
+		}
+		
+		// Other passive Components keep driving what they pushed, like a Button that is not pressed
+		for(int i = 0; i < component.getNumPorts(); i++) {
+			if(!cell.state.getLastPushed(component.getPort(i)).equals(new WireValue(component.getPort(i).getLink()
+			                                                                             .getBitSize()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static int[] prefixSums(int[] counts) {
+		int[] start = new int[counts.length + 1];
+		for(int i = 0; i < counts.length; i++) {
+			start[i + 1] = start[i] + counts[i];
+		}
+		return start;
+	}
+	
+	private int getNet(CircuitState state, Port port) {
+		Link link = port.getLink();
+		if(link.getBitSize() > 64) {
+			throw new SimulationException("Cannot compile nets wider than 64 bits: " + port.getComponent());
+		}
+		
+		Map<Link, Integer> nets = linkNets.computeIfAbsent(state, s -> new HashMap<>());
+		Integer net = nets.get(link);
+		if(net == null) {
+			net = netBits.size();
+			netBits.add(link.getBitSize());
+			nets.put(link, net);
+			
+			if(net == parents.length) {
+				parents = Arrays.copyOf(parents, parents.length * 2);
+			}
+			parents[net] = net;
+		}
+		return net;
+	}
+	
+	private int find(int net) {
+		while(parents[net] != net) {
+			parents[net] = parents[parents[net]];
+			net = parents[net];
+		}
+		return net;
+	}
+	
+	private void union(int net1, int net2) {
+		parents[find(net1)] = find(net2);
+	}
+	
+	private void visit(CircuitState state) {
+		Map<String, Integer> tunnelNets = new HashMap<>();
+		
+		for(Component component : state.getCircuit().getComponents()) {
+			for(int i = 0; i < component.getNumPorts(); i++) {
+				getNet(state, component.getPort(i));
+			}
+			
+			if(component instanceof Subcircuit) {
+				Subcircuit subcircuit = (Subcircuit)component;
+				CircuitState subcircuitState = subcircuit.getSubcircuitState(state);
+				visit(subcircuitState);
+				
+				List<Pin> pins = subcircuit.getPins();
+				for(int i = 0; i < pins.size(); i++) {
+					union(getNet(state, subcircuit.getPort(i)), getNet(subcircuitState, pins.get(i).getPort(Pin.PORT)));
+				}
+			} else if(component instanceof Tunnel) {
+				Tunnel tunnel = (Tunnel)component;
+				if(!tunnel.getLabel().isEmpty()) {
+					int net = getNet(state, tunnel.getPort(Tunnel.PORT));
+					Integer other = tunnelNets.putIfAbsent(tunnel.getLabel() + ":" + tunnel.getBitSize(), net);
+					if(other != null) {
+						union(net, other);
+					}
+				}
+			}
+			
+			addCell(component, state);
+		}
+	}
+	
+	private void addCell(Component component, CircuitState state) {
+		Cell cell = new Cell(getType(component), component, state, slotCount);
+		slotCount += component.getNumPorts();
+		cells.add(cell);
+		
+		int ports = component.getNumPorts();
+		switch(cell.type) {
+			case Netlist.PASSIVE:
+				if(component instanceof Clock) {
+					clockSlots.add(cell.firstSlot + Clock.PORT);
+				}
+				return;
+			case Netlist.AND:
+			case Netlist.OR:
+			case Netlist.XOR: {
+				Gate gate = (Gate)component;
+				cell.param = gate.getNegateOutput() ? 1 : 0;
+				cell.data = gate.getNegateInputs();
+				markInputs(cell, 0, gate.getNumInputs());
+				return;
+			}
+			case Netlist.BUFFER:
+				cell.param = component instanceof Transistor && ((Transistor)component).isPType() ? 0 : 1;
+				markInputs(cell, 0, 2);
+				return;
+			case Netlist.ADDER:
+			case Netlist.SUBTRACTOR:
+			case Netlist.MULTIPLIER:
+				markInputs(cell, 0, 3);
+				return;
+			case Netlist.DIVIDER:
+				markInputs(cell, 0, 2);
+				return;
+			case Netlist.COMPARATOR:
+				cell.param = ((Comparator)component).isSignedCompare() ? 1 : 0;
+				markInputs(cell, 0, 2);
+				return;
+			case Netlist.SHIFTER:
+				cell.param = ((Shifter)component).getShiftType().ordinal();
+				markInputs(cell, 0, 2);
+				return;
+			case Netlist.EXTENDER:
+				cell.param = ((BitExtender)component).getExtensionType().ordinal();
+				markInputs(cell, 0, 1);
+				return;
+			case Netlist.NEGATOR:
+			case Netlist.RANDOM:
+				markInputs(cell, 0, 1);
+				return;
+			case Netlist.MUX:
+			case Netlist.DEMUX:
+				markInputs(cell, ports - 2, ports);
+				if(cell.type == Netlist.MUX) {
+					markInputs(cell, 0, ports - 2);
+				}
+				return;
+			case Netlist.DECODER:
+				markInputs(cell, ports - 1, ports);
+				return;
+			case Netlist.PRIORITY_ENCODER:
+				markInputs(cell, 0, ports - 3);
+				return;
+			case Netlist.SPLITTER:
+				cell.data = ((Splitter)component).getBitFanIndices();
+				markInputs(cell, 0, ports);
+				return;
+			case Netlist.REGISTER:
+				markInputs(cell, 0, Register.PORT_OUT);
+				return;
+			case Netlist.DFF:
+				markInputs(cell, 0, DFlipFlop.PORT_Q);
+				return;
+			case Netlist.SRFF:
+				markInputs(cell, 0, SRFlipFlop.PORT_Q);
+				return;
+			case Netlist.MEMORY_RAM:
+				cell.data = ((RAM)component).getMemoryContents(state);
+				markInputs(cell, 0, ports);
+				return;
+			case Netlist.MEMORY_ROM:
+				cell.data = ((ROM)component).getMemory();
+				markInputs(cell, 0, ROM.PORT_DATA);
+				return;
+		}
+	}
+	
+	private static void markInputs(Cell cell, int from, int to) {
+		Arrays.fill(cell.inputs, from, to, true);
+	}
+	
+	private static int getType(Component component) {
+		Class<?> type = component.getClass();
+		
+		// Subclasses of the built-in Components may change their behavior, so only the exact classes are compiled
+		if(type == Pin.class || type == Constant.class || type == Clock.class || type == Subcircuit.class ||
+			   type == Tunnel.class) {
+			return Netlist.PASSIVE;
+		}
+		
+		// NOT is a single input gate, which never applies its operation
+		if(type == AndGate.class || type == NandGate.class || type == NotGate.class) {
+			return Netlist.AND;
+		}
+		if(type == OrGate.class || type == NorGate.class) {
+			return Netlist.OR;
+		}
+		if(type == XorGate.class || type == XnorGate.class) {
+			return Netlist.XOR;
+		}
+		
+		if(type == ControlledBuffer.class || type == Transistor.class) {
+			return Netlist.BUFFER;
+		}
+		if(type == Adder.class) {
+			return Netlist.ADDER;
+		}
+		if(type == Subtractor.class) {
+			return Netlist.SUBTRACTOR;
+		}
+		if(type == Multiplier.class) {
+			return Netlist.MULTIPLIER;
+		}
+		if(type == Divider.class) {
+			return Netlist.DIVIDER;
+		}
+		if(type == Negator.class) {
+			return Netlist.NEGATOR;
+		}
+		if(type == Comparator.class) {
+			return Netlist.COMPARATOR;
+		}
+		if(type == Shifter.class) {
+			return Netlist.SHIFTER;
+		}
+		if(type == BitExtender.class) {
+			return Netlist.EXTENDER;
+		}
+		if(type == Multiplexer.class) {
+			return Netlist.MUX;
+		}
+		if(type == Demultiplexer.class) {
+			return Netlist.DEMUX;
+		}
+		if(type == Decoder.class) {
+			return Netlist.DECODER;
+		}
+		if(type == PriorityEncoder.class) {
+			return Netlist.PRIORITY_ENCODER;
+		}
+		if(type == Splitter.class) {
+			return Netlist.SPLITTER;
+		}
+		if(type == Register.class) {
+			return Netlist.REGISTER;
+		}
+		if(type == DFlipFlop.class) {
+			return Netlist.DFF;
+		}
+		if(type == SRFlipFlop.class) {
+			return Netlist.SRFF;
+		}
+		if(type == RAM.class) {
+			return Netlist.MEMORY_RAM;
+		}
+		if(type == ROM.class) {
+			return Netlist.MEMORY_ROM;
+		}
+		if(type == RandomGenerator.class) {
+			return Netlist.RANDOM;
+		}
+		
+		if(component.isPassive()) {
+			return Netlist.PASSIVE;
+		}
+		
+		throw new SimulationException("Cannot compile component: " + component);
+	}
+	
+	private static void initializeCellState(Netlist netlist, int c, Cell cell) {
+		CircuitState state = cell.state;
+		Component component = cell.component;
+		int first = cell.firstSlot;
+		
+		switch(cell.type) {
+			case Netlist.REGISTER:
+				netlist.cellOnes[c] = netlist.slotOnes[first + Register.PORT_OUT];
+				netlist.cellZeros[c] = netlist.slotZeros[first + Register.PORT_OUT];
+				netlist.cellLastClock[c] = getBit(state, component.getPort(Register.PORT_CLK));
+				break;
+			case Netlist.DFF:
+				netlist.cellOnes[c] = netlist.slotOnes[first + DFlipFlop.PORT_Q];
+				netlist.cellLastClock[c] = getBit(state, component.getPort(DFlipFlop.PORT_CLOCK));
+				break;
+			case Netlist.SRFF:
+				netlist.cellOnes[c] = netlist.slotOnes[first + SRFlipFlop.PORT_Q];
+				netlist.cellLastClock[c] = getBit(state, component.getPort(SRFlipFlop.PORT_CLOCK));
+				break;
+			case Netlist.MEMORY_RAM:
+				netlist.cellOnes[c] = getBit(state, component.getPort(RAM.PORT_CLEAR)) == 1 ? 1 : 0;
+				netlist.cellLastClock[c] = getBit(state, component.getPort(RAM.PORT_CLK));
+				break;
+			case Netlist.RANDOM:
+				netlist.cellLastClock[c] = getBit(state, component.getPort(RandomGenerator.PORT_CLK));
+				break;
+		}
+	}
+	
+	private static byte getBit(CircuitState state, Port port) {
+		State bit = state.getLastReceived(port).getBit(0);
+		return (byte)(bit == State.ONE ? 1 : bit == State.ZERO ? 0 : 2);
+	}
+}
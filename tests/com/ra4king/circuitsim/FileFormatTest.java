@@ -0,0 +1,127 @@
+package com.ra4king.circuitsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.ra4king.circuitsim.gui.file.FileFormat;
+import com.ra4king.circuitsim.gui.file.FileFormat.CircuitFile;
+
+/**
+ * Round trips every example through the binary format, compressed and not, checks that truncated or corrupted binary
+ * files fail with an IOException, and that the streaming JSON reader and writer agree with Gson.
+ * <p>
+ * Takes the examples directory as its argument, defaulting to "examples".
+ *
+ * @author Roi Atalla
+ */
+public class FileFormatTest {
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+	
+	private static final int HEADER_LENGTH = 6;
+	
+	public static void main(String[] args) throws Exception {
+		File examples = new File(args.length > 0 ? args[0] : "examples");
+		File[] files = examples.listFiles((dir, name) -> name.endsWith(".sim"));
+		if(files == null || files.length == 0) {
+			throw new IllegalStateException("No .sim files found in " + examples.getAbsolutePath());
+		}
+		Arrays.sort(files);
+		
+		File temp = File.createTempFile("FileFormatTest", ".sim");
+		temp.deleteOnExit();
+		
+		Random random = new Random(42);
+		
+		for(File file : files) {
+			String json = FileFormat.readFile(file);
+			CircuitFile circuitFile = FileFormat.load(file);
+			String expected = FileFormat.stringify(circuitFile);
+			
+			check(file.getName() + ": written like Gson", expected.equals(GSON.toJson(circuitFile)));
+			check(file.getName() + ": read like Gson",
+			      expected.equals(FileFormat.stringify(GSON.fromJson(json, CircuitFile.class))));
+			
+			for(boolean compress : new boolean[] { false, true }) {
+				String name = file.getName() + (compress ? " compressed" : " uncompressed");
+				
+				FileFormat.saveBinary(temp, circuitFile, compress);
+				check(name + ": detected as binary", FileFormat.isBinary(temp));
+				check(name + ": round trip", expected.equals(FileFormat.stringify(FileFormat.load(temp))));
+				
+				byte[] bytes = Files.readAllBytes(temp.toPath());
+				System.out.println(name + ": " + json.length() + " -> " + bytes.length + " bytes");
+				
+				// Everything shorter than the magic bytes is not recognized as binary at all
+				for(int length = 4; length < bytes.length; length += Math.max(1, bytes.length / 200)) {
+					expectIOException(name + ": truncated to " + length, temp, Arrays.copyOf(bytes, length));
+				}
+				for(int length = Math.max(4, bytes.length - 16); length < bytes.length; length++) {
+					expectIOException(name + ": truncated to " + length, temp, Arrays.copyOf(bytes, length));
+				}
+				
+				byte[] corrupted = bytes.clone();
+				corrupted[4]++;
+				expectIOException(name + ": unknown version", temp, corrupted);
+				
+				expectIOException(name + ": trailing data", temp, Arrays.copyOf(bytes, bytes.length + 1));
+				
+				for(int i = 0; i < 100; i++) {
+					corrupted = bytes.clone();
+					int index = HEADER_LENGTH + random.nextInt(bytes.length - HEADER_LENGTH);
+					corrupted[index] ^= 1 << random.nextInt(8);
+					
+					// Only deflated data has a checksum, elsewhere a flipped bit may still decode to valid contents
+					String loaded = loadOrNull(temp, corrupted);
+					if(compress) {
+						check(name + ": bit flipped at " + index, loaded == null || loaded.equals(expected));
+					}
+				}
+			}
+		}
+		
+		// Huge counts must not be allocated up front, the data runs out long before
+		byte[] header = Arrays.copyOf(Files.readAllBytes(temp.toPath()), HEADER_LENGTH);
+		header[HEADER_LENGTH - 1] = 0;
+		byte[] huge = { (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07 };
+		expectIOException("Huge string count", temp, concat(header, huge));
+		expectIOException("Huge string length", temp, concat(header, new byte[] { 1 }, huge));
+		
+		System.out.println("All tests passed");
+	}
+	
+	private static byte[] concat(byte[]... arrays) {
+		byte[] result = new byte[0];
+		for(byte[] array : arrays) {
+			int length = result.length;
+			result = Arrays.copyOf(result, length + array.length);
+			System.arraycopy(array, 0, result, length, array.length);
+		}
+		return result;
+	}
+	
+	private static String loadOrNull(File temp, byte[] bytes) throws IOException {
+		Files.write(temp.toPath(), bytes);
+		try {
+			return FileFormat.stringify(FileFormat.load(temp));
+		} catch(IOException exc) {
+			return null;
+		}
+	}
+	
+	private static void expectIOException(String name, File temp, byte[] bytes) throws IOException {
+		if(loadOrNull(temp, bytes) != null) {
+			throw new IllegalStateException(name + ": should fail to load");
+		}
+	}
+	
+	private static void check(String name, boolean passed) {
+		if(!passed) {
+			throw new IllegalStateException(name + ": failed");
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.ra4king.circuitsim;
+
+import com.ra4king.circuitsim.simulator.Circuit;
+import com.ra4king.circuitsim.simulator.Simulator;
+import com.ra4king.circuitsim.simulator.WireValue;
+import com.ra4king.circuitsim.simulator.components.Subcircuit;
+import com.ra4king.circuitsim.simulator.components.arithmetic.Adder;
+import com.ra4king.circuitsim.simulator.components.memory.Register;
+import com.ra4king.circuitsim.simulator.components.wiring.Clock;
+import com.ra4king.circuitsim.simulator.components.wiring.Constant;
+import com.ra4king.circuitsim.simulator.components.wiring.Pin;
+import com.ra4king.circuitsim.simulator.components.wiring.Tunnel;
+import com.ra4king.circuitsim.simulator.netlist.Netlist;
+import com.ra4king.circuitsim.simulator.netlist.NetlistCompiler;
+
+/**
+ * @author Roi Atalla
+ */
+public class NetlistTest {
+	public static void main(String[] args) {
+		Simulator sim = new Simulator();
+		
+		Circuit increment = new Circuit("Increment", sim);
+		Pin in = increment.addComponent(new Pin("In", 8, true));
+		Pin out = increment.addComponent(new Pin("Out", 8, false));
+		Adder adder = increment.addComponent(new Adder("", 8));
+		Constant one = increment.addComponent(new Constant("", 8, 1));
+		Tunnel sumIn = increment.addComponent(new Tunnel("Sum", 8));
+		Tunnel sumOut = increment.addComponent(new Tunnel("Sum", 8));
+		
+		adder.getPort(Adder.PORT_A).linkPort(in.getPort(Pin.PORT));
+		adder.getPort(Adder.PORT_B).linkPort(one.getPort(Constant.PORT));
+		adder.getPort(Adder.PORT_OUT).linkPort(sumIn.getPort(Tunnel.PORT));
+		sumOut.getPort(Tunnel.PORT).linkPort(out.getPort(Pin.PORT));
+		
+		Circuit counter = new Circuit("Counter", sim);
+		Clock clock = counter.addComponent(new Clock(""));
+		Register register = counter.addComponent(new Register("", 8));
+		Subcircuit subcircuit = counter.addComponent(new Subcircuit("", increment));
+		Pin enable = counter.addComponent(new Pin("Enable", 1, true));
+		Pin count = counter.addComponent(new Pin("Count", 8, false));
+		
+		register.getPort(Register.PORT_CLK).linkPort(clock.getPort(Clock.PORT));
+		register.getPort(Register.PORT_ENABLE).linkPort(enable.getPort(Pin.PORT));
+		register.getPort(Register.PORT_OUT).linkPort(subcircuit.getPort(in)).linkPort(count.getPort(Pin.PORT));
+		subcircuit.getPort(out).linkPort(register.getPort(Register.PORT_IN));
+		
+		sim.stepAll();
+		
+		Netlist netlist = NetlistCompiler.compile(counter);
+		System.out.println("Nets: " + netlist.getNetCount() + ", cells: " + netlist.getCellCount());
+		
+		netlist.setValue(enable, WireValue.of(1, 1));
+		netlist.settle();
+		
+		for(int i = 0; i < 6; i++) {
+			netlist.tick();
+			netlist.settle();
+			System.out.println("Clock = " + (netlist.getClock() ? 1 : 0) + ", Count = " +
+					                   netlist.getValue(count.getPort(Pin.PORT)));
+		}
+		
+		Netlist cycle = NetlistCompiler.compile(counter, Netlist.Mode.CYCLE);
+		System.out.println("Mode: " + cycle.getMode() + ", fallback reason: " + cycle.getFallbackReason());
+		
+		cycle.setValue(enable, WireValue.of(1, 1));
+		for(int i = 0; i < 4; i++) {
+			cycle.tick();
+			cycle.settle();
+			System.out.println("Clock = " + (cycle.getClock() ? 1 : 0) + ", Count = " +
+			                   cycle.getValue(count.getPort(Pin.PORT)));
+		}
+		
+		netlist.publish();
+		System.out.println("Published Count = " + counter.getTopLevelState().getLastReceived(count.getPort(Pin.PORT)));
+		
+		System.out.println("Event-driven, Enable = 1");
+		enable.setValue(counter.getTopLevelState(), WireValue.of(1, 1));
+		for(int i = 0; i < 2; i++) {
+			Clock.tick(sim);
+			sim.stepAll();
+			System.out.println("Count = " + counter.getTopLevelState().getLastReceived(count.getPort(Pin.PORT)));
+		}
+	}
+}
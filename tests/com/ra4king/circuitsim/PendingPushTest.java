@@ -0,0 +1,94 @@
+package com.ra4king.circuitsim;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.ra4king.circuitsim.simulator.Circuit;
+import com.ra4king.circuitsim.simulator.CircuitState;
+import com.ra4king.circuitsim.simulator.Simulator;
+import com.ra4king.circuitsim.simulator.WireValue;
+import com.ra4king.circuitsim.simulator.WireValue.State;
+import com.ra4king.circuitsim.simulator.components.wiring.Pin;
+
+/**
+ * Toggles pins the way PinPeer does, reading the last pushed value and pushing a new one, while another thread holds
+ * the Simulator lock so every push is queued.
+ *
+ * @author Roi Atalla
+ */
+public class PendingPushTest {
+	public static void main(String[] args) throws Exception {
+		Simulator sim = new Simulator();
+		Circuit circuit = new Circuit("Pending Push Test", sim);
+		CircuitState state = circuit.getTopLevelState();
+		
+		Pin bit = circuit.addComponent(new Pin("Bit", 1, true));
+		Pin bitOut = circuit.addComponent(new Pin("Bit Out", 1, false));
+		bit.getPort(Pin.PORT).linkPort(bitOut.getPort(Pin.PORT));
+		
+		Pin digits = circuit.addComponent(new Pin("Digits", 4, true));
+		Pin digitsOut = circuit.addComponent(new Pin("Digits Out", 4, false));
+		digits.getPort(Pin.PORT).linkPort(digitsOut.getPort(Pin.PORT));
+		
+		bit.setValue(state, WireValue.of(0, 1));
+		digits.setValue(state, WireValue.of(0, 4));
+		sim.stepAll();
+		
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread holder = new Thread(() -> {
+			sim.getLock().lock();
+			try {
+				locked.countDown();
+				release.await();
+			} catch(InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			} finally {
+				sim.getLock().unlock();
+			}
+		});
+		holder.setDaemon(true);
+		holder.start();
+		locked.await();
+		
+		toggle(state, bit);
+		check("Bit after first toggle", state.getLastPushed(bit.getPort(Pin.PORT)), WireValue.of(1, 1));
+		toggle(state, bit);
+		check("Bit after second toggle", state.getLastPushed(bit.getPort(Pin.PORT)), WireValue.of(0, 1));
+		toggle(state, bit);
+		
+		typeDigit(state, digits, 1);
+		typeDigit(state, digits, 0);
+		typeDigit(state, digits, 1);
+		check("Digits while queued", state.getLastPushed(digits.getPort(Pin.PORT)), WireValue.of(5, 4));
+		
+		release.countDown();
+		holder.join();
+		
+		sim.stepAll();
+		
+		check("Bit out", state.getLastReceived(bitOut.getPort(Pin.PORT)), WireValue.of(1, 1));
+		check("Digits out", state.getLastReceived(digitsOut.getPort(Pin.PORT)), WireValue.of(5, 4));
+		check("Bit once pushed", state.getLastPushed(bit.getPort(Pin.PORT)), WireValue.of(1, 1));
+	}
+	
+	private static void toggle(CircuitState state, Pin pin) {
+		WireValue value = state.getLastPushed(pin.getPort(Pin.PORT));
+		pin.setValue(state, new WireValue(1, value.getBit(0) == State.ONE ? State.ZERO : State.ONE));
+	}
+	
+	private static void typeDigit(CircuitState state, Pin pin, int digit) {
+		WireValue value = new WireValue(state.getLastPushed(pin.getPort(Pin.PORT)));
+		for(int i = value.getBitSize() - 1; i > 0; i--) {
+			value.setBit(i, value.getBit(i - 1));
+		}
+		value.setBit(0, digit == 1 ? State.ONE : State.ZERO);
+		pin.setValue(state, value);
+	}
+	
+	private static void check(String name, WireValue actual, WireValue expected) {
+		System.out.println(name + " = " + actual);
+		if(!actual.equals(expected)) {
+			throw new IllegalStateException(name + " should be " + expected + " but is " + actual);
+		}
+	}
+}
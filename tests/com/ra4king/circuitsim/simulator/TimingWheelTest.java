@@ -0,0 +1,141 @@
+package com.ra4king.circuitsim.simulator;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Compares the TimingWheel against a PriorityQueue ordered by time then by scheduling order, with delays at the slot
+ * and level boundaries, up to Integer.MAX_VALUE, and with enough time passing to cross top level rotations.
+ *
+ * @author Roi Atalla
+ */
+public class TimingWheelTest {
+	private static final int[] DELAYS = { 1, 2, 63, 64, 65, 4095, 4096, 4097, 1 << 18, 1 << 24, 1 << 30,
+	                                      Integer.MAX_VALUE - 1, Integer.MAX_VALUE };
+	
+	// A top level rotation of the wheel is 2^36 time units
+	private static final long ROTATION = 1L << 36;
+	
+	private final TimingWheel wheel = new TimingWheel();
+	private final PriorityQueue<long[]> expected =
+		new PriorityQueue<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+	private final Map<WireValue, Long> ids = new IdentityHashMap<>();
+	private long nextId;
+	private int polls;
+	
+	public static void main(String[] args) {
+		for(int delay : DELAYS) {
+			TimingWheelTest test = new TimingWheelTest();
+			test.schedule(delay);
+			test.schedule(delay);
+			test.pollAll();
+		}
+		
+		for(long seed = 0; seed < 20; seed++) {
+			TimingWheelTest test = new TimingWheelTest();
+			Random random = new Random(seed);
+			
+			for(int i = 0; i < 20000; i++) {
+				if(random.nextInt(3) == 0) {
+					test.poll();
+				} else {
+					int count = 1 + random.nextInt(3);
+					for(int j = 0; j < count; j++) {
+						test.schedule(randomDelay(random));
+					}
+				}
+			}
+			
+			test.pollAll();
+		}
+		
+		// Each batch reaches Integer.MAX_VALUE ahead, so the time crosses several top level rotations, while the
+		// shorter delays of the batch keep every level busy around each crossing
+		TimingWheelTest test = new TimingWheelTest();
+		Random random = new Random(42);
+		while(test.wheel.getTime() < 3 * ROTATION) {
+			test.schedule(Integer.MAX_VALUE);
+			for(int i = 0; i < 50; i++) {
+				test.schedule(randomDelay(random));
+			}
+			
+			for(int i = 0; i < 25; i++) {
+				test.poll();
+			}
+			for(int i = 0; i < 25; i++) {
+				test.schedule(randomDelay(random));
+			}
+			
+			test.pollAll();
+		}
+		
+		System.out.println("Matched the PriorityQueue over " + test.polls + " polls up to time " +
+		                   test.wheel.getTime() + ", " + (test.wheel.getTime() / ROTATION) + " top level rotations");
+		System.out.println("All tests passed");
+	}
+	
+	private static int randomDelay(Random random) {
+		switch(random.nextInt(4)) {
+			case 0:
+				return DELAYS[random.nextInt(DELAYS.length)];
+			case 1:
+				return 1 + random.nextInt(64);
+			case 2:
+				return 1 + random.nextInt(1 << 18);
+			default:
+				return 1 + random.nextInt(Integer.MAX_VALUE);
+		}
+	}
+	
+	private void schedule(int delay) {
+		WireValue value = new WireValue(1);
+		long id = nextId++;
+		ids.put(value, id);
+		
+		expected.add(new long[] { wheel.getTime() + delay, id });
+		wheel.schedule(null, null, value, delay);
+	}
+	
+	private void poll() {
+		TimingWheel.Event events = wheel.poll();
+		polls++;
+		
+		if(expected.isEmpty()) {
+			check(events == null && wheel.isEmpty(), "Polled an event from an empty wheel");
+			return;
+		}
+		
+		long time = expected.peek()[0];
+		List<Long> expectedIds = new ArrayList<>();
+		while(!expected.isEmpty() && expected.peek()[0] == time) {
+			expectedIds.add(expected.poll()[1]);
+		}
+		
+		List<Long> actualIds = new ArrayList<>();
+		for(TimingWheel.Event event = events; event != null; event = event.next) {
+			check(event.time == time, "Event for time " + event.time + " polled at " + time);
+			actualIds.add(ids.remove(event.value));
+		}
+		
+		check(wheel.getTime() == time, "Time is " + wheel.getTime() + " instead of " + time);
+		check(actualIds.equals(expectedIds), "At time " + time + " polled " + actualIds + " instead of " + expectedIds);
+		check(wheel.isEmpty() == expected.isEmpty(), "Wheel emptiness differs at time " + time);
+	}
+	
+	private void pollAll() {
+		while(!expected.isEmpty()) {
+			poll();
+		}
+		poll();
+	}
+	
+	private static void check(boolean passed, String message) {
+		if(!passed) {
+			throw new IllegalStateException(message);
+		}
+	}
+}